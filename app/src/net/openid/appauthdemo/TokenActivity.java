@@ -40,6 +40,7 @@ import android.widget.TextView;
 import com.squareup.picasso.Picasso;
 import com.squareup.picasso.Target;
 
+import net.openid.appauth.AppAuthConfiguration;
 import net.openid.appauth.AuthState;
 import net.openid.appauth.AuthorizationException;
 import net.openid.appauth.AuthorizationRequest;
@@ -213,7 +214,7 @@ public class TokenActivity extends AppCompatActivity {
                             fetchUserInfo();
                             return null;
                         }
-                    }.execute();
+                    }.executeOnExecutor(AppAuthConfiguration.getDefaultExecutor());
                 }
             });
         }
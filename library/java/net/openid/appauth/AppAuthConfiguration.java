@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines configuration properties that control the behavior of the AppAuth library,
+ * independent of the OAuth2 specific details that are described in
+ * {@link AuthorizationServiceConfiguration}.
+ */
+public class AppAuthConfiguration {
+
+    /**
+     * The default configuration that is used if no configuration is explicitly specified
+     * when constructing an {@link AuthorizationService}.
+     */
+    public static final AppAuthConfiguration DEFAULT = new AppAuthConfiguration.Builder().build();
+
+    /**
+     * The maximum number of concurrent network requests that will be dispatched by the
+     * {@link #getDefaultExecutor() default executor}.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+    /**
+     * The default connection timeout for HTTP requests, in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+
+    /**
+     * The default read timeout for HTTP requests, in milliseconds.
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30L;
+
+    @NonNull
+    private final ConnectionBuilder mConnectionBuilder;
+
+    @NonNull
+    private final Executor mExecutor;
+
+    @NonNull
+    private final RetryPolicy mRetryPolicy;
+
+    private final int mConnectTimeoutMs;
+
+    private final int mReadTimeoutMs;
+
+    @Nullable
+    private final DiscoveryCache mDiscoveryCache;
+
+    @Nullable
+    private final Set<String> mRetainedDiscoveryFields;
+
+    private AppAuthConfiguration(
+            @NonNull ConnectionBuilder connectionBuilder,
+            @NonNull Executor executor,
+            @NonNull RetryPolicy retryPolicy,
+            int connectTimeoutMs,
+            int readTimeoutMs,
+            @Nullable DiscoveryCache discoveryCache,
+            @Nullable Set<String> retainedDiscoveryFields) {
+        mConnectionBuilder = connectionBuilder;
+        mExecutor = executor;
+        mRetryPolicy = retryPolicy;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mDiscoveryCache = discoveryCache;
+        mRetainedDiscoveryFields = retainedDiscoveryFields;
+    }
+
+    /**
+     * The connection builder used to create HTTP connections for token requests and
+     * configuration retrieval.
+     */
+    @NonNull
+    public ConnectionBuilder getConnectionBuilder() {
+        return mConnectionBuilder;
+    }
+
+    /**
+     * The executor on which token requests and configuration retrievals are performed.
+     */
+    @NonNull
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * The policy under which refresh token grants and configuration retrievals that fail due to
+     * transient errors are retried.
+     */
+    @NonNull
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * The timeout, in milliseconds, for establishing HTTP connections. Zero indicates no timeout.
+     */
+    public int getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    /**
+     * The timeout, in milliseconds, for reading HTTP responses once a connection is established.
+     * Zero indicates no timeout.
+     */
+    public int getReadTimeoutMs() {
+        return mReadTimeoutMs;
+    }
+
+    /**
+     * The cache of discovery documents consulted by configuration retrievals, if any.
+     */
+    @Nullable
+    public DiscoveryCache getDiscoveryCache() {
+        return mDiscoveryCache;
+    }
+
+    /**
+     * The fields, in addition to those required by the library, retained from retrieved
+     * discovery documents, if only those fields are retained. If {@code null}, the complete
+     * documents are retained.
+     * @see AuthorizationServiceDiscovery#withRetainedFields
+     */
+    @Nullable
+    public Set<String> getRetainedDiscoveryFields() {
+        return mRetainedDiscoveryFields;
+    }
+
+    /**
+     * Returns the executor that is used when no executor is explicitly configured. This is a
+     * bounded pool, owned by the library, of at most {@link #DEFAULT_MAX_CONCURRENT_REQUESTS}
+     * threads, which are released when idle. Unlike the serial executor used by
+     * {@link android.os.AsyncTask#execute}, a slow request does not delay unrelated requests,
+     * and requests are not queued behind unrelated application tasks. Applications may also
+     * use this executor for their own calls to the authorization service, such as userinfo
+     * requests.
+     */
+    @NonNull
+    public static Executor getDefaultExecutor() {
+        return DefaultExecutorHolder.INSTANCE;
+    }
+
+    /**
+     * Creates {@link AppAuthConfiguration} instances.
+     */
+    public static class Builder {
+
+        @NonNull
+        private ConnectionBuilder mConnectionBuilder = DefaultConnectionBuilder.INSTANCE;
+
+        @NonNull
+        private Executor mExecutor = getDefaultExecutor();
+
+        @NonNull
+        private RetryPolicy mRetryPolicy = RetryPolicy.NO_RETRY;
+
+        private int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+
+        private int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+        @Nullable
+        private DiscoveryCache mDiscoveryCache;
+
+        @Nullable
+        private Set<String> mRetainedDiscoveryFields;
+
+        /**
+         * Specifies the connection builder that will be used to create the HTTP connections
+         * for token requests and configuration retrieval. By default,
+         * {@link DefaultConnectionBuilder} is used.
+         */
+        @NonNull
+        public Builder setConnectionBuilder(@NonNull ConnectionBuilder connectionBuilder) {
+            mConnectionBuilder = checkNotNull(connectionBuilder,
+                    "connectionBuilder cannot be null");
+            return this;
+        }
+
+        /**
+         * Specifies the executor on which token requests and configuration retrievals will be
+         * performed. By default, the {@link #getDefaultExecutor() library's bounded pool} is
+         * used.
+         */
+        @NonNull
+        public Builder setExecutor(@NonNull Executor executor) {
+            mExecutor = checkNotNull(executor, "executor cannot be null");
+            return this;
+        }
+
+        /**
+         * Specifies the policy under which refresh token grants and configuration retrievals
+         * that fail due to transient errors are retried. By default,
+         * {@link RetryPolicy#NO_RETRY no retries} are performed.
+         */
+        @NonNull
+        public Builder setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+            mRetryPolicy = checkNotNull(retryPolicy, "retryPolicy cannot be null");
+            return this;
+        }
+
+        /**
+         * Specifies the timeout, in milliseconds, for establishing HTTP connections. Zero
+         * indicates no timeout, which is not recommended. By default,
+         * {@link #DEFAULT_CONNECT_TIMEOUT_MS} is used.
+         */
+        @NonNull
+        public Builder setConnectTimeoutMs(int connectTimeoutMs) {
+            checkArgument(connectTimeoutMs >= 0, "connectTimeoutMs must not be negative");
+            mConnectTimeoutMs = connectTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Specifies the timeout, in milliseconds, for reading HTTP responses once a connection
+         * is established. Zero indicates no timeout, which is not recommended. By default,
+         * {@link #DEFAULT_READ_TIMEOUT_MS} is used.
+         */
+        @NonNull
+        public Builder setReadTimeoutMs(int readTimeoutMs) {
+            checkArgument(readTimeoutMs >= 0, "readTimeoutMs must not be negative");
+            mReadTimeoutMs = readTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Specifies the cache of discovery documents consulted by configuration retrievals.
+         * By default, no cache is used, and every retrieval downloads the discovery document.
+         */
+        @NonNull
+        public Builder setDiscoveryCache(@Nullable DiscoveryCache discoveryCache) {
+            mDiscoveryCache = discoveryCache;
+            return this;
+        }
+
+        /**
+         * Specifies that retrieved discovery documents should retain only the fields required
+         * by the library, and the specified additional fields. Other fields are skipped while
+         * the document is parsed, which reduces the memory held by each configuration. By
+         * default, the complete documents are retained.
+         * @see AuthorizationServiceDiscovery#withRetainedFields
+         */
+        @NonNull
+        public Builder setRetainedDiscoveryFields(@NonNull Collection<String> additionalFields) {
+            checkNotNull(additionalFields, "additionalFields cannot be null");
+            mRetainedDiscoveryFields =
+                    Collections.unmodifiableSet(new HashSet<>(additionalFields));
+            return this;
+        }
+
+        /**
+         * Creates the instance from the configured properties.
+         */
+        @NonNull
+        public AppAuthConfiguration build() {
+            return new AppAuthConfiguration(
+                    mConnectionBuilder,
+                    mExecutor,
+                    mRetryPolicy,
+                    mConnectTimeoutMs,
+                    mReadTimeoutMs,
+                    mDiscoveryCache,
+                    mRetainedDiscoveryFields);
+        }
+    }
+
+    /**
+     * Lazily creates the default executor, on first use.
+     */
+    private static final class DefaultExecutorHolder {
+        static final Executor INSTANCE = createDefaultExecutor();
+
+        private static Executor createDefaultExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    DEFAULT_MAX_CONCURRENT_REQUESTS,
+                    DEFAULT_MAX_CONCURRENT_REQUESTS,
+                    IDLE_THREAD_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "AppAuth #" + mCount.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+}
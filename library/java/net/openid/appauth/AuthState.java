@@ -21,18 +21,39 @@ import static net.openid.appauth.Preconditions.checkNotNull;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.MalformedJsonException;
+
+import net.openid.appauth.AuthorizationException.GeneralErrors;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Collects authorization state from authorization requests and responses. This facilitates
  * the creation of subsequent requests based on this state, and allows for this state to be
  * persisted easily.
+ *
+ * <p>Instances are thread-safe. The state is held as an immutable snapshot, which each update
+ * replaces atomically, so readers never block, and
+ * {@link #performActionWithFreshTokens(AuthorizationService, AuthStateAction)
+ * performActionWithFreshTokens} provides an access token and ID token from the same update.
+ * Reading the access token, ID token or expiration time separately may observe different
+ * updates.
  */
 public class AuthState {
 
@@ -50,22 +71,20 @@ public class AuthState {
     private static final String KEY_LAST_TOKEN_RESPONSE = "mLastTokenResponse";
     private static final String KEY_AUTHORIZATION_EXCEPTION = "mAuthorizationException";
 
-    @Nullable
-    private String mRefreshToken;
-
-    @Nullable
-    private String mScope;
-
-    @Nullable
-    private AuthorizationResponse mLastAuthorizationResponse;
+    /**
+     * The current state. Each update replaces the snapshot by compare-and-set, so that readers
+     * observe a consistent state without locking.
+     */
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>(Snapshot.EMPTY);
 
-    @Nullable
-    private TokenResponse mLastTokenResponse;
+    private final Object mPendingActionsSyncObject = new Object();
 
+    /**
+     * Actions awaiting the completion of the in-flight token refresh, if one is in progress.
+     * Guarded by {@link #mPendingActionsSyncObject}.
+     */
     @Nullable
-    private Long mAuthorizationExceptionCode;
-
-    private boolean mNeedsTokenRefreshOverride;
+    private List<AuthStateAction> mPendingActions;
 
     /**
      * Creates an empty, unauthenticated {@link AuthState}.
@@ -93,6 +112,10 @@ public class AuthState {
         update(tokenResponse, null);
     }
 
+    private AuthState(@NonNull Snapshot snapshot) {
+        mSnapshot.set(snapshot);
+    }
+
     /**
      * The most recent refresh token received from the server, if available. Rather than using
      * this property directly as part of any request depending on authorization state, it is
@@ -101,7 +124,7 @@ public class AuthState {
      */
     @Nullable
     public String getRefreshToken() {
-        return mRefreshToken;
+        return mSnapshot.get().refreshToken;
     }
 
     /**
@@ -110,7 +133,7 @@ public class AuthState {
      */
     @Nullable
     public String getScope() {
-        return mScope;
+        return mSnapshot.get().scope;
     }
 
     /**
@@ -118,7 +141,7 @@ public class AuthState {
      */
     @Nullable
     public Set<String> getScopeSet() {
-        return ScopeUtil.scopeStringToSet(mScope);
+        return ScopeUtil.scopeStringToSet(getScope());
     }
 
     /**
@@ -129,10 +152,12 @@ public class AuthState {
      * {@link #getAccessTokenExpirationTime() access token expiration},
      * {@link #getIdToken() ID token}
      * and {@link #getScopeSet() scope} regardless of the flow used to retrieve them.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     @Nullable
     public AuthorizationResponse getLastAuthorizationResponse() {
-        return mLastAuthorizationResponse;
+        return readResponses().lastAuthorizationResponse;
     }
 
     /**
@@ -143,19 +168,24 @@ public class AuthState {
      * {@link #getAccessTokenExpirationTime() access token expiration},
      * {@link #getIdToken() ID token}
      * and {@link #getScopeSet() scope} regardless of the flow used to retrieve them.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     @Nullable
     public TokenResponse getLastTokenResponse() {
-        return mLastTokenResponse;
+        return readResponses().lastTokenResponse;
     }
 
     /**
      * The configuration of the authorization service associated with this authorization state.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     @Nullable
     public AuthorizationServiceConfiguration getAuthorizationServiceConfiguration() {
-        if (mLastAuthorizationResponse != null) {
-            return mLastAuthorizationResponse.request.configuration;
+        AuthorizationResponse authResponse = readResponses().lastAuthorizationResponse;
+        if (authResponse != null) {
+            return authResponse.request.configuration;
         }
         return null;
     }
@@ -168,19 +198,7 @@ public class AuthState {
      */
     @Nullable
     public String getAccessToken() {
-        if (mAuthorizationExceptionCode != null) {
-            return null;
-        }
-
-        if (mLastTokenResponse != null) {
-            return mLastTokenResponse.accessToken;
-        }
-
-        if (mLastAuthorizationResponse != null) {
-            return mLastAuthorizationResponse.accessToken;
-        }
-
-        return null;
+        return mSnapshot.get().accessToken;
     }
 
     /**
@@ -189,19 +207,7 @@ public class AuthState {
      */
     @Nullable
     public Long getAccessTokenExpirationTime() {
-        if (mAuthorizationExceptionCode != null) {
-            return null;
-        }
-
-        if (mLastTokenResponse != null) {
-            return mLastTokenResponse.accessTokenExpirationTime;
-        }
-
-        if (mLastAuthorizationResponse != null) {
-            return mLastAuthorizationResponse.accessTokenExpirationTime;
-        }
-
-        return null;
+        return mSnapshot.get().accessTokenExpirationTime;
     }
 
     /**
@@ -209,19 +215,7 @@ public class AuthState {
      */
     @Nullable
     public String getIdToken() {
-        if (mAuthorizationExceptionCode != null) {
-            return null;
-        }
-
-        if (mLastTokenResponse != null) {
-            return mLastTokenResponse.idToken;
-        }
-
-        if (mLastAuthorizationResponse != null) {
-            return mLastAuthorizationResponse.idToken;
-        }
-
-        return null;
+        return mSnapshot.get().idToken;
     }
 
     /**
@@ -229,8 +223,9 @@ public class AuthState {
      * from which at least either an access token or an ID token have been retrieved.
      */
     public boolean isAuthorized() {
-        return mAuthorizationExceptionCode == null
-                && (getAccessToken() != null || getIdToken() != null);
+        Snapshot snapshot = mSnapshot.get();
+        return snapshot.authorizationExceptionCode == null
+                && (snapshot.accessToken != null || snapshot.idToken != null);
     }
 
     /**
@@ -242,23 +237,22 @@ public class AuthState {
 
     @VisibleForTesting
     boolean getNeedsTokenRefresh(Clock clock) {
-        if (mNeedsTokenRefreshOverride) {
-            return true;
-        }
-
-        if (getAccessTokenExpirationTime() != null) {
-            return (getAccessTokenExpirationTime() + EXPIRY_TIME_TOLERANCE_MS)
-                    <= clock.getCurrentTimeMillis();
-        }
-
-        return false;
+        return mSnapshot.get().needsTokenRefresh(clock.getCurrentTimeMillis());
     }
 
     /**
      * Sets whether to force an access token refresh, irrespective of the expiration time.
      */
     public void setNeedsTokenRefresh(boolean needsTokenRefresh) {
-        mNeedsTokenRefreshOverride = needsTokenRefresh;
+        Snapshot current;
+        do {
+            current = mSnapshot.get();
+            if (current.needsTokenRefreshOverride == needsTokenRefresh) {
+                return;
+            }
+        } while (!mSnapshot.compareAndSet(
+                current,
+                current.withNeedsTokenRefreshOverride(needsTokenRefresh)));
     }
 
     /**
@@ -274,51 +268,92 @@ public class AuthState {
             return;
         }
 
-        // the last token response and refresh token are now stale, as they are associated with
-        // any previous authorization response
-        mLastAuthorizationResponse = authResponse;
-        mLastTokenResponse = null;
-        mRefreshToken = null;
-        mAuthorizationExceptionCode = null;
-
         // if the response's mScope is nil, it means that it equals that of the request
         // see: https://tools.ietf.org/html/rfc6749#section-5.1
-        mScope = (authResponse.scope != null) ? authResponse.scope : authResponse.request.scope;
+        String scope =
+                (authResponse.scope != null) ? authResponse.scope : authResponse.request.scope;
+
+        // the last token response and refresh token are now stale, as they are associated with
+        // any previous authorization response, so any unread responses need not be read
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = mSnapshot.get();
+            updated = new Snapshot(
+                    null,
+                    scope,
+                    null,
+                    authResponse,
+                    null,
+                    null,
+                    current.needsTokenRefreshOverride);
+        } while (!mSnapshot.compareAndSet(current, updated));
     }
 
     /**
      * Updates the authorization state based on a new token response.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     public void update(
             @Nullable TokenResponse tokenResponse,
             @Nullable Exception authError) {
         checkArgument(tokenResponse != null ^ authError != null,
                 "exactly one of authResponse or authError should be non-null");
+        update(tokenResponse, authError, false);
+    }
 
-        if (mAuthorizationExceptionCode != null) {
-            // Calling updateFromTokenResponse while in an error state probably means the developer
-            // obtained a new token and did the exchange without also calling
-            // updateFromAuthorizationResponse. Attempt to handle this gracefully, but warn the
-            // developer that this is unexpected.
-            Logger.warn("AuthState.updateFromTokenResponse should not be called in an error state"
-                    + "(%d), call updateFromAuthorizationResponse with the result of the fresh"
-                    + "authorization response first",
-                    mAuthorizationExceptionCode);
-            mAuthorizationExceptionCode = null;
-        }
-
-        if (authError != null) {
-            // TODO
-            return;
-        }
+    /**
+     * Updates the authorization state based on a new token response, optionally clearing any
+     * forced token refresh in the same update, and returns the updated snapshot.
+     */
+    @NonNull
+    private Snapshot update(
+            @Nullable TokenResponse tokenResponse,
+            @Nullable Exception authError,
+            boolean clearNeedsTokenRefreshOverride) {
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = readResponses();
+            if (current.authorizationExceptionCode != null) {
+                // Calling updateFromTokenResponse while in an error state probably means the
+                // developer obtained a new token and did the exchange without also calling
+                // updateFromAuthorizationResponse. Attempt to handle this gracefully, but warn
+                // the developer that this is unexpected.
+                Logger.warn("AuthState.updateFromTokenResponse should not be called in an error "
+                        + "state (%d), call updateFromAuthorizationResponse with the result of "
+                        + "the fresh authorization response first",
+                        current.authorizationExceptionCode);
+            }
 
-        mLastTokenResponse = tokenResponse;
-        if (tokenResponse.scope != null) {
-            mScope = tokenResponse.scope;
-        }
-        if (tokenResponse.refreshToken != null) {
-            mRefreshToken = tokenResponse.refreshToken;
-        }
+            if (authError != null) {
+                // TODO
+                if (current.authorizationExceptionCode == null) {
+                    return current;
+                }
+                updated = new Snapshot(
+                        current.refreshToken,
+                        current.scope,
+                        null,
+                        current.lastAuthorizationResponse,
+                        current.lastTokenResponse,
+                        null,
+                        current.needsTokenRefreshOverride);
+            } else {
+                updated = new Snapshot(
+                        (tokenResponse.refreshToken != null)
+                                ? tokenResponse.refreshToken
+                                : current.refreshToken,
+                        (tokenResponse.scope != null) ? tokenResponse.scope : current.scope,
+                        null,
+                        current.lastAuthorizationResponse,
+                        tokenResponse,
+                        null,
+                        current.needsTokenRefreshOverride && !clearNeedsTokenRefreshOverride);
+            }
+        } while (!mSnapshot.compareAndSet(current, updated));
+        return updated;
     }
 
     /**
@@ -334,6 +369,16 @@ public class AuthState {
      * Ensures that a non-expired access token is available before invoking the provided action.
      * If a token refresh is required, the provided additional parameters will be included in this
      * refresh request.
+     *
+     * <p>At most one token refresh is in progress for an authorization state at any time. If
+     * a refresh is already in progress when this method is called, the action is queued and
+     * invoked with the result of that refresh, and the provided additional parameters are not
+     * used. This avoids redundant requests to the token endpoint, and avoids invalidating the
+     * refresh token used by concurrent requests when the authorization service rotates refresh
+     * tokens. If the refresh is cancelled, for instance because the service which performs it is
+     * {@link AuthorizationService#dispose() disposed}, the action and any queued actions are
+     * invoked with {@link GeneralErrors#PROGRAM_CANCELED_AUTH_FLOW}, and may retry the refresh
+     * using another service.
      */
     public void performActionWithFreshTokens(
             @NonNull AuthorizationService service,
@@ -357,30 +402,93 @@ public class AuthState {
                 "additional params cannot be null");
         checkNotNull(clock, "clock cannot be null");
         checkNotNull(action, "action cannot be null");
-        if (mRefreshToken == null) {
+        Snapshot snapshot = mSnapshot.get();
+        if (snapshot.refreshToken == null) {
             throw new IllegalStateException("No refresh token available");
         }
 
-        if (!getNeedsTokenRefresh()) {
-            action.execute(getAccessToken(), getIdToken(), null);
+        if (!snapshot.needsTokenRefresh(clock.getCurrentTimeMillis())) {
+            action.execute(snapshot.accessToken, snapshot.idToken, null);
             return;
         }
 
-        service.performTokenRequest(createTokenRefreshRequest(refreshTokenAdditionalParams),
-                new AuthorizationService.TokenResponseCallback() {
-                    @Override
-                    public void onTokenRequestCompleted(
-                            @Nullable TokenResponse response,
-                            @Nullable AuthorizationException ex) {
-                        update(response, ex);
-                        if (ex == null) {
-                            mNeedsTokenRefreshOverride = false;
-                            action.execute(getAccessToken(), getIdToken(), null);
-                        } else {
-                            action.execute(null, null, ex);
+        performTokenRefresh(service, refreshTokenAdditionalParams, action);
+    }
+
+    /**
+     * Refreshes the access token irrespective of its expiration time, then invokes the provided
+     * action with the result. If a refresh is already in progress, the action is instead queued
+     * to receive the result of that refresh.
+     */
+    void performTokenRefresh(
+            @NonNull AuthorizationService service,
+            @NonNull Map<String, String> refreshTokenAdditionalParams,
+            @NonNull AuthStateAction action) {
+        if (getRefreshToken() == null) {
+            throw new IllegalStateException("No refresh token available");
+        }
+
+        synchronized (mPendingActionsSyncObject) {
+            if (mPendingActions != null) {
+                Logger.debug("Token refresh already in progress, queuing action");
+                mPendingActions.add(action);
+                return;
+            }
+
+            mPendingActions = new ArrayList<>();
+            mPendingActions.add(action);
+        }
+
+        try {
+            service.performTokenRequest(createTokenRefreshRequest(refreshTokenAdditionalParams),
+                    new AuthorizationService.CancellableTokenResponseCallback() {
+                        @Override
+                        public void onTokenRequestCompleted(
+                                @Nullable TokenResponse response,
+                                @Nullable AuthorizationException ex) {
+                            // the tokens are taken from the snapshot installed by this update,
+                            // even if the state is updated again before the actions are invoked
+                            Snapshot updated = update(response, ex, ex == null);
+                            String accessToken = null;
+                            String idToken = null;
+                            if (ex == null) {
+                                accessToken = updated.accessToken;
+                                idToken = updated.idToken;
+                            }
+
+                            for (AuthStateAction pendingAction : takePendingActions()) {
+                                pendingAction.execute(accessToken, idToken, ex);
+                            }
+                        }
+
+                        @Override
+                        public void onTokenRequestCancelled() {
+                            // queued actions may belong to the owners of other services, which
+                            // are still waiting for a result; the state itself is not updated
+                            Logger.debug("Token refresh cancelled, failing pending actions");
+                            for (AuthStateAction pendingAction : takePendingActions()) {
+                                pendingAction.execute(
+                                        null, null, GeneralErrors.PROGRAM_CANCELED_AUTH_FLOW);
+                            }
                         }
-                    }
-                });
+                    });
+        } catch (RuntimeException ex) {
+            // the refresh could not be dispatched, so no callback will be received
+            takePendingActions();
+            throw ex;
+        }
+    }
+
+    @NonNull
+    private List<AuthStateAction> takePendingActions() {
+        synchronized (mPendingActionsSyncObject) {
+            List<AuthStateAction> actions = mPendingActions;
+            mPendingActions = null;
+            if (actions == null) {
+                return Collections.emptyList();
+            }
+            return actions;
+        }
     }
 
     /**
@@ -393,55 +501,113 @@ public class AuthState {
     /**
      * Creates a token request for new tokens using the current refresh token, adding the
      * specified additional parameters.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     public TokenRequest createTokenRefreshRequest(
             @NonNull Map<String, String> additionalParameters) {
-        if (mRefreshToken == null) {
+        Snapshot snapshot = mSnapshot.get();
+        if (snapshot.refreshToken == null) {
             throw new IllegalStateException("No refresh token available for refresh request");
         }
-        if (mLastAuthorizationResponse == null) {
+        snapshot = readResponses();
+        AuthorizationResponse authResponse = snapshot.lastAuthorizationResponse;
+        if (authResponse == null) {
             throw new IllegalStateException(
                     "No authorization configuration available for refresh request");
         }
 
         return new TokenRequest.Builder(
-                mLastAuthorizationResponse.request.configuration,
-                mLastAuthorizationResponse.request.clientId)
+                authResponse.request.configuration,
+                authResponse.request.clientId)
                 .setGrantType(TokenRequest.GRANT_TYPE_REFRESH_TOKEN)
-                .setScope(mLastAuthorizationResponse.request.scope)
-                .setRefreshToken(mRefreshToken)
+                .setScope(authResponse.request.scope)
+                .setRefreshToken(snapshot.refreshToken)
                 .setAdditionalParameters(additionalParameters)
                 .build();
     }
 
     /**
      * Converts the authorization state to a JSON object for storage or transmission.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     public JSONObject toJson() {
+        Snapshot snapshot = readResponses();
         JSONObject json = new JSONObject();
-        JsonUtil.putIfNotNull(json, KEY_REFRESH_TOKEN, mRefreshToken);
-        JsonUtil.putIfNotNull(json, KEY_SCOPE, mScope);
-        JsonUtil.putIfNotNull(json, KEY_AUTHORIZATION_EXCEPTION, mAuthorizationExceptionCode);
-        if (mLastAuthorizationResponse != null) {
+        JsonUtil.putIfNotNull(json, KEY_REFRESH_TOKEN, snapshot.refreshToken);
+        JsonUtil.putIfNotNull(json, KEY_SCOPE, snapshot.scope);
+        JsonUtil.putIfNotNull(
+                json,
+                KEY_AUTHORIZATION_EXCEPTION,
+                snapshot.authorizationExceptionCode);
+        if (snapshot.lastAuthorizationResponse != null) {
             JsonUtil.put(
                     json,
                     KEY_LAST_AUTHORIZATION_RESPONSE,
-                    mLastAuthorizationResponse.toJson());
+                    snapshot.lastAuthorizationResponse.toJson());
         }
-        if (mLastTokenResponse != null) {
+        if (snapshot.lastTokenResponse != null) {
             JsonUtil.put(
                     json,
                     KEY_LAST_TOKEN_RESPONSE,
-                    mLastTokenResponse.toJson());
+                    snapshot.lastTokenResponse.toJson());
         }
         return json;
     }
 
+    /**
+     * Writes the authorization state to the provided JSON writer, in the same form as
+     * {@link #toJson()}.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
+     */
+    public void writeJson(@NonNull JsonWriter writer) throws IOException {
+        checkNotNull(writer, "writer cannot be null");
+        Snapshot snapshot = readResponses();
+        writer.beginObject();
+        JsonUtil.writeIfNotNull(writer, KEY_REFRESH_TOKEN, snapshot.refreshToken);
+        JsonUtil.writeIfNotNull(writer, KEY_SCOPE, snapshot.scope);
+        JsonUtil.writeIfNotNull(
+                writer,
+                KEY_AUTHORIZATION_EXCEPTION,
+                snapshot.authorizationExceptionCode);
+        if (snapshot.lastAuthorizationResponse != null) {
+            writer.name(KEY_LAST_AUTHORIZATION_RESPONSE);
+            snapshot.lastAuthorizationResponse.writeJson(writer);
+        }
+        if (snapshot.lastTokenResponse != null) {
+            writer.name(KEY_LAST_TOKEN_RESPONSE);
+            snapshot.lastTokenResponse.writeJson(writer);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes the authorization state as UTF-8 encoded JSON to the provided stream, such as a
+     * file, without an intermediate string. The stream is flushed, but not closed.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
+     */
+    public void writeJson(@NonNull OutputStream out) throws IOException {
+        JsonWriter writer = JsonUtil.newWriter(out);
+        writeJson(writer);
+        writer.flush();
+    }
+
     /**
      * Converts the authorization state to a JSON string for storage or transmission.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
      */
     public String toJsonString() {
-        return toJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(new JsonWriter(out));
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a string", ex);
+        }
+        return out.toString();
     }
 
     /**
@@ -451,21 +617,25 @@ public class AuthState {
     public static AuthState fromJson(@NonNull JSONObject json) throws JSONException {
         checkNotNull(json, "json cannot be null");
 
-        AuthState state = new AuthState();
-        state.mRefreshToken = JsonUtil.getStringIfDefined(json, KEY_REFRESH_TOKEN);
-        state.mScope = JsonUtil.getStringIfDefined(json, KEY_SCOPE);
-        state.mAuthorizationExceptionCode =
-                JsonUtil.getLongIfDefined(json, KEY_AUTHORIZATION_EXCEPTION);
+        AuthorizationResponse authResponse = null;
         if (json.has(KEY_LAST_AUTHORIZATION_RESPONSE)) {
-            state.mLastAuthorizationResponse = AuthorizationResponse.fromJson(
+            authResponse = AuthorizationResponse.fromJson(
                     json.getJSONObject(KEY_LAST_AUTHORIZATION_RESPONSE));
         }
+        TokenResponse tokenResponse = null;
         if (json.has(KEY_LAST_TOKEN_RESPONSE)) {
-            state.mLastTokenResponse = TokenResponse.fromJson(
+            tokenResponse = TokenResponse.fromJson(
                     json.getJSONObject(KEY_LAST_TOKEN_RESPONSE));
         }
 
-        return state;
+        return new AuthState(new Snapshot(
+                JsonUtil.getStringIfDefined(json, KEY_REFRESH_TOKEN),
+                JsonUtil.getStringIfDefined(json, KEY_SCOPE),
+                JsonUtil.getLongIfDefined(json, KEY_AUTHORIZATION_EXCEPTION),
+                authResponse,
+                tokenResponse,
+                null,
+                false));
     }
 
     /**
@@ -474,7 +644,392 @@ public class AuthState {
      */
     public static AuthState fromJson(@NonNull String jsonStr) throws JSONException {
         checkNotEmpty(jsonStr, "jsonStr cannot be null or empty");
-        return fromJson(new JSONObject(jsonStr));
+        try {
+            return readJson(JsonUtil.newReader(jsonStr));
+        } catch (IOException ex) {
+            throw JsonUtil.toJsonException("Malformed authorization state JSON", ex);
+        }
+    }
+
+    /**
+     * Restores authorization state from UTF-8 encoded JSON read from the provided stream, such
+     * as a file written by {@link #writeJson(OutputStream)}, without an intermediate string.
+     * The stream is not closed.
+     * @throws IOException if the stream cannot be read.
+     * @throws JSONException if the JSON is malformed or missing required fields.
+     */
+    public static AuthState readJson(@NonNull InputStream in) throws IOException, JSONException {
+        try {
+            return readJson(JsonUtil.newReader(in));
+        } catch (MalformedJsonException | EOFException ex) {
+            throw JsonUtil.toJsonException("Malformed authorization state JSON", ex);
+        }
+    }
+
+    /**
+     * Restores authorization state from the provided JSON reader, consuming an object in the
+     * form produced by {@link #writeJson(JsonWriter)} or {@link #toJson()}.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the JSON is missing required fields.
+     */
+    public static AuthState readJson(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        checkNotNull(reader, "reader cannot be null");
+
+        String refreshToken = null;
+        String scope = null;
+        Long authorizationExceptionCode = null;
+        AuthorizationResponse authResponse = null;
+        TokenResponse tokenResponse = null;
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_REFRESH_TOKEN:
+                    refreshToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_SCOPE:
+                    scope = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_AUTHORIZATION_EXCEPTION:
+                    authorizationExceptionCode = JsonUtil.nextLong(reader);
+                    break;
+                case KEY_LAST_AUTHORIZATION_RESPONSE:
+                    authResponse = AuthorizationResponse.readJson(reader);
+                    break;
+                case KEY_LAST_TOKEN_RESPONSE:
+                    tokenResponse = TokenResponse.readJson(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new AuthState(new Snapshot(
+                refreshToken,
+                scope,
+                authorizationExceptionCode,
+                authResponse,
+                tokenResponse,
+                null,
+                false));
+    }
+
+    /**
+     * Converts the authorization state to a compact, versioned binary form for storage. The
+     * binary form is several times smaller than the JSON form, and faster to produce and read;
+     * it is restored by {@link #fromByteArray(byte[])}.
+     * @throws IllegalStateException if the responses restored by {@link #fromByteArray(byte[])}
+     *     are malformed.
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        Snapshot snapshot = readResponses();
+        try {
+            AuthStateCodec.Writer writer = new AuthStateCodec.Writer();
+            writer.writeString(snapshot.refreshToken);
+            writer.writeString(snapshot.scope);
+            writer.writeLong(snapshot.authorizationExceptionCode);
+
+            // the current tokens precede the responses from which they are derived, so that they
+            // can be restored without reading the responses
+            writer.writeString(snapshot.accessToken);
+            writer.writeLong(snapshot.accessTokenExpirationTime);
+            writer.writeString(snapshot.idToken);
+            AuthStateCodec.Writer responses = writer.newSection();
+            responses.writeAuthorizationResponse(snapshot.lastAuthorizationResponse);
+            responses.writeTokenResponse(snapshot.lastTokenResponse);
+            writer.writeSection(responses);
+            return writer.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a byte array", ex);
+        }
+    }
+
+    /**
+     * Restores authorization state from the binary form produced by {@link #toByteArray()}.
+     * Only the refresh token, scope and current tokens are decoded immediately; the
+     * authorization and token responses, including their requests and service configuration,
+     * are decoded on first use.
+     *
+     * <p>To allow stored state to be migrated, UTF-8 encoded JSON produced by
+     * {@link #toJsonString()} or {@link #writeJson(OutputStream)} is also accepted; such state
+     * is read in full, and converted to the binary form when next stored.
+     *
+     * <p>As the responses are decoded on first use, data which is only malformed within the
+     * responses is not detected here. Instead, an {@link IllegalStateException} is thrown by
+     * the first method which uses them, such as {@link #getLastTokenResponse()},
+     * {@link #createTokenRefreshRequest()} or {@link #toByteArray()}.
+     * @throws JSONException if the data is malformed, of an unsupported version, or missing
+     *     required fields.
+     */
+    public static AuthState fromByteArray(@NonNull byte[] data) throws JSONException {
+        checkNotNull(data, "data cannot be null");
+        if (!AuthStateCodec.isBinary(data)) {
+            try {
+                return readJson(new ByteArrayInputStream(data));
+            } catch (IOException ex) {
+                throw JsonUtil.toJsonException("Malformed authorization state JSON", ex);
+            }
+        }
+
+        try {
+            AuthStateCodec.Reader reader = new AuthStateCodec.Reader(data);
+            String refreshToken = reader.readString();
+            String scope = reader.readString();
+            Long authorizationExceptionCode = reader.readLong();
+            String accessToken = reader.readString();
+            Long accessTokenExpirationTime = reader.readLong();
+            String idToken = reader.readString();
+            reader.beginSection();
+            return new AuthState(new Snapshot(
+                    refreshToken,
+                    scope,
+                    authorizationExceptionCode,
+                    null,
+                    null,
+                    new UnreadResponses(
+                            reader,
+                            accessToken,
+                            accessTokenExpirationTime,
+                            idToken),
+                    false));
+        } catch (IOException | IllegalArgumentException ex) {
+            throw JsonUtil.toJsonException("Malformed binary authorization state", ex);
+        }
+    }
+
+    /**
+     * Returns the current snapshot, after reading the responses restored from the binary form
+     * if they have not yet been read.
+     * @throws IllegalStateException if the responses are malformed.
+     */
+    @NonNull
+    private Snapshot readResponses() {
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = mSnapshot.get();
+            UnreadResponses unread = current.unreadResponses;
+            if (unread == null) {
+                return current;
+            }
+            unread.read();
+            updated = current.withResponses(unread.authorizationResponse, unread.tokenResponse);
+        } while (!mSnapshot.compareAndSet(current, updated));
+        return updated;
+    }
+
+    /**
+     * Creates a copy of the authorization state, which is unaffected by subsequent updates to
+     * this instance. As the state is immutable, the copy shares it, and is inexpensive.
+     * Actions awaiting fresh tokens are not copied.
+     */
+    @NonNull
+    AuthState snapshot() {
+        return new AuthState(mSnapshot.get());
+    }
+
+    /**
+     * Replaces the authorization state with that of another instance, such as one read from
+     * storage after being updated by another process. Actions awaiting fresh tokens are not
+     * affected.
+     */
+    void copyFrom(@NonNull AuthState other) {
+        mSnapshot.set(other.mSnapshot.get());
+    }
+
+    /**
+     * Whether responses restored from the binary form have yet to be read.
+     */
+    @VisibleForTesting
+    boolean hasUnreadResponses() {
+        return mSnapshot.get().unreadResponses != null;
+    }
+
+    /**
+     * Responses restored from the binary form which have not yet been read, together with the
+     * current tokens derived from them. The responses are read at most once, even if shared by
+     * several {@link #snapshot() snapshots}.
+     */
+    private static final class UnreadResponses {
+
+        @NonNull
+        final AuthStateCodec.Reader reader;
+
+        @Nullable
+        final String accessToken;
+
+        @Nullable
+        final Long accessTokenExpirationTime;
+
+        @Nullable
+        final String idToken;
+
+        @Nullable
+        AuthorizationResponse authorizationResponse;
+
+        @Nullable
+        TokenResponse tokenResponse;
+
+        private boolean mRead;
+
+        UnreadResponses(
+                @NonNull AuthStateCodec.Reader reader,
+                @Nullable String accessToken,
+                @Nullable Long accessTokenExpirationTime,
+                @Nullable String idToken) {
+            this.reader = reader;
+            this.accessToken = accessToken;
+            this.accessTokenExpirationTime = accessTokenExpirationTime;
+            this.idToken = idToken;
+        }
+
+        /**
+         * Reads the responses, if they have not already been read.
+         * @throws IllegalStateException if the responses are malformed.
+         */
+        synchronized void read() {
+            if (mRead) {
+                return;
+            }
+            try {
+                authorizationResponse = reader.readAuthorizationResponse();
+                tokenResponse = reader.readTokenResponse();
+            } catch (IOException | JSONException | IllegalArgumentException ex) {
+                throw new IllegalStateException("Malformed binary authorization state", ex);
+            }
+            mRead = true;
+        }
+    }
+
+    /**
+     * An immutable authorization state. The current tokens and the time from which the access
+     * token needs to be refreshed are derived once, when the snapshot is created, rather than
+     * on each read.
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(null, null, null, null, null, null, false);
+
+        @Nullable
+        final String refreshToken;
+
+        @Nullable
+        final String scope;
+
+        @Nullable
+        final Long authorizationExceptionCode;
+
+        @Nullable
+        final AuthorizationResponse lastAuthorizationResponse;
+
+        @Nullable
+        final TokenResponse lastTokenResponse;
+
+        /**
+         * The responses restored from the binary form which have not yet been read, if any, in
+         * which case the last responses are {@code null}. The responses are read on first use,
+         * while the current tokens are available without doing so.
+         */
+        @Nullable
+        final UnreadResponses unreadResponses;
+
+        final boolean needsTokenRefreshOverride;
+
+        @Nullable
+        final String accessToken;
+
+        @Nullable
+        final Long accessTokenExpirationTime;
+
+        @Nullable
+        final String idToken;
+
+        /**
+         * The time from which the access token is considered to have expired, allowing for
+         * {@link #EXPIRY_TIME_TOLERANCE_MS}, or {@link Long#MAX_VALUE} if it does not expire.
+         */
+        final long refreshTime;
+
+        Snapshot(
+                @Nullable String refreshToken,
+                @Nullable String scope,
+                @Nullable Long authorizationExceptionCode,
+                @Nullable AuthorizationResponse lastAuthorizationResponse,
+                @Nullable TokenResponse lastTokenResponse,
+                @Nullable UnreadResponses unreadResponses,
+                boolean needsTokenRefreshOverride) {
+            this.refreshToken = refreshToken;
+            this.scope = scope;
+            this.authorizationExceptionCode = authorizationExceptionCode;
+            this.lastAuthorizationResponse = lastAuthorizationResponse;
+            this.lastTokenResponse = lastTokenResponse;
+            this.unreadResponses = unreadResponses;
+            this.needsTokenRefreshOverride = needsTokenRefreshOverride;
+
+            String accessToken = null;
+            Long accessTokenExpirationTime = null;
+            String idToken = null;
+            // no tokens are current in an error state
+            if (authorizationExceptionCode == null) {
+                if (unreadResponses != null) {
+                    accessToken = unreadResponses.accessToken;
+                    accessTokenExpirationTime = unreadResponses.accessTokenExpirationTime;
+                    idToken = unreadResponses.idToken;
+                } else if (lastTokenResponse != null) {
+                    accessToken = lastTokenResponse.accessToken;
+                    accessTokenExpirationTime = lastTokenResponse.accessTokenExpirationTime;
+                    idToken = lastTokenResponse.idToken;
+                } else if (lastAuthorizationResponse != null) {
+                    accessToken = lastAuthorizationResponse.accessToken;
+                    accessTokenExpirationTime =
+                            lastAuthorizationResponse.accessTokenExpirationTime;
+                    idToken = lastAuthorizationResponse.idToken;
+                }
+            }
+            this.accessToken = accessToken;
+            this.accessTokenExpirationTime = accessTokenExpirationTime;
+            this.idToken = idToken;
+
+            if (accessTokenExpirationTime == null
+                    || accessTokenExpirationTime > Long.MAX_VALUE - EXPIRY_TIME_TOLERANCE_MS) {
+                this.refreshTime = Long.MAX_VALUE;
+            } else {
+                this.refreshTime = accessTokenExpirationTime + EXPIRY_TIME_TOLERANCE_MS;
+            }
+        }
+
+        boolean needsTokenRefresh(long currentTimeMillis) {
+            return needsTokenRefreshOverride || refreshTime <= currentTimeMillis;
+        }
+
+        @NonNull
+        Snapshot withResponses(
+                @Nullable AuthorizationResponse authResponse,
+                @Nullable TokenResponse tokenResponse) {
+            return new Snapshot(
+                    refreshToken,
+                    scope,
+                    authorizationExceptionCode,
+                    authResponse,
+                    tokenResponse,
+                    null,
+                    needsTokenRefreshOverride);
+        }
+
+        @NonNull
+        Snapshot withNeedsTokenRefreshOverride(boolean override) {
+            return new Snapshot(
+                    refreshToken,
+                    scope,
+                    authorizationExceptionCode,
+                    lastAuthorizationResponse,
+                    lastTokenResponse,
+                    unreadResponses,
+                    override);
+        }
     }
 
     /**
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotEmpty;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import net.openid.appauth.AuthState.AuthStateAction;
+import net.openid.appauth.AuthorizationException.TokenRequestErrors;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coordinates token refreshes of the states in an {@link AuthStateStore} across the processes
+ * of an application, so that each expired access token is refreshed once, rather than once
+ * per process. Without coordination, processes which each hold a copy of a state refresh
+ * independently, and where the authorization service rotates refresh tokens, each refresh
+ * invalidates the refresh token held by the other processes.
+ *
+ * <p>Each process creates a broker for a store of the same directory, and uses
+ * {@link #performActionWithFreshTokens(String, AuthorizationService, AuthStateAction)} in place
+ * of {@link AuthState#performActionWithFreshTokens(AuthorizationService, AuthStateAction)}.
+ * While the access token in memory is fresh, the action is invoked immediately. Otherwise, the
+ * broker takes an exclusive lock on a file alongside the state, which other processes wait
+ * for, and reads the state from disk again: if another process has refreshed it in the
+ * meantime, the new tokens are used. Only if the stored token also needs to be refreshed is a
+ * refresh performed, and the lock is held until the refreshed state has been written to disk.
+ *
+ * <p>A single broker should be used per store in each process. Actions are invoked on the main
+ * thread. If the lock cannot be taken, e.g. as the file system does not support locks, the
+ * refresh proceeds without cross-process coordination.
+ */
+public final class AuthStateBroker {
+
+    @NonNull
+    private final AuthStateStore mStore;
+
+    /**
+     * The thread on which locks are taken and released, as taking a lock blocks until other
+     * processes release it.
+     */
+    @NonNull
+    private final Handler mWorkerHandler;
+
+    @NonNull
+    private final Handler mMainHandler;
+
+    /**
+     * The locks held by this process, by key. Only accessed on the worker thread.
+     */
+    private final Map<String, Lease> mHeldLocks = new HashMap<>();
+
+    /**
+     * Creates a broker which coordinates refreshes of the states in the specified store.
+     */
+    public AuthStateBroker(@NonNull AuthStateStore store) {
+        this(store, createWorkerHandler(), new Handler(Looper.getMainLooper()));
+    }
+
+    @VisibleForTesting
+    AuthStateBroker(
+            @NonNull AuthStateStore store,
+            @NonNull Handler workerHandler,
+            @NonNull Handler mainHandler) {
+        mStore = checkNotNull(store, "store cannot be null");
+        mWorkerHandler = checkNotNull(workerHandler, "workerHandler cannot be null");
+        mMainHandler = checkNotNull(mainHandler, "mainHandler cannot be null");
+    }
+
+    /**
+     * Ensures that a non-expired access token is available for the state stored under the
+     * specified key before invoking the provided action, refreshing the token at most once
+     * across all processes which use a broker for the same directory. The refreshed state is
+     * written to the store.
+     *
+     * @throws IllegalArgumentException if no state is stored under the key.
+     * @throws IllegalStateException if the state has no refresh token.
+     */
+    public void performActionWithFreshTokens(
+            @NonNull final String key,
+            @NonNull final AuthorizationService service,
+            @NonNull final AuthStateAction action) {
+        checkNotEmpty(key, "key cannot be null or empty");
+        checkNotNull(service, "service cannot be null");
+        checkNotNull(action, "action cannot be null");
+        AuthState state = mStore.read(key);
+        checkArgument(state != null, "no state is stored for key");
+        if (state.getRefreshToken() == null) {
+            throw new IllegalStateException("No refresh token available");
+        }
+
+        if (!state.getNeedsTokenRefresh()) {
+            state.performActionWithFreshTokens(service, action);
+            return;
+        }
+
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                refreshLocked(key, service, action);
+            }
+        });
+    }
+
+    /**
+     * Takes the lock for the key, unless this process already holds it, and then performs the
+     * action with the stored state. Runs on the worker thread.
+     */
+    private void refreshLocked(
+            final String key,
+            final AuthorizationService service,
+            final AuthStateAction action) {
+        final AuthState state;
+        Lease lease = mHeldLocks.get(key);
+        boolean joined = lease != null;
+        if (joined) {
+            // a refresh by this process is in progress, or its result is not yet written, so
+            // the state in memory is at least as current as that on disk. The lease is released
+            // by the refresh which created it, once its result is written
+            state = mStore.read(key);
+        } else {
+            FileLock lock = null;
+            try {
+                lock = Utils.acquireLock(mStore.getLockFile(key));
+            } catch (IOException ex) {
+                Logger.warn("Unable to lock authorization state %s, refreshing without "
+                        + "coordination: %s", key, ex.getMessage());
+            }
+            lease = new Lease(lock);
+            mHeldLocks.put(key, lease);
+
+            // another process may have refreshed the state while the lock was awaited
+            state = mStore.reload(key);
+        }
+
+        if (state == null || state.getRefreshToken() == null) {
+            // signed out, possibly by another process, while the lock was awaited
+            Logger.warn("Authorization state %s was removed before it could be refreshed", key);
+            if (!joined) {
+                release(key, lease, null);
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    action.execute(null, null, TokenRequestErrors.INVALID_GRANT);
+                }
+            });
+            return;
+        }
+        if (!joined && !state.getNeedsTokenRefresh()) {
+            // refreshed by another process while the lock was awaited
+            release(key, lease, null);
+        }
+
+        // the action below is invoked on completion, failure or cancellation of the refresh, so
+        // the lease is always released, and the state written first if it was refreshed
+        final Lease heldLease = lease;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    state.performActionWithFreshTokens(service, new AuthStateAction() {
+                        @Override
+                        public void execute(
+                                @Nullable String accessToken,
+                                @Nullable String idToken,
+                                @Nullable AuthorizationException ex) {
+                            postRelease(key, heldLease, (ex == null) ? state : null);
+                            action.execute(accessToken, idToken, ex);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    // the refresh could not be dispatched, e.g. as the service was disposed
+                    postRelease(key, heldLease, null);
+                    throw ex;
+                }
+            }
+        });
+    }
+
+    private void postRelease(
+            final String key,
+            final Lease lease,
+            @Nullable final AuthState refreshed) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                release(key, lease, refreshed);
+            }
+        });
+    }
+
+    /**
+     * Writes the refreshed state, if any, to disk, and then releases the lock for the key, if
+     * it is still held under the specified lease. Runs on the worker thread.
+     */
+    private void release(String key, Lease lease, @Nullable AuthState refreshed) {
+        if (mHeldLocks.get(key) != lease) {
+            // already released, possibly followed by a new lease for a later refresh
+            return;
+        }
+
+        if (refreshed != null) {
+            mStore.write(key, refreshed);
+            mStore.flush();
+        }
+
+        mHeldLocks.remove(key);
+        FileLock lock = lease.mLock;
+        if (lock != null) {
+            try {
+                Utils.releaseLock(lock);
+            } catch (IOException ex) {
+                Logger.warn("Unable to release lock for authorization state %s: %s",
+                        key, ex.getMessage());
+            }
+        }
+    }
+
+    @VisibleForTesting
+    boolean isLockHeld(@NonNull String key) {
+        return mHeldLocks.containsKey(key);
+    }
+
+    /**
+     * A hold of the lock for a key, by a single refresh. The lock itself is {@code null} if it
+     * could not be taken.
+     */
+    private static final class Lease {
+
+        @Nullable
+        final FileLock mLock;
+
+        Lease(@Nullable FileLock lock) {
+            mLock = lock;
+        }
+    }
+
+    private static Handler createWorkerHandler() {
+        HandlerThread thread = new HandlerThread(
+                "AuthStateBroker",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+}
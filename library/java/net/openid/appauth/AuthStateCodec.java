@@ -0,0 +1,505 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact binary encoding of {@link AuthState} and its component models, as produced by
+ * {@link AuthState#toByteArray()}.
+ *
+ * <p>The encoding starts with a {@link #MAGIC magic} prefix, which can never begin a JSON
+ * document, followed by a format version. Integers are written as variable-length quantities of
+ * seven bits per byte, least significant first. Fields are written in a fixed order without
+ * names, and nested objects are prefixed by a presence flag.
+ *
+ * <p>The graph is normalized, so that the values shared by its models are written once:
+ * <ul>
+ * <li>Each distinct string is written once, as its UTF-8 bytes, and later occurrences refer to it
+ * by index. The string is prefixed by a tag: zero denotes {@code null}, {@code 2n + 1} a new
+ * string of {@code n} bytes, and {@code 2(i + 1)} the {@code i}th string written.</li>
+ * <li>Each distinct service configuration, including its discovery document, is written once,
+ * and later occurrences refer to it by index. The configuration is prefixed by a tag: zero
+ * denotes a new configuration, and {@code i + 1} the {@code i}th configuration written. On read,
+ * the models which referred to the same configuration share a single instance.</li>
+ * </ul>
+ *
+ * <p>Fields which need not be read immediately may be written to a section, which is prefixed by
+ * its length and shares the values written before it. A reader can then check that the section
+ * is complete, and read its fields later.
+ *
+ * <p>The format version must be incremented for any change to the layout, and readers must
+ * continue to accept all earlier versions.
+ */
+final class AuthStateCodec {
+
+    /**
+     * The prefix of every binary encoding. The first byte is a UTF-8 continuation byte, which
+     * cannot start a UTF-8 encoded JSON document.
+     */
+    static final byte[] MAGIC = { (byte) 0xA5, 'A', 'S' };
+
+    /**
+     * The format version written by this version of the library.
+     */
+    static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int VARINT_DATA_BITS = 7;
+    private static final int VARINT_DATA_MASK = 0x7F;
+    private static final int VARINT_CONTINUATION = 0x80;
+    private static final int VARINT_MAX_SHIFT = 63;
+
+    private AuthStateCodec() {}
+
+    /**
+     * Determines whether the provided data starts with the binary encoding's magic prefix.
+     * Data which does not is expected to be UTF-8 encoded JSON.
+     */
+    static boolean isBinary(@NonNull byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the fields of an authorization state and its component models.
+     */
+    static final class Writer {
+
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        /** The index of each string written. */
+        private final Map<String, Integer> mStrings;
+
+        /** The index of each distinct configuration written. */
+        private final Map<AuthorizationServiceConfiguration, Integer> mConfigurations;
+
+        /**
+         * Creates a writer, and writes the magic prefix and format version.
+         */
+        Writer() throws IOException {
+            mStrings = new HashMap<>();
+            mConfigurations = new HashMap<>();
+            mOut.write(MAGIC);
+            writeVarLong(VERSION);
+        }
+
+        private Writer(Writer parent) {
+            mStrings = parent.mStrings;
+            mConfigurations = parent.mConfigurations;
+        }
+
+        /**
+         * Creates a writer for a section, which refers to the values written so far. The section
+         * must be {@link #writeSection(Writer) written} before any other fields.
+         */
+        @NonNull
+        Writer newSection() {
+            return new Writer(this);
+        }
+
+        /**
+         * Writes a section, prefixed by its length.
+         */
+        void writeSection(@NonNull Writer section) throws IOException {
+            byte[] bytes = section.toByteArray();
+            writeVarLong(bytes.length);
+            mOut.write(bytes);
+        }
+
+        /**
+         * Returns the encoding of the fields written so far.
+         */
+        @NonNull
+        byte[] toByteArray() throws IOException {
+            mOut.flush();
+            return mBytes.toByteArray();
+        }
+
+        void writeString(@Nullable String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+
+            Integer index = mStrings.get(value);
+            if (index != null) {
+                writeVarLong(2L * (index + 1));
+                return;
+            }
+
+            mStrings.put(value, mStrings.size());
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarLong(2L * bytes.length + 1);
+            mOut.write(bytes);
+        }
+
+        void writeUri(@Nullable Uri value) throws IOException {
+            writeString(value != null ? value.toString() : null);
+        }
+
+        void writeLong(@Nullable Long value) throws IOException {
+            mOut.writeBoolean(value != null);
+            if (value != null) {
+                writeVarLong(value);
+            }
+        }
+
+        void writeStringMap(@NonNull Map<String, String> map) throws IOException {
+            writeVarLong(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        void writeConfiguration(@NonNull AuthorizationServiceConfiguration configuration)
+                throws IOException {
+            Integer index = mConfigurations.get(configuration);
+            if (index != null) {
+                writeVarLong(index + 1L);
+                return;
+            }
+
+            mConfigurations.put(configuration, mConfigurations.size());
+            writeVarLong(0);
+
+            // the endpoints of an OpenID Connect provider are read from its discovery document
+            if (configuration.discoveryDoc != null) {
+                writeString(configuration.discoveryDoc.docJson.toString());
+            } else {
+                writeString(null);
+                writeUri(configuration.authorizationEndpoint);
+                writeUri(configuration.tokenEndpoint);
+            }
+        }
+
+        void writeAuthorizationRequest(@NonNull AuthorizationRequest request) throws IOException {
+            writeConfiguration(request.configuration);
+            writeString(request.clientId);
+            writeString(request.responseType);
+            writeUri(request.redirectUri);
+            writeString(request.scope);
+            writeString(request.state);
+            writeString(request.codeVerifier);
+            writeString(request.codeVerifierChallenge);
+            writeString(request.codeVerifierChallengeMethod);
+            writeString(request.responseMode);
+            writeStringMap(request.additionalParameters);
+        }
+
+        void writeAuthorizationResponse(@Nullable AuthorizationResponse response)
+                throws IOException {
+            mOut.writeBoolean(response != null);
+            if (response == null) {
+                return;
+            }
+            writeAuthorizationRequest(response.request);
+            writeString(response.state);
+            writeString(response.tokenType);
+            writeString(response.authorizationCode);
+            writeString(response.accessToken);
+            writeLong(response.accessTokenExpirationTime);
+            writeString(response.idToken);
+            writeString(response.scope);
+            writeStringMap(response.additionalParameters);
+        }
+
+        void writeTokenRequest(@NonNull TokenRequest request) throws IOException {
+            writeConfiguration(request.configuration);
+            writeString(request.clientId);
+            writeString(request.grantType);
+            writeUri(request.redirectUri);
+            writeString(request.authorizationCode);
+            writeString(request.scope);
+            writeString(request.refreshToken);
+            writeString(request.codeVerifier);
+            writeStringMap(request.additionalParameters);
+        }
+
+        void writeTokenResponse(@Nullable TokenResponse response) throws IOException {
+            mOut.writeBoolean(response != null);
+            if (response == null) {
+                return;
+            }
+            writeTokenRequest(response.request);
+            writeString(response.tokenType);
+            writeString(response.accessToken);
+            writeLong(response.accessTokenExpirationTime);
+            writeString(response.idToken);
+            writeString(response.refreshToken);
+            writeString(response.scope);
+            writeStringMap(response.additionalParameters);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~VARINT_DATA_MASK) != 0) {
+                mOut.writeByte((int) ((value & VARINT_DATA_MASK) | VARINT_CONTINUATION));
+                value >>>= VARINT_DATA_BITS;
+            }
+            mOut.writeByte((int) value);
+        }
+    }
+
+    /**
+     * Reads the fields of an authorization state and its component models, in the order in
+     * which they were written by a {@link Writer}.
+     */
+    static final class Reader {
+
+        private final DataInputStream mIn;
+
+        /** The strings read, in the order in which they were written. */
+        private final List<String> mStrings = new ArrayList<>();
+
+        /** The configurations read, in the order in which they were written. */
+        private final List<AuthorizationServiceConfiguration> mConfigurations = new ArrayList<>();
+
+        /**
+         * Creates a reader for the provided encoding, and checks its magic prefix and format
+         * version.
+         * @throws IOException if the data is not a binary encoding of a supported version.
+         */
+        Reader(@NonNull byte[] data) throws IOException {
+            if (!isBinary(data)) {
+                throw new IOException("Not a binary authorization state");
+            }
+            mIn = new DataInputStream(new ByteArrayInputStream(data));
+            mIn.skipBytes(MAGIC.length);
+            long version = readVarLong();
+            if (version != VERSION) {
+                throw new IOException("Unsupported authorization state version: " + version);
+            }
+        }
+
+        /**
+         * Reads the length of a section, and checks that the section is complete. The fields of
+         * the section may then be read, at any later time.
+         * @throws EOFException if the section is truncated.
+         */
+        void beginSection() throws IOException {
+            long length = readVarLong();
+            if (length > mIn.available()) {
+                throw new EOFException("Truncated section of length " + length);
+            }
+        }
+
+        @Nullable
+        String readString() throws IOException {
+            long tag = readVarLong();
+            if (tag == 0) {
+                return null;
+            }
+            if (tag % 2 == 0) {
+                long index = tag / 2 - 1;
+                if (index >= mStrings.size()) {
+                    throw new IOException("Reference to unknown string " + index);
+                }
+                return mStrings.get((int) index);
+            }
+
+            String value = readStringBytes(tag / 2);
+            mStrings.add(value);
+            return value;
+        }
+
+        private String readStringBytes(long length) throws IOException {
+            if (length > mIn.available()) {
+                throw new EOFException("Truncated string of length " + length);
+            }
+            byte[] bytes = new byte[(int) length];
+            mIn.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        @NonNull
+        String readRequiredString(@NonNull String field) throws IOException {
+            String value = readString();
+            if (value == null) {
+                throw new IOException("Missing required field: " + field);
+            }
+            return value;
+        }
+
+        @Nullable
+        Uri readUri() throws IOException {
+            String value = readString();
+            return value != null ? Uri.parse(value) : null;
+        }
+
+        @Nullable
+        Long readLong() throws IOException {
+            return mIn.readBoolean() ? readVarLong() : null;
+        }
+
+        @NonNull
+        Map<String, String> readStringMap() throws IOException {
+            long size = readVarLong();
+            if (size == 0) {
+                return Collections.emptyMap();
+            }
+            if (size > mIn.available()) {
+                throw new EOFException("Truncated map of size " + size);
+            }
+            Map<String, String> map = new LinkedHashMap<>();
+            for (long i = 0; i < size; i++) {
+                map.put(readRequiredString("key"), readRequiredString("value"));
+            }
+            return map;
+        }
+
+        @NonNull
+        AuthorizationServiceConfiguration readConfiguration()
+                throws IOException, JSONException {
+            long tag = readVarLong();
+            if (tag > 0) {
+                if (tag > mConfigurations.size()) {
+                    throw new IOException("Reference to unknown configuration " + (tag - 1));
+                }
+                return mConfigurations.get((int) tag - 1);
+            }
+
+            AuthorizationServiceConfiguration configuration = readConfigurationFields();
+            mConfigurations.add(configuration);
+            return configuration;
+        }
+
+        @NonNull
+        private AuthorizationServiceConfiguration readConfigurationFields()
+                throws IOException, JSONException {
+            String discoveryDoc = readString();
+            if (discoveryDoc == null) {
+                return new AuthorizationServiceConfiguration(
+                        Uri.parse(readRequiredString("authorizationEndpoint")),
+                        Uri.parse(readRequiredString("tokenEndpoint"))).intern();
+            }
+
+            try {
+                return new AuthorizationServiceConfiguration(
+                        new AuthorizationServiceDiscovery(
+                                JsonUtil.parseJsonObject(discoveryDoc))).intern();
+            } catch (AuthorizationServiceDiscovery.MissingArgumentException ex) {
+                throw new JSONException("Missing required field in discovery doc: "
+                        + ex.getMissingField());
+            }
+        }
+
+        @NonNull
+        AuthorizationRequest readAuthorizationRequest() throws IOException, JSONException {
+            AuthorizationServiceConfiguration configuration = readConfiguration();
+            String clientId = readRequiredString("clientId");
+            String responseType = readRequiredString("responseType");
+            Uri redirectUri = Uri.parse(readRequiredString("redirectUri"));
+            return new AuthorizationRequest.Builder(
+                    configuration,
+                    clientId,
+                    responseType,
+                    redirectUri)
+                    .setScope(readString())
+                    .setState(readString())
+                    .setCodeVerifier(readString(), readString(), readString())
+                    .setResponseMode(readString())
+                    .setAdditionalParameters(readStringMap())
+                    .build();
+        }
+
+        @Nullable
+        AuthorizationResponse readAuthorizationResponse() throws IOException, JSONException {
+            if (!mIn.readBoolean()) {
+                return null;
+            }
+            return new AuthorizationResponse.Builder(readAuthorizationRequest())
+                    .setState(readString())
+                    .setTokenType(readString())
+                    .setAuthorizationCode(readString())
+                    .setAccessToken(readString())
+                    .setAccessTokenExpirationTime(readLong())
+                    .setIdToken(readString())
+                    .setScope(readString())
+                    .setAdditionalParameters(readStringMap())
+                    .build();
+        }
+
+        @NonNull
+        TokenRequest readTokenRequest() throws IOException, JSONException {
+            AuthorizationServiceConfiguration configuration = readConfiguration();
+            String clientId = readRequiredString("clientId");
+            return new TokenRequest.Builder(configuration, clientId)
+                    .setGrantType(readRequiredString("grantType"))
+                    .setRedirectUri(readUri())
+                    .setAuthorizationCode(readString())
+                    .setScope(readString())
+                    .setRefreshToken(readString())
+                    .setCodeVerifier(readString())
+                    .setAdditionalParameters(readStringMap())
+                    .build();
+        }
+
+        @Nullable
+        TokenResponse readTokenResponse() throws IOException, JSONException {
+            if (!mIn.readBoolean()) {
+                return null;
+            }
+            return new TokenResponse.Builder(readTokenRequest())
+                    .setTokenType(readString())
+                    .setAccessToken(readString())
+                    .setAccessTokenExpirationTime(readLong())
+                    .setIdToken(readString())
+                    .setRefreshToken(readString())
+                    .setScope(readString())
+                    .setAdditionalParameters(readStringMap())
+                    .build();
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift <= VARINT_MAX_SHIFT; shift += VARINT_DATA_BITS) {
+                int b = mIn.readUnsignedByte();
+                value |= (long) (b & VARINT_DATA_MASK) << shift;
+                if ((b & VARINT_CONTINUATION) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable-length integer");
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotEmpty;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A registry of the authorization states of multiple signed-in accounts, each identified by
+ * an {@link Account issuer, client ID and subject}, and persisted in an {@link AuthStateStore}.
+ *
+ * <p>Accounts are indexed by their identity, so that a state is found without scanning all
+ * accounts, and by issuer. At most a bounded number of states are held in memory; the least
+ * recently used states are released, and read from the store again on next use.
+ *
+ * <p>Each account is guarded by one of a fixed set of locks, selected by the account's
+ * identity, which is also available to callers through {@link #getLock(Account)}. Reading a
+ * state from disk, or any operation which callers perform while holding an account's lock,
+ * such as a token refresh followed by {@link #put(AuthState)}, therefore only blocks
+ * operations on the accounts which share its lock, rather than on all accounts.
+ *
+ * <p>A single instance should be shared by all users of a store. Instances are thread-safe.
+ */
+public final class AuthStateRegistry {
+
+    /**
+     * The default maximum number of states held in memory.
+     */
+    public static final int DEFAULT_MAX_RESIDENT_STATES = 16;
+
+    /**
+     * The number of account locks. A power of two, so that a lock is selected by masking.
+     */
+    @VisibleForTesting
+    static final int LOCK_COUNT = 32;
+
+    private static final int HASH_SPREAD_SHIFT = 16;
+
+    private static final int STORAGE_KEY_PARTS = 3;
+
+    private static final int ID_TOKEN_ENCODING =
+            Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE;
+
+    private static final String CLAIM_ISSUER = "iss";
+    private static final String CLAIM_SUBJECT = "sub";
+
+    @NonNull
+    private final AuthStateStore mStore;
+
+    private final int mMaxResidentStates;
+
+    @NonNull
+    private final Object[] mLocks;
+
+    /**
+     * The states held in memory, in access order. Guarded by itself.
+     */
+    private final LinkedHashMap<Account, AuthState> mResident;
+
+    /**
+     * The known accounts, by issuer; {@code null} until first used, when it is loaded from the
+     * store. Guarded by {@link #mResident}.
+     */
+    @Nullable
+    private Map<String, Set<Account>> mAccountsByIssuer;
+
+    /**
+     * Creates a registry which persists states in the specified store, and holds up to
+     * {@link #DEFAULT_MAX_RESIDENT_STATES} states in memory.
+     */
+    public AuthStateRegistry(@NonNull AuthStateStore store) {
+        this(store, DEFAULT_MAX_RESIDENT_STATES);
+    }
+
+    /**
+     * Creates a registry which persists states in the specified store, and holds up to the
+     * specified number of states in memory.
+     */
+    public AuthStateRegistry(@NonNull AuthStateStore store, int maxResidentStates) {
+        checkArgument(maxResidentStates > 0, "maxResidentStates must be positive");
+        mStore = checkNotNull(store, "store cannot be null");
+        mMaxResidentStates = maxResidentStates;
+        mLocks = new Object[LOCK_COUNT];
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            mLocks[i] = new Object();
+        }
+        mResident = new LinkedHashMap<>(maxResidentStates, 1f, true);
+    }
+
+    /**
+     * Returns the state of the specified account, or {@code null} if the account is not
+     * registered. The state is read from the store if it is not held in memory.
+     */
+    @Nullable
+    public AuthState get(@NonNull Account account) {
+        checkNotNull(account, "account cannot be null");
+        AuthState state;
+        synchronized (mResident) {
+            state = mResident.get(account);
+        }
+        if (state != null) {
+            return state;
+        }
+
+        synchronized (getLock(account)) {
+            synchronized (mResident) {
+                state = mResident.get(account);
+            }
+            if (state == null) {
+                state = mStore.read(account.getStorageKey());
+                if (state != null) {
+                    makeResident(account, state);
+                }
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Returns the state of the account with the specified identity, or {@code null} if the
+     * account is not registered.
+     */
+    @Nullable
+    public AuthState get(
+            @NonNull String issuer,
+            @NonNull String clientId,
+            @NonNull String subject) {
+        return get(new Account(issuer, clientId, subject));
+    }
+
+    /**
+     * Registers or updates the state of the account which it identifies, and writes it to the
+     * store.
+     *
+     * @return the account identified by the state.
+     * @throws IllegalArgumentException if the state does not identify an account; see
+     *     {@link Account#fromAuthState(AuthState)}.
+     */
+    @NonNull
+    public Account put(@NonNull AuthState state) {
+        checkNotNull(state, "state cannot be null");
+        Account account = Account.fromAuthState(state);
+        checkArgument(account != null, "state does not identify an account");
+        synchronized (getLock(account)) {
+            mStore.write(account.getStorageKey(), state);
+            makeResident(account, state);
+        }
+        return account;
+    }
+
+    /**
+     * Removes the specified account and its state.
+     */
+    public void remove(@NonNull Account account) {
+        checkNotNull(account, "account cannot be null");
+        synchronized (getLock(account)) {
+            mStore.remove(account.getStorageKey());
+            synchronized (mResident) {
+                mResident.remove(account);
+                Set<Account> accounts = getAccountsByIssuer().get(account.getIssuer());
+                if (accounts != null) {
+                    accounts.remove(account);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all registered accounts.
+     */
+    @NonNull
+    public Set<Account> getAccounts() {
+        Set<Account> result = new HashSet<>();
+        synchronized (mResident) {
+            for (Set<Account> accounts : getAccountsByIssuer().values()) {
+                result.addAll(accounts);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the registered accounts of the specified issuer.
+     */
+    @NonNull
+    public Set<Account> getAccounts(@NonNull String issuer) {
+        checkNotNull(issuer, "issuer cannot be null");
+        synchronized (mResident) {
+            Set<Account> accounts = getAccountsByIssuer().get(issuer);
+            if (accounts == null) {
+                return Collections.emptySet();
+            }
+            return new HashSet<>(accounts);
+        }
+    }
+
+    /**
+     * Returns the lock which guards the specified account. Callers may hold it to serialize
+     * their own operations on the account, such as a token refresh and the subsequent
+     * {@link #put(AuthState)}, without blocking operations on most other accounts.
+     */
+    @NonNull
+    public Object getLock(@NonNull Account account) {
+        checkNotNull(account, "account cannot be null");
+        int hash = account.hashCode();
+        // spread the higher bits, as only the lowest bits select a lock
+        hash ^= (hash >>> HASH_SPREAD_SHIFT);
+        return mLocks[hash & (LOCK_COUNT - 1)];
+    }
+
+    /**
+     * The number of states currently held in memory.
+     */
+    @VisibleForTesting
+    int getResidentCount() {
+        synchronized (mResident) {
+            return mResident.size();
+        }
+    }
+
+    private void makeResident(Account account, AuthState state) {
+        Account evicted = null;
+        synchronized (mResident) {
+            mResident.put(account, state);
+            Map<String, Set<Account>> accountsByIssuer = getAccountsByIssuer();
+            Set<Account> accounts = accountsByIssuer.get(account.getIssuer());
+            if (accounts == null) {
+                accounts = new HashSet<>();
+                accountsByIssuer.put(account.getIssuer(), accounts);
+            }
+            accounts.add(account);
+
+            if (mResident.size() > mMaxResidentStates) {
+                evicted = mResident.keySet().iterator().next();
+                mResident.remove(evicted);
+            }
+        }
+
+        if (evicted != null) {
+            mStore.evict(evicted.getStorageKey());
+        }
+    }
+
+    private Map<String, Set<Account>> getAccountsByIssuer() {
+        if (mAccountsByIssuer == null) {
+            mAccountsByIssuer = new HashMap<>();
+            for (String key : mStore.getKeys()) {
+                Account account = Account.fromStorageKey(key);
+                if (account == null) {
+                    continue;
+                }
+                Set<Account> accounts = mAccountsByIssuer.get(account.getIssuer());
+                if (accounts == null) {
+                    accounts = new HashSet<>();
+                    mAccountsByIssuer.put(account.getIssuer(), accounts);
+                }
+                accounts.add(account);
+            }
+        }
+        return mAccountsByIssuer;
+    }
+
+    /**
+     * The identity of an account: the issuer and subject of its ID token, and the client
+     * to which the ID token was issued.
+     */
+    public static final class Account {
+
+        @NonNull
+        private final String mIssuer;
+
+        @NonNull
+        private final String mClientId;
+
+        @NonNull
+        private final String mSubject;
+
+        private final int mHashCode;
+
+        /**
+         * Creates an account identity.
+         */
+        public Account(
+                @NonNull String issuer,
+                @NonNull String clientId,
+                @NonNull String subject) {
+            mIssuer = checkNotEmpty(issuer, "issuer cannot be null or empty");
+            mClientId = checkNotEmpty(clientId, "clientId cannot be null or empty");
+            mSubject = checkNotEmpty(subject, "subject cannot be null or empty");
+            mHashCode = Arrays.hashCode(new Object[] { issuer, clientId, subject });
+        }
+
+        /**
+         * Returns the identity of the account to which the state belongs, or {@code null} if
+         * it cannot be determined: the state must have an ID token with issuer and subject
+         * claims, and a request from which the client ID is known.
+         *
+         * <p>The ID token is decoded, but not validated; it is expected to have been validated
+         * when it was received.
+         */
+        @Nullable
+        public static Account fromAuthState(@NonNull AuthState state) {
+            checkNotNull(state, "state cannot be null");
+            String idToken = state.getIdToken();
+            if (idToken == null) {
+                return null;
+            }
+
+            String clientId = null;
+            if (state.getLastAuthorizationResponse() != null) {
+                clientId = state.getLastAuthorizationResponse().request.clientId;
+            } else if (state.getLastTokenResponse() != null) {
+                clientId = state.getLastTokenResponse().request.clientId;
+            }
+            if (clientId == null) {
+                return null;
+            }
+
+            JSONObject claims = decodeClaims(idToken);
+            if (claims == null) {
+                return null;
+            }
+
+            String issuer = claims.optString(CLAIM_ISSUER);
+            String subject = claims.optString(CLAIM_SUBJECT);
+            if (issuer.isEmpty() || subject.isEmpty()) {
+                return null;
+            }
+            return new Account(issuer, clientId, subject);
+        }
+
+        /**
+         * The issuer of the account's ID token.
+         */
+        @NonNull
+        public String getIssuer() {
+            return mIssuer;
+        }
+
+        /**
+         * The client to which the account's ID token was issued.
+         */
+        @NonNull
+        public String getClientId() {
+            return mClientId;
+        }
+
+        /**
+         * The subject of the account's ID token, which identifies the user at the issuer.
+         */
+        @NonNull
+        public String getSubject() {
+            return mSubject;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Account)) {
+                return false;
+            }
+            Account other = (Account) obj;
+            return mHashCode == other.mHashCode
+                    && mIssuer.equals(other.mIssuer)
+                    && mClientId.equals(other.mClientId)
+                    && mSubject.equals(other.mSubject);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public String toString() {
+            return "Account(" + mIssuer + ", " + mClientId + ", " + mSubject + ")";
+        }
+
+        /**
+         * Returns the key under which the account's state is stored: a JSON array of the
+         * issuer, client ID and subject, which unlike a delimited string can be parsed
+         * unambiguously.
+         */
+        @NonNull
+        String getStorageKey() {
+            return new JSONArray()
+                    .put(mIssuer)
+                    .put(mClientId)
+                    .put(mSubject)
+                    .toString();
+        }
+
+        /**
+         * Returns the account whose state is stored under the key, or {@code null} if the key
+         * was not produced by {@link #getStorageKey()}.
+         */
+        @Nullable
+        static Account fromStorageKey(@NonNull String key) {
+            try {
+                JSONArray parts = new JSONArray(key);
+                if (parts.length() != STORAGE_KEY_PARTS) {
+                    return null;
+                }
+                return new Account(parts.getString(0), parts.getString(1), parts.getString(2));
+            } catch (JSONException | IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        @Nullable
+        private static JSONObject decodeClaims(String idToken) {
+            String[] parts = idToken.split("\\.");
+            if (parts.length < 2) {
+                return null;
+            }
+
+            try {
+                return new JSONObject(
+                        new String(Base64.decode(parts[1], ID_TOKEN_ENCODING), "UTF-8"));
+            } catch (IllegalArgumentException | JSONException ex) {
+                Logger.warn("Unable to decode ID token claims: %s", ex.getMessage());
+                return null;
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException("UTF-8 must be supported", ex);
+            }
+        }
+    }
+}
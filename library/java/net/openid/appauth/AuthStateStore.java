@@ -0,0 +1,737 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotEmpty;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.json.JSONException;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.BadPaddingException;
+
+/**
+ * Persists {@link AuthState} instances, keyed by an application-defined account key, in the
+ * {@link AuthState#toByteArray() binary form}.
+ *
+ * <p>Reads are served from memory: each state is read from disk on first use, after which the
+ * same instance is returned until it is replaced. Writes are deferred: a
+ * {@link #write(String, AuthState) written} state is captured immediately, but written to disk
+ * on a background thread after a short delay, so that a burst of updates, such as a token
+ * refresh followed by further updates, results in a single write of the latest state. Each
+ * file is replaced atomically, so a crash during a write leaves the previous state intact.
+ * Pending writes can be forced to disk with {@link #flush()}, e.g. when the application moves
+ * to the background. Writes which fail are retried after increasing delays.
+ *
+ * <p>States can optionally be encrypted at rest, by providing an {@link Encryption} such as
+ * {@link KeystoreEncryption}. Encryption only affects the files: reads from memory are not
+ * decrypted again, and writes are encrypted on the background thread. States previously stored
+ * in plain text are encrypted when first read.
+ *
+ * <p>Each state is stored in a file named by a hash of its key, so that keys of any length can
+ * be stored. The key itself is stored at the start of the file, from which
+ * {@link #getKeys()} reads it.
+ *
+ * <p>A single instance should be shared by all users of a directory. Instances are
+ * thread-safe.
+ */
+public final class AuthStateStore {
+
+    /**
+     * Encrypts and decrypts the persisted form of states. Implementations must be thread-safe,
+     * and should be authenticated, so that a modified file fails to decrypt rather than
+     * producing a corrupted state.
+     */
+    public interface Encryption {
+
+        /**
+         * Encrypts the plaintext, binding it to the associated data, which is not included in
+         * the result.
+         */
+        @NonNull
+        byte[] encrypt(@NonNull byte[] plaintext, @NonNull byte[] associatedData)
+                throws GeneralSecurityException;
+
+        /**
+         * Decrypts a ciphertext produced by {@link #encrypt(byte[], byte[])} with the same
+         * associated data.
+         * @throws BadPaddingException if the ciphertext definitively fails authentication, such
+         *     as an {@link javax.crypto.AEADBadTagException}, in which case the state is
+         *     discarded. Other failures are treated as transient, and the state is kept.
+         */
+        @NonNull
+        byte[] decrypt(@NonNull byte[] ciphertext, @NonNull byte[] associatedData)
+                throws GeneralSecurityException;
+    }
+
+    /**
+     * The default delay between the first of a burst of writes and the resulting write to disk.
+     */
+    public static final long DEFAULT_WRITE_DELAY_MS = 500L;
+
+    /**
+     * The name of the directory, under {@link Context#getFilesDir()}, used by
+     * {@link #AuthStateStore(Context)}.
+     */
+    public static final String DEFAULT_DIRECTORY_NAME = "appauth_state";
+
+    /**
+     * The delay before a failed write is first retried. The delay doubles with each consecutive
+     * failure, up to {@link #MAX_RETRY_DELAY_MS}.
+     */
+    @VisibleForTesting
+    static final long MIN_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+
+    @VisibleForTesting
+    static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String FILE_SUFFIX = ".state";
+
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+
+    /**
+     * The size of the length of the key, which precedes the key at the start of each file.
+     */
+    private static final int KEY_LENGTH_SIZE = 4;
+
+    /**
+     * The prefix of encrypted files, which is distinct from those of both the binary and JSON
+     * forms of a state.
+     */
+    private static final byte[] ENCRYPTED_MAGIC = { (byte) 0xA5, 'A', 'E' };
+
+    @NonNull
+    private final File mDirectory;
+
+    private final long mWriteDelayMs;
+
+    @Nullable
+    private final Encryption mEncryption;
+
+    @NonNull
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /**
+     * Held for the duration of each flush, so that writes of the same file are ordered, and
+     * while files are read, so that a file is not read while a flush may be writing it.
+     * Acquired before {@link #mLock}, if both are held.
+     */
+    private final Object mFlushLock = new Object();
+
+    /**
+     * The states which have been read or written, by key; {@code null} for keys known to have
+     * no state. Guarded by {@link #mLock}.
+     */
+    private final Map<String, AuthState> mStates = new HashMap<>();
+
+    /**
+     * Snapshots of the states awaiting a write, by key; {@code null} for states awaiting
+     * removal. Guarded by {@link #mLock}.
+     */
+    private final Map<String, AuthState> mPendingWrites = new LinkedHashMap<>();
+
+    /**
+     * Guarded by {@link #mLock}.
+     */
+    private boolean mFlushScheduled;
+
+    /**
+     * Guarded by {@link #mFlushLock}.
+     */
+    private int mWriteCount;
+
+    /**
+     * The number of consecutive flushes in which a write failed. Guarded by {@link #mFlushLock}.
+     */
+    private int mFailedFlushCount;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Creates a store which persists states to the {@link #DEFAULT_DIRECTORY_NAME default
+     * directory} of the application's files directory.
+     */
+    public AuthStateStore(@NonNull Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Creates a store which persists states to the {@link #DEFAULT_DIRECTORY_NAME default
+     * directory} of the application's files directory, encrypted with the specified encryption
+     * if it is not null.
+     */
+    public AuthStateStore(@NonNull Context context, @Nullable Encryption encryption) {
+        this(new File(checkNotNull(context, "context cannot be null").getFilesDir(),
+                DEFAULT_DIRECTORY_NAME),
+                DEFAULT_WRITE_DELAY_MS,
+                encryption);
+    }
+
+    /**
+     * Creates a store which persists states to the specified directory.
+     */
+    public AuthStateStore(@NonNull File directory) {
+        this(directory, DEFAULT_WRITE_DELAY_MS);
+    }
+
+    /**
+     * Creates a store which persists states to the specified directory, with the specified
+     * delay between the first of a burst of writes and the resulting write to disk.
+     */
+    public AuthStateStore(@NonNull File directory, long writeDelayMs) {
+        this(directory, writeDelayMs, null);
+    }
+
+    /**
+     * Creates a store which persists states to the specified directory, with the specified
+     * delay between the first of a burst of writes and the resulting write to disk, encrypted
+     * with the specified encryption if it is not null.
+     */
+    public AuthStateStore(
+            @NonNull File directory,
+            long writeDelayMs,
+            @Nullable Encryption encryption) {
+        this(directory, writeDelayMs, encryption, createWriterHandler());
+    }
+
+    @VisibleForTesting
+    AuthStateStore(
+            @NonNull File directory,
+            long writeDelayMs,
+            @Nullable Encryption encryption,
+            @NonNull Handler handler) {
+        checkArgument(writeDelayMs >= 0, "writeDelayMs must not be negative");
+        mDirectory = checkNotNull(directory, "directory cannot be null");
+        mWriteDelayMs = writeDelayMs;
+        mEncryption = encryption;
+        mHandler = checkNotNull(handler, "handler cannot be null");
+    }
+
+    /**
+     * Returns the state stored under the specified key, or {@code null} if there is none. The
+     * state is read from disk on first use; subsequent calls return the same instance, or the
+     * instance most recently written. A state which is malformed, or fails authentication, is
+     * discarded. If a state cannot be read for other reasons, such as the Keystore being
+     * temporarily unavailable, {@code null} is returned, and the state is read again on the
+     * next call.
+     */
+    @Nullable
+    public AuthState read(@NonNull String key) {
+        checkNotEmpty(key, "key cannot be null or empty");
+        synchronized (mLock) {
+            if (isInMemoryLocked(key)) {
+                return readFromMemoryLocked(key);
+            }
+        }
+
+        // the file is read without holding the lock, so that reads of other keys, and reads
+        // and writes served from memory, are not blocked by disk access. The flush lock is
+        // held, so that a write of the state which is in progress completes first, rather than
+        // the previous contents of the file being read
+        synchronized (mFlushLock) {
+            ReadResult result = readFile(key);
+            synchronized (mLock) {
+                if (isInMemoryLocked(key)) {
+                    // written, or read by another thread, in the meantime
+                    return readFromMemoryLocked(key);
+                }
+                if (result.mFailed) {
+                    return null;
+                }
+                mStates.put(key, result.mState);
+                if (result.mNeedsRewrite) {
+                    mPendingWrites.put(key, result.mState.snapshot());
+                    scheduleFlush();
+                }
+                return result.mState;
+            }
+        }
+    }
+
+    /**
+     * Determines whether the state for the key is held in memory, or awaiting its write, in
+     * which case the file is not current. Must be called while holding {@link #mLock}.
+     */
+    private boolean isInMemoryLocked(String key) {
+        return mStates.containsKey(key) || mPendingWrites.containsKey(key);
+    }
+
+    /**
+     * Returns the state for the key from memory. A state which was evicted before its write
+     * completed is restored from its pending snapshot. Must be called while holding
+     * {@link #mLock}.
+     */
+    @Nullable
+    private AuthState readFromMemoryLocked(String key) {
+        if (mStates.containsKey(key)) {
+            return mStates.get(key);
+        }
+        AuthState pending = mPendingWrites.get(key);
+        AuthState state = (pending != null) ? pending.snapshot() : null;
+        mStates.put(key, state);
+        return state;
+    }
+
+    /**
+     * Reads the state for the specified key from disk again, so that a state written by another
+     * process, or another store using the same directory, is observed. If a state is held in
+     * memory, that instance is updated in place and returned, so that users of it observe the
+     * new state. A state written by this store which is awaiting its write to disk is not
+     * replaced, and if its write is in progress, the file is read once the write completes.
+     */
+    @Nullable
+    public AuthState reload(@NonNull String key) {
+        checkNotEmpty(key, "key cannot be null or empty");
+        synchronized (mLock) {
+            if (mPendingWrites.containsKey(key)) {
+                return read(key);
+            }
+        }
+
+        // as for read(), the flush lock is held, so that a write of the state by this store
+        // which is in progress completes first; otherwise, the previous contents of the file
+        // would be read, and the state in memory rolled back to them
+        synchronized (mFlushLock) {
+            ReadResult result = readFile(key);
+            synchronized (mLock) {
+                if (mPendingWrites.containsKey(key)) {
+                    // written in the meantime
+                    return read(key);
+                }
+
+                AuthState current = mStates.get(key);
+                if (result.mFailed) {
+                    return current;
+                }
+                if (current != null && result.mState != null) {
+                    current.copyFrom(result.mState);
+                } else {
+                    current = result.mState;
+                    mStates.put(key, current);
+                }
+                if (result.mNeedsRewrite) {
+                    mPendingWrites.put(key, current.snapshot());
+                    scheduleFlush();
+                }
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Releases the in-memory state for the specified key, so that it is read from disk again
+     * on next use. Pending writes are not affected. This allows the number of states held in
+     * memory to be bounded, e.g. by an {@link AuthStateRegistry}.
+     */
+    public void evict(@NonNull String key) {
+        checkNotEmpty(key, "key cannot be null or empty");
+        synchronized (mLock) {
+            mStates.remove(key);
+        }
+    }
+
+    /**
+     * Returns the keys of all stored states, including those not yet written to disk.
+     */
+    @NonNull
+    public Set<String> getKeys() {
+        Set<String> keys = new HashSet<>();
+
+        // the files are scanned without holding the lock, so that reads and writes served from
+        // memory are not blocked by disk access. The flush lock is held, so that no state is
+        // being written, and every state is either on disk or awaiting its write
+        synchronized (mFlushLock) {
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String key = readKey(file);
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                }
+            }
+
+            synchronized (mLock) {
+                updateKeys(keys, mStates);
+                updateKeys(keys, mPendingWrites);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Stores the state under the specified key. The state is captured immediately, so later
+     * updates to it are not stored unless it is written again, and is written to disk after
+     * the write delay, together with any other writes made in the meantime.
+     */
+    public void write(@NonNull String key, @NonNull AuthState state) {
+        checkNotEmpty(key, "key cannot be null or empty");
+        checkNotNull(state, "state cannot be null");
+        AuthState snapshot = state.snapshot();
+        synchronized (mLock) {
+            mStates.put(key, state);
+            mPendingWrites.put(key, snapshot);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Removes the state stored under the specified key, if any. The state's file is deleted
+     * after the write delay.
+     */
+    public void remove(@NonNull String key) {
+        checkNotEmpty(key, "key cannot be null or empty");
+        synchronized (mLock) {
+            mStates.put(key, null);
+            mPendingWrites.put(key, null);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Writes any pending states to disk immediately, on the calling thread.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            Map<String, AuthState> pending;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushTask);
+                mFlushScheduled = false;
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                pending = new LinkedHashMap<>(mPendingWrites);
+                mPendingWrites.clear();
+            }
+
+            boolean failed = false;
+            for (Map.Entry<String, AuthState> entry : pending.entrySet()) {
+                failed |= !writeFile(entry.getKey(), entry.getValue());
+            }
+
+            if (!failed) {
+                mFailedFlushCount = 0;
+                return;
+            }
+
+            // the failed writes have been returned to the pending writes, and are retried after
+            // a delay which grows while they continue to fail, e.g. as the disk is full
+            mFailedFlushCount++;
+            long delayMs = MIN_RETRY_DELAY_MS;
+            for (int i = 1; i < mFailedFlushCount && delayMs < MAX_RETRY_DELAY_MS; i++) {
+                delayMs *= 2;
+            }
+            delayMs = Math.min(delayMs, MAX_RETRY_DELAY_MS);
+            Logger.debug("Retrying failed writes in %d ms", delayMs);
+            synchronized (mLock) {
+                scheduleFlush(delayMs);
+            }
+        }
+    }
+
+    /**
+     * The number of files written or deleted.
+     */
+    public int getWriteCount() {
+        synchronized (mFlushLock) {
+            return mWriteCount;
+        }
+    }
+
+    private static void updateKeys(Set<String> keys, Map<String, AuthState> states) {
+        for (Map.Entry<String, AuthState> entry : states.entrySet()) {
+            if (entry.getValue() != null) {
+                keys.add(entry.getKey());
+            } else {
+                keys.remove(entry.getKey());
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        scheduleFlush(mWriteDelayMs);
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushTask, delayMs);
+        }
+    }
+
+    /**
+     * Reads the state for the key from disk.
+     */
+    @NonNull
+    private ReadResult readFile(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return new ReadResult(null, false, false);
+        }
+
+        try {
+            byte[] data = Utils.readFile(file);
+            byte[] header = getKeyHeader(key);
+            if (!startsWith(data, header)) {
+                // e.g. truncated, so can never be read
+                discard(file, "Key mismatch");
+                return new ReadResult(null, false, false);
+            }
+            data = Arrays.copyOfRange(data, header.length, data.length);
+
+            boolean encrypted = startsWith(data, ENCRYPTED_MAGIC);
+            if (encrypted) {
+                if (mEncryption == null) {
+                    throw new GeneralSecurityException("State is encrypted");
+                }
+                data = mEncryption.decrypt(
+                        Arrays.copyOfRange(data, ENCRYPTED_MAGIC.length, data.length),
+                        getKeyBytes(key));
+            }
+
+            // states stored in plain text are re-written encrypted
+            return new ReadResult(
+                    AuthState.fromByteArray(data),
+                    !encrypted && mEncryption != null,
+                    false);
+        } catch (JSONException | BadPaddingException ex) {
+            // the file is malformed, or was modified or encrypted with a data key which has
+            // since been replaced, so can never be read
+            discard(file, ex.getMessage());
+            return new ReadResult(null, false, false);
+        } catch (IOException | GeneralSecurityException ex) {
+            // e.g. the Keystore is temporarily unavailable, so the file is kept
+            Logger.warn("Unable to read authorization state %s: %s", file, ex.getMessage());
+            return new ReadResult(null, false, true);
+        }
+    }
+
+    /**
+     * Writes or deletes the file for the key. If this fails, the snapshot is returned to the
+     * pending writes, unless it has been superseded, and {@code false} is returned.
+     */
+    private boolean writeFile(String key, @Nullable AuthState snapshot) {
+        File file = getFile(key);
+        mWriteCount++;
+        if (snapshot == null) {
+            if (file.exists() && !file.delete()) {
+                Logger.warn("Unable to delete authorization state %s", file);
+            }
+            return true;
+        }
+
+        byte[] data;
+        try {
+            data = snapshot.toByteArray();
+        } catch (IllegalStateException ex) {
+            // the responses of a state read from disk are only read when first used; if they are
+            // malformed, the state can never be written, and is discarded like an unreadable file
+            Logger.warn("Discarding unreadable authorization state %s: %s",
+                    file, ex.getMessage());
+            synchronized (mLock) {
+                if (!mPendingWrites.containsKey(key)) {
+                    mStates.remove(key);
+                }
+            }
+            if (file.exists() && !file.delete()) {
+                Logger.warn("Unable to delete authorization state %s", file);
+            }
+            return true;
+        }
+
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Unable to create directory " + mDirectory);
+            }
+            if (mEncryption != null) {
+                byte[] ciphertext = mEncryption.encrypt(data, getKeyBytes(key));
+                data = Arrays.copyOf(ENCRYPTED_MAGIC,
+                        ENCRYPTED_MAGIC.length + ciphertext.length);
+                System.arraycopy(ciphertext, 0, data, ENCRYPTED_MAGIC.length, ciphertext.length);
+            }
+            byte[] header = getKeyHeader(key);
+            byte[] contents = Arrays.copyOf(header, header.length + data.length);
+            System.arraycopy(data, 0, contents, header.length, data.length);
+            Utils.writeAtomically(file, contents);
+            return true;
+        } catch (IOException | GeneralSecurityException ex) {
+            // the state remains available in memory, and is retried unless it has been
+            // superseded
+            Logger.warn("Unable to persist authorization state for %s: %s",
+                    key, ex.getMessage());
+            synchronized (mLock) {
+                if (!mPendingWrites.containsKey(key)) {
+                    mPendingWrites.put(key, snapshot);
+                }
+            }
+            return false;
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, getFileName(key));
+    }
+
+    /**
+     * Returns the file used to lock the state for the key across processes; see
+     * {@link AuthStateBroker}.
+     */
+    @NonNull
+    File getLockFile(@NonNull String key) {
+        return new File(mDirectory, getFileName(key) + LOCK_FILE_SUFFIX);
+    }
+
+    private static void discard(File file, String reason) {
+        Logger.warn("Discarding unreadable authorization state %s: %s", file, reason);
+        if (!file.delete()) {
+            Logger.warn("Unable to delete authorization state %s", file);
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of the file in which the state for the key is stored: the hex-encoded
+     * SHA-256 hash of the key, with a {@code .state} suffix. The name has a fixed length, so
+     * that it, and those of the lock and temporary files derived from it, are valid whatever
+     * the length of the key.
+     */
+    @NonNull
+    static String getFileName(@NonNull String key) {
+        return Utils.sha256Hex(key) + FILE_SUFFIX;
+    }
+
+    /**
+     * Returns the header with which the file for the key starts: the length of the key's UTF-8
+     * bytes, followed by the bytes.
+     */
+    @VisibleForTesting
+    static byte[] getKeyHeader(@NonNull String key) {
+        byte[] keyBytes = getKeyBytes(key);
+        return ByteBuffer.allocate(KEY_LENGTH_SIZE + keyBytes.length)
+                .putInt(keyBytes.length)
+                .put(keyBytes)
+                .array();
+    }
+
+    /**
+     * Reads the key whose state is stored in the file from its header, or returns {@code null}
+     * if the file does not hold a state.
+     */
+    @Nullable
+    private static String readKey(File file) {
+        if (!file.getName().endsWith(FILE_SUFFIX)) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                int length = in.readInt();
+                if (length < 0 || length > file.length() - KEY_LENGTH_SIZE) {
+                    return null;
+                }
+                byte[] keyBytes = new byte[length];
+                in.readFully(keyBytes);
+                return new String(keyBytes, "UTF-8");
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        } catch (IOException ex) {
+            Logger.warn("Unable to read the key of authorization state %s: %s",
+                    file, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the UTF-8 bytes of the key, which are also used as the associated data of its
+     * encrypted state, so that a state cannot be decrypted as that of another account.
+     */
+    private static byte[] getKeyBytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 must be supported", ex);
+        }
+    }
+
+    private static final class ReadResult {
+
+        @Nullable
+        final AuthState mState;
+
+        final boolean mNeedsRewrite;
+
+        /**
+         * Whether the file could not be read, but was kept, so should be read again.
+         */
+        final boolean mFailed;
+
+        ReadResult(@Nullable AuthState state, boolean needsRewrite, boolean failed) {
+            mState = state;
+            mNeedsRewrite = needsRewrite;
+            mFailed = failed;
+        }
+    }
+
+    private static Handler createWriterHandler() {
+        HandlerThread thread = new HandlerThread(
+                "AuthStateStore",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+}
@@ -27,10 +27,14 @@ import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Collections;
@@ -692,11 +696,40 @@ public class AuthorizationRequest {
         return json;
     }
 
+    /**
+     * Writes the request to the provided JSON writer, in the same form as {@link #toJson()}.
+     */
+    public void writeJson(@NonNull JsonWriter writer) throws IOException {
+        checkNotNull(writer, "writer cannot be null");
+        writer.beginObject();
+        writer.name(KEY_CONFIGURATION);
+        configuration.writeJson(writer);
+        writer.name(KEY_CLIENT_ID).value(clientId);
+        writer.name(KEY_RESPONSE_TYPE).value(responseType);
+        writer.name(KEY_REDIRECT_URI).value(redirectUri.toString());
+        JsonUtil.writeIfNotNull(writer, KEY_SCOPE, scope);
+        JsonUtil.writeIfNotNull(writer, KEY_STATE, state);
+        JsonUtil.writeIfNotNull(writer, KEY_CODE_VERIFIER, codeVerifier);
+        JsonUtil.writeIfNotNull(writer, KEY_CODE_VERIFIER_CHALLENGE, codeVerifierChallenge);
+        JsonUtil.writeIfNotNull(writer, KEY_CODE_VERIFIER_CHALLENGE_METHOD,
+                codeVerifierChallengeMethod);
+        JsonUtil.writeIfNotNull(writer, KEY_RESPONSE_MODE, responseMode);
+        writer.name(KEY_ADDITIONAL_PARAMETERS);
+        JsonUtil.writeStringMap(writer, additionalParameters);
+        writer.endObject();
+    }
+
     /**
      * Produces a JSON string representation of the request for storage or transmission.
      */
     public String toJsonString() {
-        return toJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(new JsonWriter(out));
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a string", ex);
+        }
+        return out.toString();
     }
 
     /**
@@ -707,7 +740,93 @@ public class AuthorizationRequest {
     @NonNull
     public static AuthorizationRequest fromJson(@NonNull String jsonStr) throws JSONException {
         checkNotNull(jsonStr, "json string cannot be null");
-        return fromJson(new JSONObject(jsonStr));
+        try {
+            return readJson(JsonUtil.newReader(jsonStr));
+        } catch (IOException ex) {
+            throw JsonUtil.toJsonException("Malformed authorization request JSON", ex);
+        }
+    }
+
+    /**
+     * Reads an Authorization request from the provided JSON reader, consuming an object in the
+     * form produced by {@link #writeJson(JsonWriter)} or {@link #toJson()}.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the provided JSON does not match the expected structure.
+     */
+    @NonNull
+    public static AuthorizationRequest readJson(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        checkNotNull(reader, "reader cannot be null");
+
+        AuthorizationServiceConfiguration configuration = null;
+        String clientId = null;
+        String responseType = null;
+        String redirectUri = null;
+        String scope = null;
+        String state = null;
+        String codeVerifier = null;
+        String codeVerifierChallenge = null;
+        String codeVerifierChallengeMethod = null;
+        String responseMode = null;
+        Map<String, String> additionalParameters = null;
+
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_CONFIGURATION:
+                    configuration = AuthorizationServiceConfiguration.readJson(reader);
+                    break;
+                case KEY_CLIENT_ID:
+                    clientId = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_RESPONSE_TYPE:
+                    responseType = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_REDIRECT_URI:
+                    redirectUri = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_SCOPE:
+                    scope = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_STATE:
+                    state = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_CODE_VERIFIER:
+                    codeVerifier = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_CODE_VERIFIER_CHALLENGE:
+                    codeVerifierChallenge = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_CODE_VERIFIER_CHALLENGE_METHOD:
+                    codeVerifierChallengeMethod = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_RESPONSE_MODE:
+                    responseMode = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_ADDITIONAL_PARAMETERS:
+                    additionalParameters = JsonUtil.readStringMap(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        AuthorizationRequest.Builder builder = new AuthorizationRequest.Builder(
+                JsonUtil.checkFieldPresent(configuration, KEY_CONFIGURATION),
+                JsonUtil.checkFieldPresent(clientId, KEY_CLIENT_ID),
+                JsonUtil.checkFieldPresent(responseType, KEY_RESPONSE_TYPE),
+                Uri.parse(JsonUtil.checkFieldPresent(redirectUri, KEY_REDIRECT_URI)))
+                .setState(state)
+                .setCodeVerifier(codeVerifier, codeVerifierChallenge, codeVerifierChallengeMethod)
+                .setResponseMode(responseMode)
+                .setAdditionalParameters(additionalParameters);
+
+        if (scope != null) {
+            builder.setScopes(ScopeUtil.scopeStringToSet(scope));
+        }
+        return builder.build();
     }
 
     /**
@@ -25,10 +25,14 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -495,12 +499,38 @@ public class AuthorizationResponse {
         return json;
     }
 
+    /**
+     * Writes the response to the provided JSON writer, in the same form as {@link #toJson()}.
+     */
+    public void writeJson(@NonNull JsonWriter writer) throws IOException {
+        checkNotNull(writer, "writer cannot be null");
+        writer.beginObject();
+        writer.name(KEY_REQUEST);
+        request.writeJson(writer);
+        JsonUtil.writeIfNotNull(writer, KEY_STATE, state);
+        JsonUtil.writeIfNotNull(writer, KEY_TOKEN_TYPE, tokenType);
+        JsonUtil.writeIfNotNull(writer, KEY_AUTHORIZATION_CODE, authorizationCode);
+        JsonUtil.writeIfNotNull(writer, KEY_ACCESS_TOKEN, accessToken);
+        JsonUtil.writeIfNotNull(writer, KEY_EXPIRES_AT, accessTokenExpirationTime);
+        JsonUtil.writeIfNotNull(writer, KEY_ID_TOKEN, idToken);
+        JsonUtil.writeIfNotNull(writer, KEY_SCOPE, scope);
+        writer.name(KEY_ADDITIONAL_PARAMETERS);
+        JsonUtil.writeStringMap(writer, additionalParameters);
+        writer.endObject();
+    }
+
     /**
      * Converts the response to a JSON string for storage or transmission.
      */
     @NonNull
     public String toJsonString() {
-        return toJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(new JsonWriter(out));
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a string", ex);
+        }
+        return out.toString();
     }
 
     /**
@@ -510,7 +540,87 @@ public class AuthorizationResponse {
      */
     @NonNull
     public static AuthorizationResponse fromJson(@NonNull String jsonStr) throws JSONException {
-        return fromJson(new JSONObject(jsonStr));
+        checkNotNull(jsonStr, "jsonStr cannot be null");
+        try {
+            return readJson(JsonUtil.newReader(jsonStr));
+        } catch (IOException ex) {
+            throw JsonUtil.toJsonException("Malformed authorization response JSON", ex);
+        }
+    }
+
+    /**
+     * Reads an authorization response from the provided JSON reader, consuming an object in the
+     * form produced by {@link #writeJson(JsonWriter)} or {@link #toJson()}.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the provided JSON does not match the expected structure.
+     */
+    @NonNull
+    public static AuthorizationResponse readJson(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        checkNotNull(reader, "reader cannot be null");
+
+        AuthorizationRequest request = null;
+        String state = null;
+        String tokenType = null;
+        String authorizationCode = null;
+        String accessToken = null;
+        Long accessTokenExpirationTime = null;
+        String idToken = null;
+        String scope = null;
+        Map<String, String> additionalParameters = null;
+
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_REQUEST:
+                    request = AuthorizationRequest.readJson(reader);
+                    break;
+                case KEY_STATE:
+                    state = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_TOKEN_TYPE:
+                    tokenType = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_AUTHORIZATION_CODE:
+                    authorizationCode = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_ACCESS_TOKEN:
+                    accessToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_EXPIRES_AT:
+                    accessTokenExpirationTime = JsonUtil.nextLong(reader);
+                    break;
+                case KEY_ID_TOKEN:
+                    idToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_SCOPE:
+                    scope = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_ADDITIONAL_PARAMETERS:
+                    additionalParameters = JsonUtil.readStringMap(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (request == null) {
+            throw new IllegalArgumentException(
+                    "authorization request not provided and not found in JSON");
+        }
+
+        return new AuthorizationResponse.Builder(request)
+                .setTokenType(tokenType)
+                .setAccessToken(accessToken)
+                .setAuthorizationCode(authorizationCode)
+                .setIdToken(idToken)
+                .setScope(scope)
+                .setState(state)
+                .setAccessTokenExpirationTime(accessTokenExpirationTime)
+                .setAdditionalParameters(additionalParameters)
+                .build();
     }
 
     /**
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
@@ -35,9 +36,13 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Dispatches requests to an OAuth2 authorization service. Note that instances of this class
@@ -78,14 +83,20 @@ public class AuthorizationService {
      */
     public static final String SCOPE_ADDRESS = "address";
 
+    private static final String FORM_CONTENT_TYPE =
+            "application/x-www-form-urlencoded; charset=UTF-8";
+
     @VisibleForTesting
     Context mContext;
 
     @NonNull
-    private final UrlBuilder mUrlBuilder;
+    private final AppAuthConfiguration mClientConfiguration;
+
+    private BrowserHandler mBrowserHandler;
 
     @NonNull
-    private final BrowserHandler mBrowserHandler;
+    private final Set<TokenRequestTask> mInFlightTokenRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<TokenRequestTask, Boolean>());
 
     private boolean mDisposed = false;
 
@@ -95,20 +106,31 @@ public class AuthorizationService {
      * leaks (see {@link #dispose()}.
      */
     public AuthorizationService(@NonNull Context context) {
+        this(context, AppAuthConfiguration.DEFAULT);
+    }
+
+    /**
+     * Creates an AuthorizationService instance, using the specified configuration. Note that
+     * instances of this class must be manually disposed when no longer required, to avoid
+     * leaks (see {@link #dispose()}.
+     */
+    public AuthorizationService(
+            @NonNull Context context,
+            @NonNull AppAuthConfiguration clientConfiguration) {
         this(context,
-                DefaultUrlBuilder.INSTANCE,
+                clientConfiguration,
                 new BrowserHandler(context));
     }
 
     /**
-     * Constructor that injects a url builder into the service for testing.
+     * Constructor that injects a browser handler into the service for testing.
      */
     @VisibleForTesting
     AuthorizationService(@NonNull Context context,
-                         @NonNull UrlBuilder urlBuilder,
+                         @NonNull AppAuthConfiguration clientConfiguration,
                          @NonNull BrowserHandler browserHandler) {
         mContext = checkNotNull(context);
-        mUrlBuilder = checkNotNull(urlBuilder);
+        mClientConfiguration = checkNotNull(clientConfiguration);
         mBrowserHandler = checkNotNull(browserHandler);
     }
 
@@ -174,28 +196,56 @@ public class AuthorizationService {
      * Sends a request to the authorization service to exchange a code granted as part of an
      * authorization request for a token. The result of this request will be sent to the provided
      * callback handler.
+     *
+     * <p>The request is subject to the connect and read timeouts of the
+     * {@link AppAuthConfiguration} of this service, and may be cancelled using the returned
+     * signal. Once a request is cancelled, the callback will not be invoked.
+     *
+     * @return a signal which can be used to cancel the request.
      */
-    public void performTokenRequest(
+    @NonNull
+    public CancellationSignal performTokenRequest(
             @NonNull net.openid.appauth.TokenRequest request,
             @NonNull TokenResponseCallback callback) {
         checkNotDisposed();
         Logger.debug("Initiating code exchange request to %s",
                 request.configuration.tokenEndpoint);
-        new TokenRequestTask(request.toUri(), request, callback)
-                .execute();
+        TokenRequestTask task = new TokenRequestTask(request, callback);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.setOnCancelListener(task);
+        mInFlightTokenRequests.add(task);
+        task.executeOnExecutor(mClientConfiguration.getExecutor());
+        return cancellationSignal;
     }
 
     /**
      * Disposes state that will not normally be handled by garbage collection. This should be
      * called when the authorization service is no longer required, including when any owning
      * activity is paused or destroyed (i.e. in {@link android.app.Activity#onStop()}).
+     * Any token requests still in progress are cancelled, and their callbacks will not be
+     * invoked; the service releases its reference to the context.
      */
     public void dispose() {
         if (mDisposed) {
             return;
         }
-        mBrowserHandler.unbind();
+        // set first, so that callbacks of cancelled requests observe the service as disposed
         mDisposed = true;
+        for (TokenRequestTask task : mInFlightTokenRequests) {
+            task.onCancel();
+        }
+        mInFlightTokenRequests.clear();
+        mBrowserHandler.unbind();
+        mBrowserHandler = null;
+        mContext = null;
+    }
+
+    /**
+     * Determines whether the service has been {@link #dispose() disposed}, after which no
+     * further requests can be made.
+     */
+    boolean isDisposed() {
+        return mDisposed;
     }
 
     private void checkNotDisposed() {
@@ -205,67 +255,140 @@ public class AuthorizationService {
     }
 
     private class TokenRequestTask
-            extends AsyncTask<Void, Void, JSONObject> {
-        private Uri mRequestUri;
+            extends AsyncTask<Void, Void, JSONObject>
+            implements CancellationSignal.OnCancelListener {
         private net.openid.appauth.TokenRequest mRequest;
         private TokenResponseCallback mCallback;
+        private RetryPolicy mRetryPolicy;
 
         private AuthorizationException mException;
+        private int mAttempts;
 
-        TokenRequestTask(Uri requestUri,
-                         net.openid.appauth.TokenRequest request,
+        private volatile HttpURLConnection mConnection;
+
+        TokenRequestTask(net.openid.appauth.TokenRequest request,
                          TokenResponseCallback callback) {
-            mRequestUri = requestUri;
             mRequest = request;
             mCallback = callback;
+
+            // authorization codes may only be used once, so only refresh grants are retried
+            mRetryPolicy = TokenRequest.GRANT_TYPE_REFRESH_TOKEN.equals(request.grantType)
+                    ? mClientConfiguration.getRetryPolicy()
+                    : RetryPolicy.NO_RETRY;
         }
 
         @Override
         protected JSONObject doInBackground(Void... voids) {
-            String queryData = mRequestUri.getEncodedQuery();
-            InputStream is = null;
+            URL url;
             try {
-                /*
-                 * TODO: handle MalformedUrlException from url construction separately
-                 * this is usually indicative of programmer error rather than network error
-                 */
-                URL url = mUrlBuilder.buildUrlFromString(mRequestUri.getScheme()
-                        + "://" + mRequestUri.getHost()
-                        + mRequestUri.getPath());
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-
-                // required by some providers to ensure JSON response
-                conn.setRequestProperty("Accept", "application/json");
-
-                conn.setInstanceFollowRedirects(false);
-                conn.setDoOutput(true);
-                conn.setRequestProperty("Content-Length", String.valueOf(queryData.length()));
-                OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-                wr.write(queryData);
-                wr.flush();
-
-                is = conn.getInputStream();
-                String response = Utils.readInputStream(is);
-                return new JSONObject(response);
-            } catch (IOException ex) {
-                Logger.debugWithStack(ex, "Failed to complete exchange request");
+                url = mRequest.configuration.getTokenEndpointUrl();
+            } catch (MalformedURLException ex) {
+                // TODO: this is indicative of programmer error rather than a network error
+                Logger.debugWithStack(ex, "Invalid token endpoint");
                 mException = AuthorizationException.fromTemplate(
                         GeneralErrors.NETWORK_ERROR, ex);
-            } catch (JSONException ex) {
-                Logger.debugWithStack(ex, "Failed to complete exchange request");
-                mException = AuthorizationException.fromTemplate(
-                        GeneralErrors.JSON_DESERIALIZATION_ERROR, ex);
-            } finally {
-                Utils.closeQuietly(is);
+                return null;
+            }
+
+            byte[] body = mRequest.toFormBody();
+            while (!isCancelled()) {
+                mAttempts++;
+                InputStream is = null;
+                int responseCode = 0;
+                try {
+                    HttpURLConnection conn =
+                            mClientConfiguration.getConnectionBuilder().openConnection(url);
+                    mConnection = conn;
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    conn.setConnectTimeout(mClientConfiguration.getConnectTimeoutMs());
+                    conn.setReadTimeout(mClientConfiguration.getReadTimeoutMs());
+                    conn.setRequestMethod("POST");
+
+                    // required by some providers to ensure JSON response
+                    conn.setRequestProperty("Accept", "application/json");
+                    conn.setRequestProperty("Content-Type", FORM_CONTENT_TYPE);
+
+                    conn.setInstanceFollowRedirects(false);
+                    conn.setDoOutput(true);
+                    conn.setFixedLengthStreamingMode(body.length);
+                    OutputStream os = conn.getOutputStream();
+                    try {
+                        os.write(body);
+                    } finally {
+                        os.close();
+                    }
+
+                    // error responses carry an OAuth error description in their body, and must be
+                    // fully read for the connection to be returned to the keep-alive pool
+                    responseCode = conn.getResponseCode();
+                    if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                            && conn.getErrorStream() != null) {
+                        is = conn.getErrorStream();
+                    } else {
+                        is = conn.getInputStream();
+                    }
+                    if (RetryPolicy.isRetryableResponseCode(responseCode)) {
+                        String response = Utils.readInputStream(is);
+                        if (mRetryPolicy.awaitRetry(mAttempts,
+                                conn.getHeaderField(RetryPolicy.HEADER_RETRY_AFTER))) {
+                            continue;
+                        }
+                        return JsonUtil.parseJsonObject(response);
+                    }
+
+                    // parsed directly from the stream, without buffering the body as a string
+                    return JsonUtil.parseJsonObject(is);
+                } catch (IOException ex) {
+                    if (mRetryPolicy.awaitRetry(mAttempts, null)) {
+                        Logger.debugWithStack(ex, "Exchange request failed, retrying");
+                        continue;
+                    }
+                    Logger.debugWithStack(ex, "Failed to complete exchange request");
+                    mException = AuthorizationException.fromTemplate(
+                            GeneralErrors.NETWORK_ERROR, ex);
+                } catch (JSONException ex) {
+                    Logger.debugWithStack(ex, "Failed to complete exchange request");
+                    mException = AuthorizationException.fromTemplate(
+                            RetryPolicy.isRetryableResponseCode(responseCode)
+                                    ? GeneralErrors.SERVER_ERROR
+                                    : GeneralErrors.JSON_DESERIALIZATION_ERROR,
+                            ex);
+                } finally {
+                    Utils.closeQuietly(is);
+                }
+                return null;
             }
             return null;
         }
 
+        @Override
+        public void onCancel() {
+            cancel(true);
+            // interrupting the task does not interrupt blocking socket I/O
+            HttpURLConnection conn = mConnection;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            mInFlightTokenRequests.remove(this);
+            Logger.debug("Token request to %s cancelled", mRequest.configuration.tokenEndpoint);
+            TokenResponseCallback callback = mCallback;
+            mCallback = null;
+            if (callback instanceof CancellableTokenResponseCallback) {
+                ((CancellableTokenResponseCallback) callback).onTokenRequestCancelled();
+            }
+        }
+
         @Override
         protected void onPostExecute(JSONObject json) {
+            mInFlightTokenRequests.remove(this);
             if (mException != null) {
-                mCallback.onTokenRequestCompleted(null, mException);
+                complete(null, mException);
                 return;
             }
 
@@ -276,15 +399,16 @@ public class AuthorizationService {
                     ex = AuthorizationException.fromOAuthTemplate(
                             TokenRequestErrors.byString(error),
                             error,
-                            json.getString(AuthorizationException.PARAM_ERROR_DESCRIPTION),
-                            UriUtil.parseUriIfAvailable(
-                                    json.getString(AuthorizationException.PARAM_ERROR_URI)));
+                            JsonUtil.getStringIfDefined(json,
+                                    AuthorizationException.PARAM_ERROR_DESCRIPTION),
+                            UriUtil.parseUriIfAvailable(JsonUtil.getStringIfDefined(json,
+                                    AuthorizationException.PARAM_ERROR_URI)));
                 } catch (JSONException jsonEx) {
                     ex = AuthorizationException.fromTemplate(
                             GeneralErrors.JSON_DESERIALIZATION_ERROR,
                             jsonEx);
                 }
-                mCallback.onTokenRequestCompleted(null, ex);
+                complete(null, ex);
                 return;
             }
 
@@ -292,7 +416,7 @@ public class AuthorizationService {
             try {
                 response = new TokenResponse.Builder(mRequest).fromResponseJson(json).build();
             } catch (JSONException jsonEx) {
-                mCallback.onTokenRequestCompleted(null,
+                complete(null,
                         AuthorizationException.fromTemplate(
                                 GeneralErrors.JSON_DESERIALIZATION_ERROR,
                                 jsonEx));
@@ -301,7 +425,18 @@ public class AuthorizationService {
 
             Logger.debug("Token exchange with %s completed",
                     mRequest.configuration.tokenEndpoint);
-            mCallback.onTokenRequestCompleted(response, null);
+            complete(response, null);
+        }
+
+        private void complete(
+                @Nullable TokenResponse response,
+                @Nullable AuthorizationException ex) {
+            RetryPolicy.AttemptListener listener =
+                    mClientConfiguration.getRetryPolicy().getAttemptListener();
+            if (listener != null) {
+                listener.onRequestCompleted(mRequest.configuration.tokenEndpoint, mAttempts, ex);
+            }
+            mCallback.onTokenRequestCompleted(response, ex);
         }
     }
 
@@ -327,18 +462,14 @@ public class AuthorizationService {
                 @Nullable AuthorizationException ex);
     }
 
-    @VisibleForTesting
-    interface UrlBuilder {
-        URL buildUrlFromString(String uri) throws IOException;
-    }
-
-    static class DefaultUrlBuilder implements UrlBuilder {
-        public static final DefaultUrlBuilder INSTANCE = new DefaultUrlBuilder();
-
-        DefaultUrlBuilder() {}
-
-        public URL buildUrlFromString(String uri) throws IOException {
-            return new URL(uri);
-        }
+    /**
+     * Token endpoint request callback for internal clients of the service, which must also be
+     * informed if the request is cancelled rather than completed.
+     */
+    interface CancellableTokenResponseCallback extends TokenResponseCallback {
+        /**
+         * Invoked instead of {@link #onTokenRequestCompleted} if the request is cancelled.
+         */
+        void onTokenRequestCancelled();
     }
 }
@@ -17,11 +17,16 @@ package net.openid.appauth;
 import static net.openid.appauth.Preconditions.checkArgument;
 import static net.openid.appauth.Preconditions.checkNotNull;
 
+import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import net.openid.appauth.AuthorizationException.GeneralErrors;
 
@@ -30,8 +35,18 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Configuration details required to interact with an authorization service.
@@ -51,6 +66,30 @@ public class AuthorizationServiceConfiguration {
     private static final String KEY_TOKEN_ENDPOINT = "tokenEndpoint";
     private static final String KEY_DISCOVERY_DOC = "discoveryDoc";
 
+    /**
+     * The asset directory containing the discovery documents bundled at build time by the
+     * {@code bundleDiscoveryDocuments} Gradle task.
+     */
+    static final String BUNDLED_DISCOVERY_ASSET_DIR = "appauth/discovery";
+
+    private static final String KEY_BUNDLED_URI = "uri";
+    private static final String KEY_BUNDLED_RETRIEVED_AT = "retrievedAt";
+
+    /**
+     * The retrievals in progress, by discovery URI. Concurrent retrievals for the same URI
+     * attach to the task in progress, rather than each downloading and parsing the document.
+     * Guarded by itself.
+     */
+    private static final Map<Uri, ConfigurationRetrievalAsyncTask> sRetrievalsInProgress =
+            new HashMap<>();
+
+    /**
+     * The {@link #intern() interned} configurations, which are retained only while otherwise
+     * referenced. Guarded by itself.
+     */
+    private static final Map<AuthorizationServiceConfiguration,
+            WeakReference<AuthorizationServiceConfiguration>> sInterned = new WeakHashMap<>();
+
     /**
      * The authorization service's endpoint.
      */
@@ -69,6 +108,17 @@ public class AuthorizationServiceConfiguration {
     @Nullable
     public final AuthorizationServiceDiscovery discoveryDoc;
 
+    /**
+     * The token endpoint as a {@link URL}, created on first use.
+     */
+    @Nullable
+    private volatile URL mTokenEndpointUrl;
+
+    /**
+     * The hash code, computed on first use; zero if not yet computed.
+     */
+    private int mHashCode;
+
     /**
      * Creates a service configuration for a basic OAuth2 provider.
      * @param authorizationEndpoint The <a href="https://tools.ietf.org/html/rfc6749#section-3.1">
@@ -97,6 +147,82 @@ public class AuthorizationServiceConfiguration {
         this.tokenEndpoint = discoveryDoc.getTokenEndpoint();
     }
 
+    /**
+     * Returns the token endpoint as a {@link URL}, which is created once and then reused for
+     * every token request made with this configuration.
+     * @throws MalformedURLException if the token endpoint is not a valid URL.
+     */
+    @NonNull
+    URL getTokenEndpointUrl() throws MalformedURLException {
+        URL url = mTokenEndpointUrl;
+        if (url == null) {
+            url = new URL(tokenEndpoint.toString());
+            mTokenEndpointUrl = url;
+        }
+        return url;
+    }
+
+    /**
+     * Returns a canonical instance equal to this configuration. A single instance is retained for
+     * each distinct configuration, while any instance equal to it is referenced, so restoring
+     * many objects which refer to the same service yields one configuration and discovery
+     * document, rather than one per object. Configurations restored from JSON or retrieved
+     * from a discovery URI are interned automatically.
+     */
+    @NonNull
+    public AuthorizationServiceConfiguration intern() {
+        synchronized (sInterned) {
+            WeakReference<AuthorizationServiceConfiguration> ref = sInterned.get(this);
+            AuthorizationServiceConfiguration interned = (ref != null) ? ref.get() : null;
+            if (interned != null) {
+                return interned;
+            }
+            sInterned.put(this, new WeakReference<>(this));
+            return this;
+        }
+    }
+
+    /**
+     * Configurations are equal if they have the same endpoints, and either have no discovery
+     * document or discovery documents with the same JSON representation.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof AuthorizationServiceConfiguration)) {
+            return false;
+        }
+
+        AuthorizationServiceConfiguration other = (AuthorizationServiceConfiguration) obj;
+        if (hashCode() != other.hashCode()
+                || !authorizationEndpoint.equals(other.authorizationEndpoint)
+                || !tokenEndpoint.equals(other.tokenEndpoint)) {
+            return false;
+        }
+        if (discoveryDoc == null || other.discoveryDoc == null) {
+            return discoveryDoc == other.discoveryDoc;
+        }
+        return discoveryDoc == other.discoveryDoc
+                || discoveryDoc.docJson.toString().equals(other.discoveryDoc.docJson.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        // the discovery document is not expected to be modified, so the hash code is cached
+        int hash = mHashCode;
+        if (hash == 0) {
+            hash = Arrays.hashCode(new Object[] {
+                authorizationEndpoint,
+                tokenEndpoint,
+                discoveryDoc != null ? discoveryDoc.docJson.toString() : null
+            });
+            mHashCode = hash;
+        }
+        return hash;
+    }
+
     /**
      * Converts the authorization service configuration to JSON for storage or transmission.
      */
@@ -111,12 +237,34 @@ public class AuthorizationServiceConfiguration {
         return json;
     }
 
+    /**
+     * Writes the authorization service configuration to the provided JSON writer, in the same
+     * form as {@link #toJson()}.
+     */
+    public void writeJson(@NonNull JsonWriter writer) throws IOException {
+        checkNotNull(writer, "writer cannot be null");
+        writer.beginObject();
+        writer.name(KEY_AUTHORIZATION_ENDPOINT).value(authorizationEndpoint.toString());
+        writer.name(KEY_TOKEN_ENDPOINT).value(tokenEndpoint.toString());
+        if (discoveryDoc != null) {
+            writer.name(KEY_DISCOVERY_DOC);
+            JsonUtil.writeJsonValue(writer, discoveryDoc.docJson);
+        }
+        writer.endObject();
+    }
+
     /**
      * Converts the authorization service configuration to a JSON string for storage or
      * transmission.
      */
     public String toJsonString() {
-        return toJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(new JsonWriter(out));
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a string", ex);
+        }
+        return out.toString();
     }
 
     /**
@@ -133,7 +281,7 @@ public class AuthorizationServiceConfiguration {
             try {
                 AuthorizationServiceDiscovery discoveryDoc =
                         new AuthorizationServiceDiscovery(json.optJSONObject(KEY_DISCOVERY_DOC));
-                return new AuthorizationServiceConfiguration(discoveryDoc);
+                return new AuthorizationServiceConfiguration(discoveryDoc).intern();
             } catch (AuthorizationServiceDiscovery.MissingArgumentException ex) {
                 throw new JSONException("Missing required field in discovery doc: "
                         + ex.getMissingField());
@@ -143,7 +291,7 @@ public class AuthorizationServiceConfiguration {
             checkArgument(json.has(KEY_TOKEN_ENDPOINT), "missing tokenEndpoint");
             return new AuthorizationServiceConfiguration(
                     JsonUtil.getUri(json, KEY_AUTHORIZATION_ENDPOINT),
-                    JsonUtil.getUri(json, KEY_TOKEN_ENDPOINT));
+                    JsonUtil.getUri(json, KEY_TOKEN_ENDPOINT)).intern();
         }
     }
 
@@ -155,7 +303,62 @@ public class AuthorizationServiceConfiguration {
     public static AuthorizationServiceConfiguration fromJson(@NonNull String jsonStr)
             throws JSONException {
         checkNotNull(jsonStr, "json cannot be null");
-        return AuthorizationServiceConfiguration.fromJson(new JSONObject(jsonStr));
+        try {
+            return readJson(JsonUtil.newReader(jsonStr));
+        } catch (IOException ex) {
+            throw JsonUtil.toJsonException("Malformed configuration JSON", ex);
+        }
+    }
+
+    /**
+     * Reads an Authorization service configuration from the provided JSON reader, consuming an
+     * object in the form produced by {@link #writeJson(JsonWriter)} or {@link #toJson()}.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the provided JSON does not match the expected structure.
+     */
+    @NonNull
+    public static AuthorizationServiceConfiguration readJson(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        checkNotNull(reader, "reader cannot be null");
+
+        String authorizationEndpoint = null;
+        String tokenEndpoint = null;
+        JSONObject discoveryDocJson = null;
+
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_AUTHORIZATION_ENDPOINT:
+                    authorizationEndpoint = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_TOKEN_ENDPOINT:
+                    tokenEndpoint = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_DISCOVERY_DOC:
+                    discoveryDocJson = JsonUtil.readJsonObject(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (discoveryDocJson != null) {
+            try {
+                return new AuthorizationServiceConfiguration(
+                        new AuthorizationServiceDiscovery(discoveryDocJson)).intern();
+            } catch (AuthorizationServiceDiscovery.MissingArgumentException ex) {
+                throw new JSONException("Missing required field in discovery doc: "
+                        + ex.getMissingField());
+            }
+        }
+
+        checkArgument(authorizationEndpoint != null, "missing authorizationEndpoint");
+        checkArgument(tokenEndpoint != null, "missing tokenEndpoint");
+        return new AuthorizationServiceConfiguration(
+                Uri.parse(authorizationEndpoint),
+                Uri.parse(tokenEndpoint)).intern();
     }
 
     /**
@@ -170,10 +373,37 @@ public class AuthorizationServiceConfiguration {
      */
     public static void fetchFromIssuer(@NonNull Uri openIdConnectIssuerUri,
             @NonNull RetrieveConfigurationCallback callback) {
-        Uri fullUri = openIdConnectIssuerUri.buildUpon()
+        fetchFromIssuer(openIdConnectIssuerUri, callback, AppAuthConfiguration.DEFAULT);
+    }
+
+    /**
+     * Fetch an AuthorizationServiceConfiguration from an OpenID Connect issuer URI, using the
+     * connection builder and executor of the provided library configuration.
+     * This method is equivalent to
+     * {@link #fetchFromUrl(Uri, RetrieveConfigurationCallback, AppAuthConfiguration)},
+     * but automatically appends the OpenID connect well-known configuration path to the
+     * URI.
+     * @param openIdConnectIssuerUri The issuer URI, e.g. "https://accounts.google.com"
+     * @param callback The callback to invoke upon completion.
+     * @param clientConfiguration The library configuration used to perform the request.
+     * @see <a href="https://openid.net/specs/openid-connect-discovery-1_0.html">"OpenID Connect
+     * discovery"</a>
+     */
+    public static void fetchFromIssuer(@NonNull Uri openIdConnectIssuerUri,
+            @NonNull RetrieveConfigurationCallback callback,
+            @NonNull AppAuthConfiguration clientConfiguration) {
+        fetchFromUrl(buildDiscoveryUri(openIdConnectIssuerUri), callback, clientConfiguration);
+    }
+
+    /**
+     * Returns the discovery URI of an OpenID Connect issuer, by appending the well-known
+     * configuration path to the issuer URI.
+     */
+    @NonNull
+    static Uri buildDiscoveryUri(@NonNull Uri openIdConnectIssuerUri) {
+        return openIdConnectIssuerUri.buildUpon()
                 .appendPath(OPENID_CONFIGURATION_WELL_KNOWN_PATH)
                 .build();
-        fetchFromUrl(fullUri, callback);
     }
 
     /**
@@ -185,25 +415,245 @@ public class AuthorizationServiceConfiguration {
      */
     public static void fetchFromUrl(@NonNull Uri openIdConnectDiscoveryUri,
             @NonNull RetrieveConfigurationCallback callback) {
+        fetchFromUrl(openIdConnectDiscoveryUri, callback, AppAuthConfiguration.DEFAULT);
+    }
+
+    /**
+     * Fetch a AuthorizationServiceConfiguration from an OpenID Connect discovery URI, using
+     * the provided connection builder to create the HTTP connection.
+     * @param openIdConnectDiscoveryUri The OpenID Connect discovery URI
+     * @param callback A callback to invoke upon completion
+     * @param connectionBuilder The connection builder that is used to connect to the
+     *     discovery URI
+     * @see <a href="https://openid.net/specs/openid-connect-discovery-1_0.html">"OpenID Connect
+     * discovery"</a>
+     */
+    public static void fetchFromUrl(@NonNull Uri openIdConnectDiscoveryUri,
+            @NonNull RetrieveConfigurationCallback callback,
+            @NonNull ConnectionBuilder connectionBuilder) {
+        checkNotNull(connectionBuilder, "connectionBuilder cannot be null");
         fetchFromUrl(openIdConnectDiscoveryUri, callback,
-                new AuthorizationService.DefaultUrlBuilder());
+                new AppAuthConfiguration.Builder()
+                        .setConnectionBuilder(connectionBuilder)
+                        .build());
     }
 
-    @VisibleForTesting
-    static void fetchFromUrl(@NonNull Uri openIdConnectDiscoveryUri,
+    /**
+     * Fetch a AuthorizationServiceConfiguration from an OpenID Connect discovery URI, using
+     * the connection builder and executor of the provided library configuration. If the
+     * library configuration has a {@link DiscoveryCache}, a fresh cached document is used
+     * without any network request, and a stale one is revalidated where possible. A persistent
+     * cache may instead complete the retrieval immediately with a stale document, and revalidate
+     * it in the background; see {@link ConfigurationUpdateCallback}.
+     *
+     * <p>If a retrieval for the same discovery URI is already in progress, the callback is
+     * attached to it, and receives the same configuration instance as the other callers; the
+     * library configuration of the retrieval in progress is used.
+     * @param openIdConnectDiscoveryUri The OpenID Connect discovery URI
+     * @param callback A callback to invoke upon completion
+     * @param clientConfiguration The library configuration used to perform the request.
+     * @see <a href="https://openid.net/specs/openid-connect-discovery-1_0.html">"OpenID Connect
+     * discovery"</a>
+     */
+    public static void fetchFromUrl(@NonNull Uri openIdConnectDiscoveryUri,
             @NonNull RetrieveConfigurationCallback callback,
-            @NonNull AuthorizationService.UrlBuilder urlBuilder) {
+            @NonNull AppAuthConfiguration clientConfiguration) {
         checkNotNull(openIdConnectDiscoveryUri, "openIDConnectDiscoveryUri cannot be null");
         checkNotNull(callback, "callback cannot be null");
+        checkNotNull(clientConfiguration, "clientConfiguration cannot be null");
         checkArgument("https".equals(openIdConnectDiscoveryUri.getScheme()),
                 "openIDConnectDiscoveryUri must be https");
         URL url;
         try {
-            url = urlBuilder.buildUrlFromString(openIdConnectDiscoveryUri.toString());
-        } catch (IOException ex) {
+            url = new URL(openIdConnectDiscoveryUri.toString());
+        } catch (MalformedURLException ex) {
             throw new IllegalArgumentException("Malformed discovery doc URI", ex);
         }
-        new ConfigurationRetrievalAsyncTask(url, callback).execute();
+
+        ConfigurationRetrievalAsyncTask task;
+        synchronized (sRetrievalsInProgress) {
+            task = sRetrievalsInProgress.get(openIdConnectDiscoveryUri);
+            if (task != null) {
+                Logger.debug("Attaching to retrieval in progress for %s",
+                        openIdConnectDiscoveryUri);
+                task.addCallback(callback);
+                return;
+            }
+            task = new ConfigurationRetrievalAsyncTask(
+                    openIdConnectDiscoveryUri,
+                    url,
+                    clientConfiguration,
+                    callback);
+            sRetrievalsInProgress.put(openIdConnectDiscoveryUri, task);
+        }
+        try {
+            task.executeOnExecutor(clientConfiguration.getExecutor());
+        } catch (RuntimeException ex) {
+            synchronized (sRetrievalsInProgress) {
+                sRetrievalsInProgress.remove(openIdConnectDiscoveryUri);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Fetch an AuthorizationServiceConfiguration from an OpenID Connect discovery URI, using a
+     * snapshot of the discovery document bundled with the application at build time, if there
+     * is one. The callback is invoked with the snapshot as soon as it is read, without waiting
+     * for the network, and the document is then revalidated in the background. If the
+     * revalidated configuration has different endpoints, and the callback implements
+     * {@link ConfigurationUpdateCallback}, it is informed.
+     *
+     * <p>If the library configuration has a {@link DiscoveryCache} which already contains the
+     * document, such as from a previous launch, or no snapshot was bundled, this method is
+     * equivalent to {@link #fetchFromUrl(Uri, RetrieveConfigurationCallback,
+     * AppAuthConfiguration)}.
+     *
+     * <p>The cache and the snapshot are read on the executor of the library configuration, and
+     * the callback is invoked on the main thread.
+     *
+     * @param context The context used to read the application's assets.
+     * @param openIdConnectDiscoveryUri The OpenID Connect discovery URI
+     * @param callback A callback to invoke upon completion
+     * @param clientConfiguration The library configuration used to perform the revalidation.
+     */
+    public static void fetchFromBundle(@NonNull Context context,
+            @NonNull final Uri openIdConnectDiscoveryUri,
+            @NonNull final RetrieveConfigurationCallback callback,
+            @NonNull final AppAuthConfiguration clientConfiguration) {
+        checkNotNull(context, "context cannot be null");
+        checkNotNull(openIdConnectDiscoveryUri, "openIDConnectDiscoveryUri cannot be null");
+        checkNotNull(callback, "callback cannot be null");
+        checkNotNull(clientConfiguration, "clientConfiguration cannot be null");
+
+        final Context applicationContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        // the cache and the asset are read from disk, so are not read on the calling thread
+        clientConfiguration.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                DiscoveryCache cache = clientConfiguration.getDiscoveryCache();
+                final AuthorizationServiceConfiguration bundled =
+                        (cache != null && cache.contains(openIdConnectDiscoveryUri))
+                                ? null
+                                : readBundled(applicationContext, openIdConnectDiscoveryUri);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetchWithBundled(
+                                openIdConnectDiscoveryUri,
+                                bundled,
+                                callback,
+                                clientConfiguration);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Completes {@link #fetchFromBundle} on the main thread, once the bundled snapshot, if any,
+     * has been read.
+     */
+    private static void fetchWithBundled(
+            @NonNull final Uri openIdConnectDiscoveryUri,
+            @Nullable final AuthorizationServiceConfiguration bundled,
+            @NonNull final RetrieveConfigurationCallback callback,
+            @NonNull AppAuthConfiguration clientConfiguration) {
+        if (bundled == null) {
+            fetchFromUrl(openIdConnectDiscoveryUri, callback, clientConfiguration);
+            return;
+        }
+
+        callback.onFetchConfigurationCompleted(bundled, null);
+        fetchFromUrl(openIdConnectDiscoveryUri, new RetrieveConfigurationCallback() {
+            @Override
+            public void onFetchConfigurationCompleted(
+                    @Nullable AuthorizationServiceConfiguration configuration,
+                    @Nullable AuthorizationException ex) {
+                if (configuration == null) {
+                    Logger.debug("Unable to revalidate bundled discovery document for %s",
+                            openIdConnectDiscoveryUri);
+                } else if (callback instanceof ConfigurationUpdateCallback
+                        && DiscoveryCache.endpointsChanged(bundled, configuration)) {
+                    ((ConfigurationUpdateCallback) callback).onConfigurationUpdated(
+                            configuration);
+                }
+            }
+        }, clientConfiguration);
+    }
+
+    /**
+     * Reads the configuration from the snapshot of the discovery document bundled as an asset
+     * for the discovery URI, if there is one.
+     */
+    @Nullable
+    private static AuthorizationServiceConfiguration readBundled(
+            @NonNull Context context,
+            @NonNull Uri discoveryUri) {
+        String assetName = BUNDLED_DISCOVERY_ASSET_DIR + "/"
+                + DiscoveryCache.getFileName(discoveryUri);
+        InputStream in;
+        try {
+            in = context.getAssets().open(assetName);
+        } catch (IOException ex) {
+            // no snapshot was bundled for this URI
+            return null;
+        }
+
+        try {
+            return readBundled(in, discoveryUri);
+        } catch (IOException
+                | JSONException
+                | AuthorizationServiceDiscovery.MissingArgumentException ex) {
+            Logger.warnWithStack(ex, "Ignoring malformed bundled discovery document %s",
+                    assetName);
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads the configuration from a bundled snapshot of a discovery document, if it is the
+     * snapshot for the specified discovery URI.
+     */
+    @Nullable
+    @VisibleForTesting
+    static AuthorizationServiceConfiguration readBundled(
+            @NonNull InputStream in,
+            @NonNull Uri discoveryUri)
+            throws IOException, JSONException,
+            AuthorizationServiceDiscovery.MissingArgumentException {
+        JsonReader reader = JsonUtil.newReader(in);
+        String uri = null;
+        Long retrievedAt = null;
+        JSONObject discoveryDoc = null;
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case KEY_BUNDLED_URI:
+                    uri = JsonUtil.nextString(reader);
+                    break;
+                case KEY_BUNDLED_RETRIEVED_AT:
+                    retrievedAt = JsonUtil.nextLong(reader);
+                    break;
+                case KEY_DISCOVERY_DOC:
+                    discoveryDoc = JsonUtil.readJsonObject(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!discoveryUri.toString().equals(uri)) {
+            Logger.warn("Ignoring bundled discovery document for a different URI: %s", uri);
+            return null;
+        }
+        Logger.debug("Using discovery document for %s bundled at %d", uri, retrievedAt);
+        return new AuthorizationServiceConfiguration(new AuthorizationServiceDiscovery(
+                JsonUtil.checkFieldPresent(discoveryDoc, KEY_DISCOVERY_DOC))).intern();
     }
 
     /**
@@ -229,71 +679,219 @@ public class AuthorizationServiceConfiguration {
                 @Nullable AuthorizationException ex);
     }
 
+    /**
+     * Extension of {@link RetrieveConfigurationCallback} for retrievals which may complete with
+     * a stale configuration from a {@link DiscoveryCache}, while the discovery document is
+     * revalidated in the background.
+     */
+    public interface ConfigurationUpdateCallback extends RetrieveConfigurationCallback {
+        /**
+         * Invoked when the background revalidation of a stale configuration, previously provided
+         * to {@link #onFetchConfigurationCompleted}, retrieves a configuration with different
+         * endpoints. Subsequent requests should use the updated configuration.
+         *
+         * @param serviceConfiguration the updated service configuration.
+         */
+        void onConfigurationUpdated(
+                @NonNull AuthorizationServiceConfiguration serviceConfiguration);
+    }
+
     /**
      * ASyncTask that tries to retrieve the discover document and gives the callback with the
      * values retrieved from the discovery document. In case of retrieval error, the exception
      * is handed back to the callback.
      */
     private static class ConfigurationRetrievalAsyncTask
-            extends AsyncTask<Void, Void, AuthorizationServiceConfiguration> {
+            extends AsyncTask<Void, AuthorizationServiceConfiguration,
+                    AuthorizationServiceConfiguration> {
+        private Uri mUri;
         private URL mUrl;
+        private AppAuthConfiguration mClientConfiguration;
+        private RetryPolicy mRetryPolicy;
 
-        private static final int CONNECTION_TIMEOUT_MS = 15000;
-        private static final int CONNECTION_READ_TIMEOUT_MS = 10000;
-
-        private RetrieveConfigurationCallback mCallback;
+        /**
+         * The callbacks to be informed of the result, guarded by
+         * {@link #sRetrievalsInProgress}. The first {@link #mStaleCallbackCount} of them have
+         * already received the stale configuration.
+         */
+        private List<RetrieveConfigurationCallback> mCallbacks = new ArrayList<>();
+        private int mStaleCallbackCount;
         private AuthorizationException mException;
+        private int mAttempts;
+        private AuthorizationServiceConfiguration mStaleConfiguration;
 
-        ConfigurationRetrievalAsyncTask(URL url, RetrieveConfigurationCallback callback) {
+        ConfigurationRetrievalAsyncTask(
+                Uri uri,
+                URL url,
+                AppAuthConfiguration clientConfiguration,
+                RetrieveConfigurationCallback callback) {
+            mUri = uri;
             mUrl = url;
-            mCallback = callback;
+            mClientConfiguration = clientConfiguration;
+            mRetryPolicy = clientConfiguration.getRetryPolicy();
+            mCallbacks.add(callback);
             mException = null;
         }
 
+        void addCallback(RetrieveConfigurationCallback callback) {
+            // only invoked while holding the sRetrievalsInProgress lock
+            mCallbacks.add(callback);
+        }
+
         @Override
         protected AuthorizationServiceConfiguration doInBackground(Void... voids) {
-            InputStream is = null;
-            try {
-                HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
-                conn.setConnectTimeout(CONNECTION_TIMEOUT_MS);
-                conn.setReadTimeout(CONNECTION_READ_TIMEOUT_MS);
-                conn.setRequestMethod("GET");
-                conn.setDoInput(true);
-                conn.connect();
-
-                is = conn.getInputStream();
-                JSONObject json = new JSONObject(Utils.readInputStream(is));
-
-                AuthorizationServiceDiscovery discovery =
-                        new AuthorizationServiceDiscovery(json);
-                return new AuthorizationServiceConfiguration(discovery);
-            } catch (IOException ex) {
-                Logger.errorWithStack(ex, "Network error when retrieving discovery document");
-                mException = AuthorizationException.fromTemplate(
-                        GeneralErrors.NETWORK_ERROR,
-                        ex);
-            } catch (JSONException ex) {
-                Logger.errorWithStack(ex, "Error parsing discovery document");
-                mException = AuthorizationException.fromTemplate(
-                        GeneralErrors.JSON_DESERIALIZATION_ERROR,
-                        ex);
-            } catch (AuthorizationServiceDiscovery.MissingArgumentException ex) {
-                Logger.errorWithStack(ex, "Malformed discovery document");
-                mException = AuthorizationException.fromTemplate(
-                        GeneralErrors.INVALID_DISCOVERY_DOCUMENT,
-                        ex);
-            } finally {
-                Utils.closeQuietly(is);
+            DiscoveryCache cache = mClientConfiguration.getDiscoveryCache();
+            String etag = null;
+            if (cache != null) {
+                AuthorizationServiceConfiguration cached = cache.getIfFresh(mUri);
+                if (cached != null) {
+                    Logger.debug("Using cached discovery document for %s", mUri);
+                    return cached;
+                }
+                AuthorizationServiceConfiguration stale = cache.getIfUsableWhileRevalidating(mUri);
+                if (stale != null) {
+                    Logger.debug("Using stale discovery document for %s while revalidating",
+                            mUri);
+                    publishProgress(stale);
+                }
+                etag = cache.getETag(mUri);
+            }
+
+            while (true) {
+                mAttempts++;
+                InputStream is = null;
+                try {
+                    HttpURLConnection conn =
+                            mClientConfiguration.getConnectionBuilder().openConnection(mUrl);
+                    conn.setConnectTimeout(mClientConfiguration.getConnectTimeoutMs());
+                    conn.setReadTimeout(mClientConfiguration.getReadTimeoutMs());
+                    conn.setRequestMethod("GET");
+                    if (etag != null) {
+                        conn.setRequestProperty(DiscoveryCache.HEADER_IF_NONE_MATCH, etag);
+                    }
+                    conn.setDoInput(true);
+                    conn.connect();
+
+                    int responseCode = conn.getResponseCode();
+                    if (etag != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        AuthorizationServiceConfiguration cached = cache.revalidated(mUri, conn);
+                        if (cached != null) {
+                            Logger.debug("Revalidated cached discovery document for %s", mUri);
+                            return cached;
+                        }
+                        // the cached document was discarded in the meantime, so fetch it in full
+                        etag = null;
+                        continue;
+                    }
+
+                    if (RetryPolicy.isRetryableResponseCode(responseCode)) {
+                        // the error body must be fully read for the connection to be reused
+                        is = conn.getErrorStream();
+                        if (is != null) {
+                            Utils.readInputStream(is);
+                        }
+                        if (mRetryPolicy.awaitRetry(mAttempts,
+                                conn.getHeaderField(RetryPolicy.HEADER_RETRY_AFTER))) {
+                            continue;
+                        }
+                        Logger.error("Server error %d when retrieving discovery document",
+                                responseCode);
+                        mException = AuthorizationException.fromTemplate(
+                                GeneralErrors.SERVER_ERROR,
+                                null);
+                        return null;
+                    }
+
+                    is = conn.getInputStream();
+                    Set<String> retainedFields = mClientConfiguration.getRetainedDiscoveryFields();
+                    AuthorizationServiceDiscovery discovery;
+                    if (retainedFields != null) {
+                        JSONObject json = JsonUtil.parseJsonObject(is,
+                                AuthorizationServiceDiscovery.getRetainedFields(retainedFields));
+                        discovery = AuthorizationServiceDiscovery.withRetainedFields(
+                                json, retainedFields);
+                    } else {
+                        discovery = new AuthorizationServiceDiscovery(
+                                JsonUtil.parseJsonObject(is));
+                    }
+                    AuthorizationServiceConfiguration configuration =
+                            new AuthorizationServiceConfiguration(discovery).intern();
+                    if (cache != null) {
+                        cache.put(mUri, configuration, conn);
+                    }
+                    return configuration;
+                } catch (IOException ex) {
+                    if (mRetryPolicy.awaitRetry(mAttempts, null)) {
+                        Logger.debugWithStack(ex, "Network error when retrieving discovery"
+                                + " document, retrying");
+                        continue;
+                    }
+                    Logger.errorWithStack(ex, "Network error when retrieving discovery document");
+                    mException = AuthorizationException.fromTemplate(
+                            GeneralErrors.NETWORK_ERROR,
+                            ex);
+                } catch (JSONException ex) {
+                    Logger.errorWithStack(ex, "Error parsing discovery document");
+                    mException = AuthorizationException.fromTemplate(
+                            GeneralErrors.JSON_DESERIALIZATION_ERROR,
+                            ex);
+                } catch (AuthorizationServiceDiscovery.MissingArgumentException ex) {
+                    Logger.errorWithStack(ex, "Malformed discovery document");
+                    mException = AuthorizationException.fromTemplate(
+                            GeneralErrors.INVALID_DISCOVERY_DOCUMENT,
+                            ex);
+                } finally {
+                    Utils.closeQuietly(is);
+                }
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(AuthorizationServiceConfiguration... stale) {
+            mStaleConfiguration = stale[0];
+            List<RetrieveConfigurationCallback> callbacks;
+            synchronized (sRetrievalsInProgress) {
+                callbacks = new ArrayList<>(mCallbacks);
+                mStaleCallbackCount = callbacks.size();
+            }
+            for (RetrieveConfigurationCallback callback : callbacks) {
+                callback.onFetchConfigurationCompleted(mStaleConfiguration, null);
             }
-            return null;
         }
 
         @Override
         protected void onPostExecute(AuthorizationServiceConfiguration configuration) {
-            if (mException != null) {
-                mCallback.onFetchConfigurationCompleted(null, mException);
-            } else {
-                mCallback.onFetchConfigurationCompleted(configuration, null);
+            // no further callbacks may attach once the task is no longer in progress
+            synchronized (sRetrievalsInProgress) {
+                sRetrievalsInProgress.remove(mUri);
+            }
+
+            RetryPolicy.AttemptListener listener = mRetryPolicy.getAttemptListener();
+            if (listener != null && mAttempts > 0) {
+                listener.onRequestCompleted(mUri, mAttempts, mException);
+            }
+
+            boolean endpointsChanged = mStaleConfiguration != null
+                    && mException == null
+                    && DiscoveryCache.endpointsChanged(mStaleConfiguration, configuration);
+            if (mStaleConfiguration != null && mException != null) {
+                Logger.debug("Unable to revalidate stale discovery document for %s", mUri);
+            }
+
+            for (int i = 0; i < mCallbacks.size(); i++) {
+                RetrieveConfigurationCallback callback = mCallbacks.get(i);
+                if (i < mStaleCallbackCount) {
+                    // the callback has already been invoked with the stale configuration
+                    if (endpointsChanged && callback instanceof ConfigurationUpdateCallback) {
+                        ((ConfigurationUpdateCallback) callback).onConfigurationUpdated(
+                                configuration);
+                    }
+                } else if (mException != null) {
+                    callback.onFetchConfigurationCompleted(null, mException);
+                } else {
+                    callback.onFetchConfigurationCompleted(configuration, null);
+                }
             }
         }
     }
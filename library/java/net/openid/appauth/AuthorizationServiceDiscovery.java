@@ -31,12 +31,22 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * An OpenID Connect 1.0 Discovery Document.
  *
+ * <p>The standard metadata values are decoded once, so the accessors of this class do not
+ * repeatedly parse or allocate. Scalar values are decoded when the document is created. Lists of
+ * values, which are often lengthy and mostly unused, are decoded on first access, so that a
+ * malformed list only fails the accessor which reads it, with an
+ * {@link IllegalStateException}. Lists of values are unmodifiable. The accessors do not reflect
+ * changes made to {@link #docJson} after they are first called.
+ *
  * @see <a href=https://openid.net/specs/openid-connect-discovery-1_0.html#ProviderMetadata>
  * "OpenID Provider Metadata", OpenID Connect Discovery 1.0, Section 3</a>
  */
@@ -177,11 +187,112 @@ public class AuthorizationServiceDiscovery {
             ID_TOKEN_SIGNING_ALG_VALUES_SUPPORTED.key);
 
     /**
-     * The JSON representation of the discovery document.
+     * The metadata retained by {@link #withRetainedFields}: the mandatory fields, the
+     * endpoints, and the fields consulted when making requests.
+     */
+    private static final List<String> RETAINED_METADATA = Arrays.asList(
+            ISSUER.key,
+            AUTHORIZATION_ENDPOINT.key,
+            TOKEN_ENDPOINT.key,
+            USERINFO_ENDPOINT.key,
+            JWKS_URI.key,
+            REGISTRATION_ENDPOINT.key,
+            SCOPES_SUPPORTED.key,
+            RESPONSE_TYPES_SUPPORTED.key,
+            RESPONSE_MODES_SUPPORTED.key,
+            GRANT_TYPES_SUPPORTED.key,
+            SUBJECT_TYPES_SUPPORTED.key,
+            ID_TOKEN_SIGNING_ALG_VALUES_SUPPORTED.key,
+            TOKEN_ENDPOINT_AUTH_METHODS_SUPPORTED.key);
+
+    /**
+     * The JSON representation of the discovery document. For documents created by
+     * {@link #withRetainedFields}, this contains only the retained fields.
      */
     @NonNull
     public final JSONObject docJson;
 
+    // the standard metadata values, decoded from docJson on creation
+
+    @NonNull
+    private final String mIssuer;
+
+    @NonNull
+    private final Uri mAuthorizationEndpoint;
+
+    @Nullable
+    private final Uri mTokenEndpoint;
+
+    @Nullable
+    private final Uri mUserinfoEndpoint;
+
+    @NonNull
+    private final Uri mJwksUri;
+
+    @Nullable
+    private final Uri mRegistrationEndpoint;
+
+    private final LazyList<String> mScopesSupported;
+
+    private final LazyList<String> mResponseTypesSupported;
+
+    private final LazyList<String> mResponseModesSupported;
+
+    private final LazyList<String> mGrantTypesSupported;
+
+    private final LazyList<String> mAcrValuesSupported;
+
+    private final LazyList<String> mSubjectTypesSupported;
+
+    private final LazyList<String> mIdTokenSigningAlgValuesSupported;
+
+    private final LazyList<String> mIdTokenEncryptionAlgValuesSupported;
+
+    private final LazyList<String> mIdTokenEncryptionEncValuesSupported;
+
+    private final LazyList<String> mUserinfoSigningAlgValuesSupported;
+
+    private final LazyList<String> mUserinfoEncryptionAlgValuesSupported;
+
+    private final LazyList<String> mUserinfoEncryptionEncValuesSupported;
+
+    private final LazyList<String> mRequestObjectSigningAlgValuesSupported;
+
+    private final LazyList<String> mRequestObjectEncryptionAlgValuesSupported;
+
+    private final LazyList<String> mRequestObjectEncryptionEncValuesSupported;
+
+    private final LazyList<String> mTokenEndpointAuthMethodsSupported;
+
+    private final LazyList<String> mTokenEndpointAuthSigningAlgValuesSupported;
+
+    private final LazyList<String> mDisplayValuesSupported;
+
+    private final LazyList<String> mClaimTypesSupported;
+
+    private final LazyList<String> mClaimsSupported;
+
+    @Nullable
+    private final Uri mServiceDocumentation;
+
+    private final LazyList<String> mClaimsLocalesSupported;
+
+    private final LazyList<String> mUiLocalesSupported;
+
+    private final boolean mClaimsParameterSupported;
+
+    private final boolean mRequestParameterSupported;
+
+    private final boolean mRequestUriParameterSupported;
+
+    private final boolean mRequireRequestUriRegistration;
+
+    @Nullable
+    private final Uri mOpPolicyUri;
+
+    @Nullable
+    private final Uri mOpTosUri;
+
     /**
      * Extracts a discovery document from its standard JSON representation.
      * @throws JSONException if the provided JSON does not match the expected structure.
@@ -196,6 +307,95 @@ public class AuthorizationServiceDiscovery {
                 throw new MissingArgumentException(mandatory);
             }
         }
+
+        mIssuer = decode(ISSUER);
+        mAuthorizationEndpoint = decode(AUTHORIZATION_ENDPOINT);
+        mTokenEndpoint = decode(TOKEN_ENDPOINT);
+        mUserinfoEndpoint = decode(USERINFO_ENDPOINT);
+        mJwksUri = decode(JWKS_URI);
+        mRegistrationEndpoint = decode(REGISTRATION_ENDPOINT);
+        mScopesSupported = new LazyList<>(SCOPES_SUPPORTED);
+        mResponseTypesSupported = new LazyList<>(RESPONSE_TYPES_SUPPORTED);
+        mResponseModesSupported = new LazyList<>(RESPONSE_MODES_SUPPORTED);
+        mGrantTypesSupported = new LazyList<>(GRANT_TYPES_SUPPORTED);
+        mAcrValuesSupported = new LazyList<>(ACR_VALUES_SUPPORTED);
+        mSubjectTypesSupported = new LazyList<>(SUBJECT_TYPES_SUPPORTED);
+        mIdTokenSigningAlgValuesSupported = new LazyList<>(ID_TOKEN_SIGNING_ALG_VALUES_SUPPORTED);
+        mIdTokenEncryptionAlgValuesSupported =
+                new LazyList<>(ID_TOKEN_ENCRYPTION_ALG_VALUES_SUPPORTED);
+        mIdTokenEncryptionEncValuesSupported =
+                new LazyList<>(ID_TOKEN_ENCRYPTION_ENC_VALUES_SUPPORTED);
+        mUserinfoSigningAlgValuesSupported = new LazyList<>(USERINFO_SIGNING_ALG_VALUES_SUPPORTED);
+        mUserinfoEncryptionAlgValuesSupported =
+                new LazyList<>(USERINFO_ENCRYPTION_ALG_VALUES_SUPPORTED);
+        mUserinfoEncryptionEncValuesSupported =
+                new LazyList<>(USERINFO_ENCRYPTION_ENC_VALUES_SUPPORTED);
+        mRequestObjectSigningAlgValuesSupported =
+                new LazyList<>(REQUEST_OBJECT_SIGNING_ALG_VALUES_SUPPORTED);
+        mRequestObjectEncryptionAlgValuesSupported =
+                new LazyList<>(REQUEST_OBJECT_ENCRYPTION_ALG_VALUES_SUPPORTED);
+        mRequestObjectEncryptionEncValuesSupported =
+                new LazyList<>(REQUEST_OBJECT_ENCRYPTION_ENC_VALUES_SUPPORTED);
+        mTokenEndpointAuthMethodsSupported = new LazyList<>(TOKEN_ENDPOINT_AUTH_METHODS_SUPPORTED);
+        mTokenEndpointAuthSigningAlgValuesSupported =
+                new LazyList<>(TOKEN_ENDPOINT_AUTH_SIGNING_ALG_VALUES_SUPPORTED);
+        mDisplayValuesSupported = new LazyList<>(DISPLAY_VALUES_SUPPORTED);
+        mClaimTypesSupported = new LazyList<>(CLAIM_TYPES_SUPPORTED);
+        mClaimsSupported = new LazyList<>(CLAIMS_SUPPORTED);
+        mServiceDocumentation = decode(SERVICE_DOCUMENTATION);
+        mClaimsLocalesSupported = new LazyList<>(CLAIMS_LOCALES_SUPPORTED);
+        mUiLocalesSupported = new LazyList<>(UI_LOCALES_SUPPORTED);
+        mClaimsParameterSupported = decode(CLAIMS_PARAMETER_SUPPORTED);
+        mRequestParameterSupported = decode(REQUEST_PARAMETER_SUPPORTED);
+        mRequestUriParameterSupported = decode(REQUEST_URI_PARAMETER_SUPPORTED);
+        mRequireRequestUriRegistration = decode(REQUIRE_REQUEST_URI_REGISTRATION);
+        mOpPolicyUri = decode(OP_POLICY_URI);
+        mOpTosUri = decode(OP_TOS_URI);
+    }
+
+    /**
+     * Extracts a discovery document from its standard JSON representation, retaining only the
+     * metadata required by the library, and the specified additional fields. The values of
+     * other fields, such as the often lengthy lists of supported claims and locales, are
+     * discarded, along with the provided JSON object, so they are not held in memory for the
+     * lifetime of the configuration. Accessors of discarded metadata return their default
+     * values.
+     *
+     * <p>The metadata required by the library comprises the mandatory fields, the endpoints,
+     * and the supported scopes, response types, response modes, grant types and token endpoint
+     * authentication methods.
+     *
+     * @param additionalFields the names of additional fields to retain, such as non-standard
+     *     metadata read from {@link #docJson}.
+     * @throws JSONException if the provided JSON does not match the expected structure.
+     * @throws MissingArgumentException if a mandatory property is missing from the discovery
+     *     document.
+     */
+    @NonNull
+    public static AuthorizationServiceDiscovery withRetainedFields(
+            @NonNull JSONObject discoveryDoc,
+            @NonNull Collection<String> additionalFields)
+            throws JSONException, MissingArgumentException {
+        checkNotNull(discoveryDoc, "discoveryDoc cannot be null");
+        JSONObject retained = new JSONObject();
+        for (String field : getRetainedFields(additionalFields)) {
+            if (discoveryDoc.has(field)) {
+                retained.put(field, discoveryDoc.get(field));
+            }
+        }
+        return new AuthorizationServiceDiscovery(retained);
+    }
+
+    /**
+     * Returns the names of the fields retained by {@link #withRetainedFields} with the specified
+     * additional fields.
+     */
+    @NonNull
+    static Set<String> getRetainedFields(@NonNull Collection<String> additionalFields) {
+        checkNotNull(additionalFields, "additionalFields cannot be null");
+        Set<String> fields = new HashSet<>(RETAINED_METADATA);
+        fields.addAll(additionalFields);
+        return fields;
     }
 
     /**
@@ -218,21 +418,42 @@ public class AuthorizationServiceDiscovery {
     }
 
     /**
-     * Retrieves a metadata value from the discovery document. This need only be used
-     * for the retrieval of a non-standard metadata value. Convenience methods are defined on this
-     * class for all standard metadata values.
+     * Decodes a metadata value from the discovery document.
      */
-    private <T> T get(Field<T> field) {
+    private <T> T decode(Field<T> field) {
         return JsonUtil.get(docJson, field);
     }
 
     /**
-     * Retrieves a metadata value from the discovery document. This need only be used
-     * for the retrieval of a non-standard metadata value. Convenience methods are defined on this
-     * class for all standard metadata values.
+     * A list metadata value, decoded from the discovery document on first access.
      */
-    private <T> List<T> get(JsonUtil.ListField<T> field) {
-        return JsonUtil.get(docJson, field);
+    private final class LazyList<T> {
+
+        @NonNull
+        private final JsonUtil.ListField<T> mField;
+
+        @Nullable
+        private List<T> mValues;
+
+        private boolean mDecoded;
+
+        LazyList(@NonNull JsonUtil.ListField<T> field) {
+            mField = field;
+        }
+
+        /**
+         * Returns the unmodifiable list of values.
+         * @throws IllegalStateException if the value is not a JSON array.
+         */
+        @Nullable
+        synchronized List<T> get() {
+            if (!mDecoded) {
+                List<T> values = JsonUtil.get(docJson, mField);
+                mValues = (values != null) ? Collections.unmodifiableList(values) : null;
+                mDecoded = true;
+            }
+            return mValues;
+        }
     }
 
     /**
@@ -243,7 +464,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public String getIssuer() {
-        return get(ISSUER);
+        return mIssuer;
     }
 
     /**
@@ -254,7 +475,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public Uri getAuthorizationEndpoint() {
-        return get(AUTHORIZATION_ENDPOINT);
+        return mAuthorizationEndpoint;
     }
 
     /**
@@ -265,7 +486,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public Uri getTokenEndpoint() {
-        return get(TOKEN_ENDPOINT);
+        return mTokenEndpoint;
     }
 
     /**
@@ -276,7 +497,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public Uri getUserinfoEndpoint() {
-        return get(USERINFO_ENDPOINT);
+        return mUserinfoEndpoint;
     }
 
     /**
@@ -286,7 +507,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public Uri getJwksUri() {
-        return get(JWKS_URI);
+        return mJwksUri;
     }
 
     /**
@@ -297,7 +518,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public Uri getRegistrationEndpoint() {
-        return get(REGISTRATION_ENDPOINT);
+        return mRegistrationEndpoint;
     }
 
     /**
@@ -308,7 +529,7 @@ public class AuthorizationServiceDiscovery {
      */
 
     public List<String> getScopesSupported() {
-        return get(SCOPES_SUPPORTED);
+        return mScopesSupported.get();
     }
 
     /**
@@ -316,7 +537,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public List<String> getResponseTypesSupported() {
-        return get(RESPONSE_TYPES_SUPPORTED);
+        return mResponseTypesSupported.get();
     }
 
     /**
@@ -327,7 +548,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getResponseModesSupported() {
-        return get(RESPONSE_MODES_SUPPORTED);
+        return mResponseModesSupported.get();
     }
 
     /**
@@ -337,14 +558,14 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public List<String> getGrantTypesSupported() {
-        return get(GRANT_TYPES_SUPPORTED);
+        return mGrantTypesSupported.get();
     }
 
     /**
      * The authentication context class references supported.
      */
     public List<String> getAcrValuesSupported() {
-        return get(ACR_VALUES_SUPPORTED);
+        return mAcrValuesSupported.get();
     }
 
     /**
@@ -352,7 +573,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public List<String> getSubjectTypesSupported() {
-        return get(SUBJECT_TYPES_SUPPORTED);
+        return mSubjectTypesSupported.get();
     }
 
     /**
@@ -362,7 +583,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public List<String> getIdTokenSigningAlgorithmValuesSupported() {
-        return get(ID_TOKEN_SIGNING_ALG_VALUES_SUPPORTED);
+        return mIdTokenSigningAlgValuesSupported.get();
     }
 
     /**
@@ -372,7 +593,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getIdTokenEncryptionAlgorithmValuesSupported() {
-        return get(ID_TOKEN_ENCRYPTION_ALG_VALUES_SUPPORTED);
+        return mIdTokenEncryptionAlgValuesSupported.get();
     }
 
     /**
@@ -382,7 +603,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getIdTokenEncryptionEncodingValuesSupported() {
-        return get(ID_TOKEN_ENCRYPTION_ENC_VALUES_SUPPORTED);
+        return mIdTokenEncryptionEncValuesSupported.get();
     }
 
     /**
@@ -395,7 +616,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getUserinfoSigningAlgorithmValuesSupported() {
-        return get(USERINFO_SIGNING_ALG_VALUES_SUPPORTED);
+        return mUserinfoSigningAlgValuesSupported.get();
     }
 
     /**
@@ -408,7 +629,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getUserinfoEncryptionAlgorithmValuesSupported() {
-        return get(USERINFO_ENCRYPTION_ALG_VALUES_SUPPORTED);
+        return mUserinfoEncryptionAlgValuesSupported.get();
     }
 
     /**
@@ -419,7 +640,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getUserinfoEncryptionEncodingValuesSupported() {
-        return get(USERINFO_ENCRYPTION_ENC_VALUES_SUPPORTED);
+        return mUserinfoEncryptionEncValuesSupported.get();
     }
 
     /**
@@ -429,7 +650,7 @@ public class AuthorizationServiceDiscovery {
      * "OpenID Connect Core 1.0", Section 6.1</a>
      */
     public List<String> getRequestObjectSigningAlgorithmValuesSupported() {
-        return get(REQUEST_OBJECT_SIGNING_ALG_VALUES_SUPPORTED);
+        return mRequestObjectSigningAlgValuesSupported.get();
     }
 
     /**
@@ -437,7 +658,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getRequestObjectEncryptionAlgorithmValuesSupported() {
-        return get(REQUEST_OBJECT_ENCRYPTION_ALG_VALUES_SUPPORTED);
+        return mRequestObjectEncryptionAlgValuesSupported.get();
     }
 
     /**
@@ -445,7 +666,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getRequestObjectEncryptionEncodingValuesSupported() {
-        return get(REQUEST_OBJECT_ENCRYPTION_ENC_VALUES_SUPPORTED);
+        return mRequestObjectEncryptionEncValuesSupported.get();
     }
 
     /**
@@ -460,7 +681,7 @@ public class AuthorizationServiceDiscovery {
      */
     @NonNull
     public List<String> getTokenEndpointAuthMethodsSupported() {
-        return get(TOKEN_ENDPOINT_AUTH_METHODS_SUPPORTED);
+        return mTokenEndpointAuthMethodsSupported.get();
     }
 
     /**
@@ -472,7 +693,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getTokenEndpointAuthSigningAlgorithmValuesSupported() {
-        return get(TOKEN_ENDPOINT_AUTH_SIGNING_ALG_VALUES_SUPPORTED);
+        return mTokenEndpointAuthSigningAlgValuesSupported.get();
     }
 
     /**
@@ -483,7 +704,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getDisplayValuesSupported() {
-        return get(DISPLAY_VALUES_SUPPORTED);
+        return mDisplayValuesSupported.get();
     }
 
     /**
@@ -494,7 +715,7 @@ public class AuthorizationServiceDiscovery {
      * "OpenID Connect Core 1.0", Section 5.6</a>
      */
     public List<String> getClaimTypesSupported() {
-        return get(CLAIM_TYPES_SUPPORTED);
+        return mClaimTypesSupported.get();
     }
 
     /**
@@ -502,7 +723,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getClaimsSupported() {
-        return get(CLAIMS_SUPPORTED);
+        return mClaimsSupported.get();
     }
 
     /**
@@ -511,7 +732,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public Uri getServiceDocumentation() {
-        return get(SERVICE_DOCUMENTATION);
+        return mServiceDocumentation;
     }
 
     /**
@@ -522,7 +743,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getClaimsLocalesSupported() {
-        return get(CLAIMS_LOCALES_SUPPORTED);
+        return mClaimsLocalesSupported.get();
     }
 
     /**
@@ -533,7 +754,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public List<String> getUiLocalesSupported() {
-        return get(UI_LOCALES_SUPPORTED);
+        return mUiLocalesSupported.get();
     }
 
     /**
@@ -543,7 +764,7 @@ public class AuthorizationServiceDiscovery {
      * "OpenID Connect Core 1.0", Section 5.5</a>
      */
     public boolean isClaimsParameterSupported() {
-        return get(CLAIMS_PARAMETER_SUPPORTED);
+        return mClaimsParameterSupported;
     }
 
     /**
@@ -553,7 +774,7 @@ public class AuthorizationServiceDiscovery {
      * "OpenID Connect Core 1.0", Section 6.1</a>
      */
     public boolean isRequestParameterSupported() {
-        return get(REQUEST_PARAMETER_SUPPORTED);
+        return mRequestParameterSupported;
     }
 
     /**
@@ -563,7 +784,7 @@ public class AuthorizationServiceDiscovery {
      * "OpenID Connect Core 1.0", Section 6.2</a>
      */
     public boolean isRequestUriParameterSupported() {
-        return get(REQUEST_URI_PARAMETER_SUPPORTED);
+        return mRequestUriParameterSupported;
     }
 
     /**
@@ -573,7 +794,7 @@ public class AuthorizationServiceDiscovery {
      * "OpenID Connect Core 1.0", Section 6.2</a>
      */
     public boolean requireRequestUriRegistration() {
-        return get(REQUIRE_REQUEST_URI_REGISTRATION);
+        return mRequireRequestUriRegistration;
     }
 
     /**
@@ -581,7 +802,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public Uri getOpPolicyUri() {
-        return get(OP_POLICY_URI);
+        return mOpPolicyUri;
     }
 
     /**
@@ -589,7 +810,7 @@ public class AuthorizationServiceDiscovery {
      */
     @Nullable
     public Uri getOpTosUri() {
-        return get(OP_TOS_URI);
+        return mOpTosUri;
     }
 
     /**
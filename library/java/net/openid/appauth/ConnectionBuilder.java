@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Creates the HTTP connections used for discovery and token endpoint requests. This is the
+ * transport extension point of the library: an alternative HTTP stack (e.g. one which exposes
+ * its connections via {@link HttpURLConnection}) can be plugged in by providing an
+ * implementation of this interface through {@link AppAuthConfiguration}.
+ *
+ * <p>The library always consumes and closes response bodies in full, and never calls
+ * {@link HttpURLConnection#disconnect()} on a successfully completed request, so that
+ * implementations which pool connections can return them to their pool for reuse.
+ *
+ * @see DefaultConnectionBuilder
+ */
+public interface ConnectionBuilder {
+
+    /**
+     * Creates an unconnected HTTP connection to the specified URL. The caller will configure
+     * the request method, headers and body before connecting.
+     * @throws IOException if the connection could not be created.
+     */
+    @NonNull
+    HttpURLConnection openConnection(@NonNull URL url) throws IOException;
+}
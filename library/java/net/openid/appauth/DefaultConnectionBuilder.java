@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Creates {@link HttpURLConnection} instances using the platform HTTP stack. The platform
+ * implementation keeps a per-host pool of idle keep-alive connections, so consecutive
+ * discovery, code exchange and refresh requests to the same authorization server reuse a single
+ * warm TLS connection rather than performing a new handshake each time.
+ */
+public final class DefaultConnectionBuilder implements ConnectionBuilder {
+
+    /**
+     * The singleton instance of the default connection builder.
+     */
+    public static final DefaultConnectionBuilder INSTANCE = new DefaultConnectionBuilder();
+
+    private DefaultConnectionBuilder() {}
+
+    @NonNull
+    @Override
+    public HttpURLConnection openConnection(@NonNull URL url) throws IOException {
+        checkNotNull(url, "url must not be null");
+        return (HttpURLConnection) url.openConnection();
+    }
+}
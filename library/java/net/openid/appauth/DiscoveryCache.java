@@ -0,0 +1,573 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of retrieved discovery documents, keyed by discovery URI (and therefore by issuer).
+ * The HTTP caching headers of the discovery response are honored: a document is reused without
+ * any network request until the freshness lifetime given by {@code Cache-Control: max-age} or
+ * {@code Expires} elapses. After that, if the server provided an {@code ETag}, the document is
+ * revalidated with {@code If-None-Match}, so an unchanged document costs only a
+ * {@code 304 Not Modified} response. Responses marked {@code Cache-Control: no-store} are never
+ * cached.
+ *
+ * <p>A cache created with a directory also persists documents to disk, so they survive process
+ * restarts, and serves stale documents while revalidating them: a retrieval for which only a
+ * stale document is available completes immediately with that document, up to a maximum
+ * staleness, and the document is revalidated in the background. If the revalidated
+ * configuration has different endpoints, callbacks which implement
+ * {@link AuthorizationServiceConfiguration.ConfigurationUpdateCallback} are informed.
+ *
+ * <p>A cache is used for configuration retrievals once it is provided to
+ * {@link AppAuthConfiguration.Builder#setDiscoveryCache(DiscoveryCache)}. A single instance
+ * should be shared by all configurations in the process, and at most one instance should use
+ * a given directory. Instances are thread-safe.
+ */
+public final class DiscoveryCache {
+
+    /**
+     * The default maximum time for which a persisted document may be used after it becomes
+     * stale, while it is revalidated.
+     */
+    public static final long DEFAULT_MAX_STALENESS_MS = 86400000L;
+
+    @VisibleForTesting
+    static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    @VisibleForTesting
+    static final String HEADER_EXPIRES = "Expires";
+
+    @VisibleForTesting
+    static final String HEADER_DATE = "Date";
+
+    @VisibleForTesting
+    static final String HEADER_ETAG = "ETag";
+
+    @VisibleForTesting
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    /**
+     * Returned by {@link #computeExpiresAt} for responses which must not be stored.
+     */
+    @VisibleForTesting
+    static final long NOT_CACHEABLE = -1L;
+
+    private static final String DIRECTIVE_MAX_AGE = "max-age=";
+    private static final String DIRECTIVE_NO_CACHE = "no-cache";
+    private static final String DIRECTIVE_NO_STORE = "no-store";
+
+    private static final String FILE_SUFFIX = ".json";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_EXPIRES_AT = "expiresAt";
+    private static final String KEY_CONFIGURATION = "configuration";
+
+    @Nullable
+    private final File mDirectory;
+
+    private final long mMaxStalenessMs;
+
+    @NonNull
+    private final Clock mClock;
+
+    private final Map<Uri, Entry> mEntries = new HashMap<>();
+
+    /**
+     * The URIs for which the directory has been consulted, so that absent documents are only
+     * looked for on disk once.
+     */
+    private final Set<Uri> mLoadedUris = new HashSet<>();
+
+    private int mHitCount;
+
+    private int mStaleHitCount;
+
+    private int mRevalidationCount;
+
+    private int mMissCount;
+
+    /**
+     * Creates an empty, in-memory discovery cache. Stale documents are always revalidated
+     * before use.
+     */
+    public DiscoveryCache() {
+        this(null, 0L, SystemClock.INSTANCE);
+    }
+
+    /**
+     * Creates a discovery cache which persists documents to the specified directory, such as a
+     * subdirectory of {@link android.content.Context#getCacheDir()}, and serves stale documents
+     * for up to {@link #DEFAULT_MAX_STALENESS_MS} while revalidating them.
+     */
+    public DiscoveryCache(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_STALENESS_MS);
+    }
+
+    /**
+     * Creates a discovery cache which persists documents to the specified directory, and serves
+     * stale documents for up to the specified time while revalidating them. Documents which have
+     * been stale for longer are revalidated before use.
+     */
+    public DiscoveryCache(@NonNull File directory, long maxStalenessMs) {
+        this(checkNotNull(directory, "directory cannot be null"),
+                maxStalenessMs,
+                SystemClock.INSTANCE);
+    }
+
+    @VisibleForTesting
+    DiscoveryCache(@NonNull Clock clock) {
+        this(null, 0L, clock);
+    }
+
+    @VisibleForTesting
+    DiscoveryCache(@Nullable File directory, long maxStalenessMs, @NonNull Clock clock) {
+        checkArgument(maxStalenessMs >= 0, "maxStalenessMs must not be negative");
+        mDirectory = directory;
+        mMaxStalenessMs = maxStalenessMs;
+        mClock = checkNotNull(clock);
+    }
+
+    /**
+     * The number of configuration retrievals which were served from the cache, without any
+     * network request.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * The number of configuration retrievals which completed immediately with a stale document,
+     * which was then revalidated in the background. Each of these is also counted as a
+     * revalidation or a miss, according to the outcome of the background request.
+     */
+    public synchronized int getStaleHitCount() {
+        return mStaleHitCount;
+    }
+
+    /**
+     * The number of configuration retrievals which were served from the cache after the server
+     * confirmed, with a {@code 304 Not Modified} response, that the document was unchanged.
+     */
+    public synchronized int getRevalidationCount() {
+        return mRevalidationCount;
+    }
+
+    /**
+     * The number of configuration retrievals which required the full discovery document to be
+     * downloaded.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * The fraction of configuration retrievals which were served from the cache without any
+     * network request, or zero if no retrievals have been made.
+     */
+    public synchronized double getHitRate() {
+        int total = mHitCount + mRevalidationCount + mMissCount;
+        return total == 0 ? 0.0 : (double) mHitCount / total;
+    }
+
+    /**
+     * Discards the cached document for the specified discovery URI, if any.
+     */
+    public synchronized void invalidate(@NonNull Uri discoveryUri) {
+        checkNotNull(discoveryUri, "discoveryUri cannot be null");
+        remove(discoveryUri);
+    }
+
+    /**
+     * Discards all cached documents, including those persisted to disk. The counters are not
+     * reset.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mLoadedUris.clear();
+        if (mDirectory == null) {
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_SUFFIX) && !file.delete()) {
+                Logger.warn("Unable to delete cached discovery document %s", file);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached configuration for the discovery URI if it is still fresh, recording a
+     * cache hit.
+     */
+    @Nullable
+    synchronized AuthorizationServiceConfiguration getIfFresh(@NonNull Uri discoveryUri) {
+        Entry entry = getEntry(discoveryUri);
+        if (entry == null || entry.expiresAt <= mClock.getCurrentTimeMillis()) {
+            return null;
+        }
+        mHitCount++;
+        return entry.configuration;
+    }
+
+    /**
+     * Returns the cached configuration for the discovery URI if it is stale, but may still be
+     * used while it is revalidated, recording a stale hit.
+     */
+    @Nullable
+    synchronized AuthorizationServiceConfiguration getIfUsableWhileRevalidating(
+            @NonNull Uri discoveryUri) {
+        if (mMaxStalenessMs == 0) {
+            return null;
+        }
+
+        Entry entry = getEntry(discoveryUri);
+        if (entry == null || entry.expiresAt + mMaxStalenessMs <= mClock.getCurrentTimeMillis()) {
+            return null;
+        }
+        mStaleHitCount++;
+        return entry.configuration;
+    }
+
+    /**
+     * Determines whether a document for the discovery URI is cached, whether or not it is
+     * fresh. No hit is recorded.
+     */
+    synchronized boolean contains(@NonNull Uri discoveryUri) {
+        return getEntry(discoveryUri) != null;
+    }
+
+    /**
+     * Returns the entity tag of the cached document for the discovery URI, with which it may be
+     * revalidated, if any.
+     */
+    @Nullable
+    synchronized String getETag(@NonNull Uri discoveryUri) {
+        Entry entry = getEntry(discoveryUri);
+        return entry != null ? entry.etag : null;
+    }
+
+    /**
+     * Records that the server confirmed the cached document for the discovery URI is unchanged,
+     * extending its freshness lifetime from the headers of the {@code 304} response. Returns the
+     * cached configuration, or {@code null} if it was discarded in the meantime.
+     */
+    @Nullable
+    synchronized AuthorizationServiceConfiguration revalidated(
+            @NonNull Uri discoveryUri,
+            @NonNull HttpURLConnection conn) {
+        Entry entry = getEntry(discoveryUri);
+        if (entry == null) {
+            return null;
+        }
+
+        long expiresAt = computeExpiresAt(conn, mClock.getCurrentTimeMillis());
+        if (expiresAt == NOT_CACHEABLE) {
+            remove(discoveryUri);
+        } else {
+            String etag = conn.getHeaderField(HEADER_ETAG);
+            store(discoveryUri, new Entry(
+                    entry.configuration,
+                    etag != null ? etag : entry.etag,
+                    expiresAt));
+        }
+        mRevalidationCount++;
+        return entry.configuration;
+    }
+
+    /**
+     * Stores a newly downloaded configuration for the discovery URI, unless the response
+     * forbids it, recording a cache miss.
+     */
+    synchronized void put(
+            @NonNull Uri discoveryUri,
+            @NonNull AuthorizationServiceConfiguration configuration,
+            @NonNull HttpURLConnection conn) {
+        mMissCount++;
+        long expiresAt = computeExpiresAt(conn, mClock.getCurrentTimeMillis());
+        if (expiresAt == NOT_CACHEABLE) {
+            remove(discoveryUri);
+            return;
+        }
+        store(discoveryUri, new Entry(
+                configuration,
+                conn.getHeaderField(HEADER_ETAG),
+                expiresAt));
+    }
+
+    /**
+     * Determines whether any of the endpoints of the two configurations differ.
+     */
+    static boolean endpointsChanged(
+            @NonNull AuthorizationServiceConfiguration previous,
+            @NonNull AuthorizationServiceConfiguration current) {
+        if (!previous.authorizationEndpoint.equals(current.authorizationEndpoint)
+                || !previous.tokenEndpoint.equals(current.tokenEndpoint)) {
+            return true;
+        }
+        if (previous.discoveryDoc == null || current.discoveryDoc == null) {
+            return previous.discoveryDoc != current.discoveryDoc;
+        }
+        return !equal(previous.discoveryDoc.getUserinfoEndpoint(),
+                        current.discoveryDoc.getUserinfoEndpoint())
+                || !equal(previous.discoveryDoc.getRegistrationEndpoint(),
+                        current.discoveryDoc.getRegistrationEndpoint())
+                || !equal(previous.discoveryDoc.getJwksUri(),
+                        current.discoveryDoc.getJwksUri());
+    }
+
+    private static boolean equal(@Nullable Object a, @Nullable Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Nullable
+    private Entry getEntry(Uri discoveryUri) {
+        Entry entry = mEntries.get(discoveryUri);
+        if (entry != null || mDirectory == null || !mLoadedUris.add(discoveryUri)) {
+            return entry;
+        }
+
+        entry = readEntry(discoveryUri);
+        if (entry != null) {
+            mEntries.put(discoveryUri, entry);
+        }
+        return entry;
+    }
+
+    private void store(Uri discoveryUri, Entry entry) {
+        mEntries.put(discoveryUri, entry);
+        if (mDirectory != null) {
+            mLoadedUris.add(discoveryUri);
+            writeEntry(discoveryUri, entry);
+        }
+    }
+
+    private void remove(Uri discoveryUri) {
+        mEntries.remove(discoveryUri);
+        if (mDirectory != null) {
+            mLoadedUris.add(discoveryUri);
+            File file = getFile(discoveryUri);
+            if (file.exists() && !file.delete()) {
+                Logger.warn("Unable to delete cached discovery document %s", file);
+            }
+        }
+    }
+
+    @Nullable
+    private Entry readEntry(Uri discoveryUri) {
+        File file = getFile(discoveryUri);
+        if (!file.exists()) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            JsonReader reader = JsonUtil.newReader(in);
+            String uri = null;
+            String etag = null;
+            Long expiresAt = null;
+            AuthorizationServiceConfiguration configuration = null;
+
+            JsonUtil.beginObject(reader);
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case KEY_URI:
+                        uri = JsonUtil.nextString(reader);
+                        break;
+                    case KEY_ETAG:
+                        etag = JsonUtil.nextString(reader);
+                        break;
+                    case KEY_EXPIRES_AT:
+                        expiresAt = JsonUtil.nextLong(reader);
+                        break;
+                    case KEY_CONFIGURATION:
+                        configuration = AuthorizationServiceConfiguration.readJson(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!discoveryUri.toString().equals(uri)) {
+                Logger.warn("Ignoring cached discovery document for a different URI: %s", uri);
+                return null;
+            }
+            return new Entry(
+                    JsonUtil.checkFieldPresent(configuration, KEY_CONFIGURATION),
+                    etag,
+                    JsonUtil.checkFieldPresent(expiresAt, KEY_EXPIRES_AT));
+        } catch (IOException | JSONException | IllegalArgumentException ex) {
+            Logger.warn("Discarding unreadable cached discovery document %s: %s",
+                    file, ex.getMessage());
+            if (!file.delete()) {
+                Logger.warn("Unable to delete cached discovery document %s", file);
+            }
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private void writeEntry(Uri discoveryUri, Entry entry) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            JsonWriter writer = JsonUtil.newWriter(out);
+            writer.beginObject();
+            writer.name(KEY_URI).value(discoveryUri.toString());
+            JsonUtil.writeIfNotNull(writer, KEY_ETAG, entry.etag);
+            writer.name(KEY_EXPIRES_AT).value(entry.expiresAt);
+            writer.name(KEY_CONFIGURATION);
+            entry.configuration.writeJson(writer);
+            writer.endObject();
+            writer.flush();
+
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Unable to create directory " + mDirectory);
+            }
+            Utils.writeAtomically(getFile(discoveryUri), out.toByteArray());
+        } catch (IOException ex) {
+            // the document remains cached in memory
+            Logger.warn("Unable to persist discovery document for %s: %s",
+                    discoveryUri, ex.getMessage());
+        }
+    }
+
+    private File getFile(Uri discoveryUri) {
+        return new File(mDirectory, getFileName(discoveryUri));
+    }
+
+    /**
+     * Returns the name of the file in which the document for the discovery URI is stored: the
+     * hex-encoded SHA-256 hash of the URI, with a {@code .json} suffix. Documents bundled as
+     * assets at build time are named in the same way.
+     */
+    @NonNull
+    static String getFileName(@NonNull Uri discoveryUri) {
+        return Utils.sha256Hex(discoveryUri.toString()) + FILE_SUFFIX;
+    }
+
+    private static long computeExpiresAt(HttpURLConnection conn, long now) {
+        return computeExpiresAt(
+                conn.getHeaderField(HEADER_CACHE_CONTROL),
+                conn.getHeaderField(HEADER_EXPIRES),
+                conn.getHeaderField(HEADER_DATE),
+                now);
+    }
+
+    /**
+     * Computes the time at which a response with the specified caching headers becomes stale,
+     * or {@link #NOT_CACHEABLE} if it must not be stored. A {@code max-age} directive takes
+     * precedence over an {@code Expires} header, which is interpreted relative to the
+     * response's {@code Date} where available, to tolerate clock skew. A response with no
+     * freshness information is stale immediately, so is always revalidated before reuse.
+     * @see <a href="https://tools.ietf.org/html/rfc7234#section-4.2.1">"Calculating Freshness
+     *     Lifetime", RFC 7234, Section 4.2.1</a>
+     */
+    @VisibleForTesting
+    static long computeExpiresAt(
+            @Nullable String cacheControl,
+            @Nullable String expires,
+            @Nullable String date,
+            long now) {
+        if (!TextUtils.isEmpty(cacheControl)) {
+            boolean noCache = false;
+            long maxAge = -1L;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals(DIRECTIVE_NO_STORE)) {
+                    return NOT_CACHEABLE;
+                } else if (directive.equals(DIRECTIVE_NO_CACHE)) {
+                    noCache = true;
+                } else if (directive.startsWith(DIRECTIVE_MAX_AGE)) {
+                    try {
+                        maxAge = Math.max(0L, Long.parseLong(
+                                directive.substring(DIRECTIVE_MAX_AGE.length())));
+                    } catch (NumberFormatException ex) {
+                        Logger.debug("Ignoring malformed max-age directive: %s", directive);
+                    }
+                }
+            }
+
+            if (noCache) {
+                return now;
+            } else if (maxAge >= 0) {
+                return now + TimeUnit.SECONDS.toMillis(maxAge);
+            }
+        }
+
+        long expiresTime = Utils.parseHttpDate(expires);
+        if (expiresTime < 0) {
+            // absent, or an invalid value such as "0", which indicates an expired response
+            return now;
+        }
+
+        long dateTime = Utils.parseHttpDate(date);
+        if (dateTime >= 0) {
+            return now + Math.max(0L, expiresTime - dateTime);
+        }
+        return Math.max(now, expiresTime);
+    }
+
+    private static final class Entry {
+        @NonNull
+        final AuthorizationServiceConfiguration configuration;
+
+        @Nullable
+        final String etag;
+
+        final long expiresAt;
+
+        Entry(
+                @NonNull AuthorizationServiceConfiguration configuration,
+                @Nullable String etag,
+                long expiresAt) {
+            this.configuration = configuration;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
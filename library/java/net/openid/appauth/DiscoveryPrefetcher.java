@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import net.openid.appauth.AuthorizationException.GeneralErrors;
+import net.openid.appauth.AuthorizationServiceConfiguration.RetrieveConfigurationCallback;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrieves the configurations of several authorization services concurrently, such as all of
+ * the identity providers offered on a login screen, so that they are ready before the user
+ * chooses one. At most a configurable number of retrievals are in progress at once, and the
+ * whole batch is subject to a single deadline: retrievals which have not completed when it
+ * passes are reported as failed, so a slow provider cannot delay the others.
+ *
+ * <p>Each retrieval is performed as by
+ * {@link AuthorizationServiceConfiguration#fetchFromUrl(Uri, RetrieveConfigurationCallback,
+ * AppAuthConfiguration) fetchFromUrl}, so it uses the retry policy and discovery cache of the
+ * library configuration, and shares any retrieval of the same URI already in progress.
+ */
+public final class DiscoveryPrefetcher {
+
+    /**
+     * The default maximum number of retrievals in progress at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_RETRIEVALS = 4;
+
+    /**
+     * The default time allowed for all retrievals of a batch to complete.
+     */
+    public static final long DEFAULT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(15);
+
+    @NonNull
+    private final AppAuthConfiguration mClientConfiguration;
+
+    private final int mMaxConcurrentRetrievals;
+
+    private final long mTimeoutMs;
+
+    @NonNull
+    private final Handler mHandler;
+
+    /**
+     * Creates a prefetcher which uses the provided library configuration, with at most
+     * {@link #DEFAULT_MAX_CONCURRENT_RETRIEVALS} concurrent retrievals and a deadline of
+     * {@link #DEFAULT_TIMEOUT_MS}.
+     */
+    public DiscoveryPrefetcher(@NonNull AppAuthConfiguration clientConfiguration) {
+        this(clientConfiguration, DEFAULT_MAX_CONCURRENT_RETRIEVALS, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a prefetcher which uses the provided library configuration, with at most the
+     * specified number of concurrent retrievals, and the specified deadline for each batch.
+     */
+    public DiscoveryPrefetcher(
+            @NonNull AppAuthConfiguration clientConfiguration,
+            int maxConcurrentRetrievals,
+            long timeoutMs) {
+        this(clientConfiguration,
+                maxConcurrentRetrievals,
+                timeoutMs,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    @VisibleForTesting
+    DiscoveryPrefetcher(
+            @NonNull AppAuthConfiguration clientConfiguration,
+            int maxConcurrentRetrievals,
+            long timeoutMs,
+            @NonNull Handler handler) {
+        checkArgument(maxConcurrentRetrievals >= 1, "maxConcurrentRetrievals must be at least 1");
+        checkArgument(timeoutMs > 0, "timeoutMs must be positive");
+        mClientConfiguration = checkNotNull(clientConfiguration,
+                "clientConfiguration cannot be null");
+        mMaxConcurrentRetrievals = maxConcurrentRetrievals;
+        mTimeoutMs = timeoutMs;
+        mHandler = checkNotNull(handler, "handler cannot be null");
+    }
+
+    /**
+     * Retrieves the configurations described by the provided OpenID Connect discovery URIs.
+     * The callback is invoked on the main thread once every retrieval has completed, or the
+     * deadline has passed, with the results keyed by discovery URI.
+     */
+    public void prefetch(
+            @NonNull Collection<Uri> discoveryUris,
+            @NonNull PrefetchCallback callback) {
+        checkNotNull(discoveryUris, "discoveryUris cannot be null");
+        checkNotNull(callback, "callback cannot be null");
+        Map<Uri, Uri> keysByDiscoveryUri = new LinkedHashMap<>();
+        for (Uri discoveryUri : discoveryUris) {
+            checkArgument("https".equals(discoveryUri.getScheme()),
+                    "discovery URIs must be https");
+            keysByDiscoveryUri.put(discoveryUri, discoveryUri);
+        }
+        start(keysByDiscoveryUri, callback);
+    }
+
+    /**
+     * Retrieves the configurations of the provided OpenID Connect issuers, from the well-known
+     * discovery URI of each. The callback is invoked on the main thread once every retrieval
+     * has completed, or the deadline has passed, with the results keyed by issuer URI.
+     */
+    public void prefetchIssuers(
+            @NonNull Collection<Uri> issuerUris,
+            @NonNull PrefetchCallback callback) {
+        checkNotNull(issuerUris, "issuerUris cannot be null");
+        checkNotNull(callback, "callback cannot be null");
+        Map<Uri, Uri> keysByDiscoveryUri = new LinkedHashMap<>();
+        for (Uri issuerUri : issuerUris) {
+            Uri discoveryUri = AuthorizationServiceConfiguration.buildDiscoveryUri(issuerUri);
+            checkArgument("https".equals(discoveryUri.getScheme()),
+                    "issuer URIs must be https");
+            keysByDiscoveryUri.put(discoveryUri, issuerUri);
+        }
+        start(keysByDiscoveryUri, callback);
+    }
+
+    private void start(Map<Uri, Uri> keysByDiscoveryUri, PrefetchCallback callback) {
+        final Batch batch = new Batch(keysByDiscoveryUri, callback);
+        // all state of the batch is confined to the main thread, on which retrievals complete
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                batch.start();
+            }
+        });
+    }
+
+    /**
+     * Receives the results of a prefetch.
+     */
+    public interface PrefetchCallback {
+        /**
+         * Invoked when a prefetch completes. Every requested URI is a key of exactly one of the
+         * provided maps.
+         *
+         * @param configurations the retrieved configurations, keyed by requested URI.
+         * @param errors the failures of the other retrievals, keyed by requested URI.
+         *     Retrievals which did not complete before the deadline are reported as a
+         *     {@link GeneralErrors#NETWORK_ERROR network error} caused by a
+         *     {@link SocketTimeoutException}.
+         */
+        void onPrefetchCompleted(
+                @NonNull Map<Uri, AuthorizationServiceConfiguration> configurations,
+                @NonNull Map<Uri, AuthorizationException> errors);
+    }
+
+    /**
+     * The state of a single prefetch. Only accessed on the main thread.
+     */
+    private final class Batch implements Runnable {
+
+        private final Map<Uri, Uri> mKeysByDiscoveryUri;
+
+        private final Queue<Uri> mPending;
+
+        private final Map<Uri, Uri> mInProgress = new LinkedHashMap<>();
+
+        private final Map<Uri, AuthorizationServiceConfiguration> mConfigurations =
+                new LinkedHashMap<>();
+
+        private final Map<Uri, AuthorizationException> mErrors = new LinkedHashMap<>();
+
+        @Nullable
+        private PrefetchCallback mCallback;
+
+        Batch(Map<Uri, Uri> keysByDiscoveryUri, PrefetchCallback callback) {
+            mKeysByDiscoveryUri = keysByDiscoveryUri;
+            mPending = new ArrayDeque<>(keysByDiscoveryUri.keySet());
+            mCallback = callback;
+        }
+
+        void start() {
+            mHandler.postDelayed(this, mTimeoutMs);
+            startPendingRetrievals();
+        }
+
+        private void startPendingRetrievals() {
+            while (mCallback != null
+                    && mInProgress.size() < mMaxConcurrentRetrievals
+                    && !mPending.isEmpty()) {
+                final Uri discoveryUri = mPending.remove();
+                mInProgress.put(discoveryUri, mKeysByDiscoveryUri.get(discoveryUri));
+                AuthorizationServiceConfiguration.fetchFromUrl(
+                        discoveryUri,
+                        new RetrieveConfigurationCallback() {
+                            @Override
+                            public void onFetchConfigurationCompleted(
+                                    @Nullable AuthorizationServiceConfiguration configuration,
+                                    @Nullable AuthorizationException ex) {
+                                onRetrievalCompleted(discoveryUri, configuration, ex);
+                            }
+                        },
+                        mClientConfiguration);
+            }
+            completeIfDone();
+        }
+
+        private void onRetrievalCompleted(
+                Uri discoveryUri,
+                AuthorizationServiceConfiguration configuration,
+                AuthorizationException ex) {
+            Uri key = mInProgress.remove(discoveryUri);
+            if (mCallback == null || key == null) {
+                // the deadline has passed
+                return;
+            }
+
+            if (configuration != null) {
+                mConfigurations.put(key, configuration);
+            } else {
+                Logger.debug("Prefetch of %s failed: %s", discoveryUri, ex.getMessage());
+                mErrors.put(key, ex);
+            }
+            startPendingRetrievals();
+        }
+
+        /**
+         * Invoked when the deadline passes.
+         */
+        @Override
+        public void run() {
+            if (mCallback == null) {
+                return;
+            }
+
+            Logger.debug("Prefetch deadline passed with %d retrievals incomplete",
+                    mInProgress.size() + mPending.size());
+            for (Uri key : mInProgress.values()) {
+                mErrors.put(key, timeoutError());
+            }
+            mInProgress.clear();
+            for (Uri discoveryUri : mPending) {
+                mErrors.put(mKeysByDiscoveryUri.get(discoveryUri), timeoutError());
+            }
+            mPending.clear();
+            completeIfDone();
+        }
+
+        private void completeIfDone() {
+            if (mCallback == null || !mInProgress.isEmpty() || !mPending.isEmpty()) {
+                return;
+            }
+
+            mHandler.removeCallbacks(this);
+            PrefetchCallback callback = mCallback;
+            mCallback = null;
+            callback.onPrefetchCompleted(
+                    Collections.unmodifiableMap(mConfigurations),
+                    Collections.unmodifiableMap(mErrors));
+        }
+
+        private AuthorizationException timeoutError() {
+            return AuthorizationException.fromTemplate(
+                    GeneralErrors.NETWORK_ERROR,
+                    new SocketTimeoutException("Prefetch deadline of " + mTimeoutMs
+                            + " ms passed"));
+        }
+    }
+}
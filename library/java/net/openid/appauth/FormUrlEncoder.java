@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Encodes request parameters as an {@code application/x-www-form-urlencoded} body, directly into
+ * a UTF-8 byte array. The encoding of each name and value matches that of
+ * {@link android.net.Uri#encode(String)}, so the result is identical to the encoded query of a
+ * URI built from the same parameters, without the intermediate strings.
+ *
+ * <p>The length of the body is computed in a first pass, so the only allocation is the
+ * returned array.
+ */
+final class FormUrlEncoder {
+
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    private static final String UNRESERVED_SYMBOLS = "_-!.~'()*";
+
+    private static final int MAX_ONE_BYTE = 0x7F;
+    private static final int MAX_TWO_BYTE = 0x7FF;
+    private static final int MAX_THREE_BYTE = 0xFFFF;
+    private static final int REPLACEMENT_CHARACTER = '?';
+
+    private static final int TWO_BYTE_PREFIX = 0xC0;
+    private static final int THREE_BYTE_PREFIX = 0xE0;
+    private static final int FOUR_BYTE_PREFIX = 0xF0;
+    private static final int CONTINUATION_PREFIX = 0x80;
+    private static final int CONTINUATION_MASK = 0x3F;
+    private static final int BITS_PER_CONTINUATION = 6;
+    private static final int NIBBLE_MASK = 0xF;
+    private static final int BITS_PER_NIBBLE = 4;
+
+    /** The length of a percent-encoded byte, e.g. "%2F". */
+    private static final int ESCAPED_LENGTH = 3;
+
+    private FormUrlEncoder() {}
+
+    /**
+     * Encodes the provided parameters, specified as alternating names and values. Parameters
+     * with a {@code null} value are omitted.
+     */
+    @NonNull
+    static byte[] encode(@NonNull String... namesAndValues) {
+        checkArgument(namesAndValues.length % 2 == 0, "names and values must be paired");
+
+        int length = 0;
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (namesAndValues[i + 1] == null) {
+                continue;
+            }
+            if (length > 0) {
+                length++;
+            }
+            length += encodedLength(namesAndValues[i]) + 1 + encodedLength(namesAndValues[i + 1]);
+        }
+
+        byte[] body = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (namesAndValues[i + 1] == null) {
+                continue;
+            }
+            if (pos > 0) {
+                body[pos++] = '&';
+            }
+            pos = encode(namesAndValues[i], body, pos);
+            body[pos++] = '=';
+            pos = encode(namesAndValues[i + 1], body, pos);
+        }
+
+        return body;
+    }
+
+    private static int encodedLength(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (isUnreserved(ch)) {
+                length++;
+                continue;
+            }
+
+            int codePoint = codePointAt(str, i);
+            if (Character.isSupplementaryCodePoint(codePoint)) {
+                i++;
+            }
+            length += utf8Length(codePoint) * ESCAPED_LENGTH;
+        }
+        return length;
+    }
+
+    private static int encode(String str, byte[] out, int pos) {
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (isUnreserved(ch)) {
+                out[pos++] = (byte) ch;
+                continue;
+            }
+
+            int codePoint = codePointAt(str, i);
+            if (Character.isSupplementaryCodePoint(codePoint)) {
+                i++;
+            }
+
+            if (codePoint <= MAX_ONE_BYTE) {
+                pos = escape(codePoint, out, pos);
+            } else if (codePoint <= MAX_TWO_BYTE) {
+                pos = escape(TWO_BYTE_PREFIX | (codePoint >> BITS_PER_CONTINUATION), out, pos);
+                pos = escape(continuation(codePoint, 0), out, pos);
+            } else if (codePoint <= MAX_THREE_BYTE) {
+                pos = escape(THREE_BYTE_PREFIX | (codePoint >> (2 * BITS_PER_CONTINUATION)),
+                        out, pos);
+                pos = escape(continuation(codePoint, 1), out, pos);
+                pos = escape(continuation(codePoint, 0), out, pos);
+            } else {
+                pos = escape(FOUR_BYTE_PREFIX | (codePoint >> (3 * BITS_PER_CONTINUATION)),
+                        out, pos);
+                pos = escape(continuation(codePoint, 2), out, pos);
+                pos = escape(continuation(codePoint, 1), out, pos);
+                pos = escape(continuation(codePoint, 0), out, pos);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the code point at the specified index, substituting '?' for unpaired surrogates,
+     * as the platform UTF-8 encoder does.
+     */
+    private static int codePointAt(String str, int index) {
+        char ch = str.charAt(index);
+        if (Character.isHighSurrogate(ch)
+                && index + 1 < str.length()
+                && Character.isLowSurrogate(str.charAt(index + 1))) {
+            return Character.toCodePoint(ch, str.charAt(index + 1));
+        }
+        if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+            return REPLACEMENT_CHARACTER;
+        }
+        return ch;
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint <= MAX_ONE_BYTE) {
+            return 1;
+        } else if (codePoint <= MAX_TWO_BYTE) {
+            return 2;
+        } else if (codePoint <= MAX_THREE_BYTE) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static int continuation(int codePoint, int index) {
+        return CONTINUATION_PREFIX
+                | ((codePoint >> (index * BITS_PER_CONTINUATION)) & CONTINUATION_MASK);
+    }
+
+    private static int escape(int value, byte[] out, int pos) {
+        out[pos++] = '%';
+        out[pos++] = HEX_DIGITS[(value >> BITS_PER_NIBBLE) & NIBBLE_MASK];
+        out[pos++] = HEX_DIGITS[value & NIBBLE_MASK];
+        return pos;
+    }
+
+    private static boolean isUnreserved(char ch) {
+        return (ch >= 'a' && ch <= 'z')
+                || (ch >= 'A' && ch <= 'Z')
+                || (ch >= '0' && ch <= '9')
+                || UNRESERVED_SYMBOLS.indexOf(ch) != -1;
+    }
+}
@@ -19,22 +19,39 @@ import static net.openid.appauth.Preconditions.checkNotNull;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.MalformedJsonException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Utility methods for JSON object manipulation, avoiding unnecessary checked exceptions.
  */
 final class JsonUtil {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private JsonUtil() {}
 
     public static void put(
@@ -308,6 +325,333 @@ final class JsonUtil {
         return json;
     }
 
+    /**
+     * Creates a reader for a JSON document encoded as UTF-8 in the provided stream. The reader
+     * is lenient, accepting the same relaxed syntax as {@link JSONObject#JSONObject(String)}.
+     */
+    @NonNull
+    public static JsonReader newReader(@NonNull InputStream in) {
+        checkNotNull(in, "in must not be null");
+        return newReader(new InputStreamReader(in, UTF_8));
+    }
+
+    /**
+     * Creates a reader for a JSON document held in the provided string.
+     */
+    @NonNull
+    public static JsonReader newReader(@NonNull String json) {
+        checkNotNull(json, "json must not be null");
+        return newReader(new StringReader(json));
+    }
+
+    private static JsonReader newReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+    /**
+     * Creates a writer which produces a JSON document encoded as UTF-8 to the provided stream.
+     * The writer must be flushed once the document is complete.
+     */
+    @NonNull
+    public static JsonWriter newWriter(@NonNull OutputStream out) {
+        checkNotNull(out, "out must not be null");
+        return new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, UTF_8)));
+    }
+
+    /**
+     * Creates a JSONException describing a failure to read a JSON document, with the
+     * specified cause.
+     */
+    @NonNull
+    public static JSONException toJsonException(@NonNull String message, @NonNull Throwable cause) {
+        JSONException ex = new JSONException(message + ": " + cause.getMessage());
+        ex.initCause(cause);
+        return ex;
+    }
+
+    /**
+     * Reads a JSON object directly from the provided stream. Malformed or truncated
+     * documents are reported as a JSONException; other I/O failures are propagated.
+     */
+    @NonNull
+    public static JSONObject parseJsonObject(@NonNull InputStream in)
+            throws IOException, JSONException {
+        return parseJsonObject(in, null);
+    }
+
+    /**
+     * Reads a JSON object directly from the provided stream, retaining only the specified
+     * top-level keys, if any are specified. The values of other keys are skipped without being
+     * converted, so they are never held in memory.
+     */
+    @NonNull
+    public static JSONObject parseJsonObject(
+            @NonNull InputStream in,
+            @Nullable Set<String> retainedKeys)
+            throws IOException, JSONException {
+        try {
+            return readJsonObject(newReader(in), retainedKeys);
+        } catch (MalformedJsonException | EOFException ex) {
+            throw toJsonException("Malformed JSON", ex);
+        }
+    }
+
+    /**
+     * Reads a JSON object from the provided string, without an intermediate tokenizer pass.
+     */
+    @NonNull
+    public static JSONObject parseJsonObject(@NonNull String json) throws JSONException {
+        try {
+            return readJsonObject(newReader(json));
+        } catch (IOException ex) {
+            throw toJsonException("Malformed JSON", ex);
+        }
+    }
+
+    /**
+     * Consumes the next value from the reader, which must be an object. Values of the object
+     * are converted to the types produced by {@link JSONObject#JSONObject(String)}.
+     */
+    @NonNull
+    public static JSONObject readJsonObject(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        return readJsonObject(reader, null);
+    }
+
+    private static JSONObject readJsonObject(JsonReader reader, Set<String> retainedKeys)
+            throws IOException, JSONException {
+        beginObject(reader);
+        JSONObject json = new JSONObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (retainedKeys == null || retainedKeys.contains(name)) {
+                json.put(name, readJsonValue(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return json;
+    }
+
+    private static JSONArray readJsonArray(JsonReader reader) throws IOException, JSONException {
+        reader.beginArray();
+        JSONArray array = new JSONArray();
+        while (reader.hasNext()) {
+            array.put(readJsonValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private static Object readJsonValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readJsonObject(reader);
+            case BEGIN_ARRAY:
+                return readJsonArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected JSON token " + token);
+        }
+    }
+
+    private static Object parseNumber(String literal) {
+        try {
+            long longValue = Long.parseLong(literal);
+            if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                return (int) longValue;
+            }
+            return longValue;
+        } catch (NumberFormatException ex) {
+            // not an integer
+        }
+        return Double.valueOf(literal);
+    }
+
+    /**
+     * Writes a value held in a JSONObject tree, such as a discovery document, to the writer.
+     */
+    public static void writeJsonValue(@NonNull JsonWriter writer, @Nullable Object value)
+            throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            writer.beginObject();
+            // keys() is declared to return a raw Iterator in older SDK versions
+            @SuppressWarnings("unchecked")
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.name(key);
+                writeJsonValue(writer, json.opt(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                writeJsonValue(writer, array.opt(i));
+            }
+            writer.endArray();
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    /**
+     * Consumes the start of an object from the reader, failing with a JSONException rather
+     * than an IllegalStateException if the next value is not an object.
+     */
+    public static void beginObject(@NonNull JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        if (token != JsonToken.BEGIN_OBJECT) {
+            throw new JSONException("Expected a JSON object but found " + token);
+        }
+        reader.beginObject();
+    }
+
+    /**
+     * Consumes the next value from the reader as a string. Numbers and booleans are converted
+     * to their string representation, as {@link JSONObject#getString(String)} does, and
+     * {@code null} is returned for a JSON null.
+     */
+    @Nullable
+    public static String nextString(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                throw new JSONException("Expected a string but found " + token);
+        }
+    }
+
+    /**
+     * Consumes the next value from the reader as a string, which must be present.
+     */
+    @NonNull
+    public static String nextRequiredString(@NonNull JsonReader reader, @NonNull String field)
+            throws IOException, JSONException {
+        String value = nextString(reader);
+        if (value == null) {
+            throw new JSONException("field \"" + field + "\" is mapped to a null value");
+        }
+        return value;
+    }
+
+    /**
+     * Consumes the next value from the reader as a long, returning {@code null} for a JSON null.
+     */
+    @Nullable
+    public static Long nextLong(@NonNull JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        try {
+            return reader.nextLong();
+        } catch (NumberFormatException | IllegalStateException ex) {
+            throw toJsonException("Expected a long", ex);
+        }
+    }
+
+    /**
+     * Consumes an object of string values from the reader, preserving the order of its fields.
+     */
+    @NonNull
+    public static Map<String, String> readStringMap(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        LinkedHashMap<String, String> stringMap = new LinkedHashMap<>();
+        beginObject(reader);
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            stringMap.put(key, nextRequiredString(reader, key));
+        }
+        reader.endObject();
+        return stringMap;
+    }
+
+    /**
+     * Writes the map as an object of string values.
+     */
+    public static void writeStringMap(
+            @NonNull JsonWriter writer,
+            @NonNull Map<String, String> map)
+            throws IOException {
+        checkNotNull(map);
+        writer.beginObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            checkNotNull(entry.getKey(), "map entries must not have null keys");
+            checkNotNull(entry.getValue(), "map entries must not have null values");
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Returns the value read for a field of an object, failing if the field was absent.
+     */
+    @NonNull
+    public static <T> T checkFieldPresent(@Nullable T value, @NonNull String field)
+            throws JSONException {
+        if (value == null) {
+            throw new JSONException("field \"" + field + "\" not found in json object");
+        }
+        return value;
+    }
+
+    /**
+     * Writes the named string field, if the value is not null.
+     */
+    public static void writeIfNotNull(
+            @NonNull JsonWriter writer,
+            @NonNull String field,
+            @Nullable String value)
+            throws IOException {
+        if (value != null) {
+            writer.name(field).value(value);
+        }
+    }
+
+    /**
+     * Writes the named numeric field, if the value is not null.
+     */
+    public static void writeIfNotNull(
+            @NonNull JsonWriter writer,
+            @NonNull String field,
+            @Nullable Long value)
+            throws IOException {
+        if (value != null) {
+            writer.name(field).value(value.longValue());
+        }
+    }
+
     public static <T> T get(JSONObject json, Field<T> field) {
         try {
             if (!json.has(field.key)) {
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotEmpty;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts the states persisted by an {@link AuthStateStore} with AES-GCM, under a data key
+ * which is itself encrypted ("wrapped") by a key held in the Android Keystore.
+ *
+ * <p>Every operation of a Keystore key is an IPC to the Keystore service, which costs
+ * milliseconds. The Keystore key is therefore only used to unwrap the data key, once per
+ * process; the unwrapped data key is cached, and states are encrypted and decrypted in-process
+ * with a reused {@link Cipher}, at a cost comparable to that of writing them in plain text.
+ * The data key is only ever stored in its wrapped form, so it cannot be recovered from a copy
+ * of the application's files, such as a backup, without the Keystore key of the device.
+ * The keys are created under a file lock, so that processes which start concurrently share
+ * the same data key.
+ *
+ * <p>Requires Android 6.0 (API 23) or later; see {@link #isAvailable()}.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class KeystoreEncryption implements AuthStateStore.Encryption {
+
+    /**
+     * The alias of the Keystore key used by {@link #KeystoreEncryption(Context)}.
+     */
+    public static final String DEFAULT_KEY_ALIAS = "appauth_state_key";
+
+    /**
+     * The name of the file, under {@link Context#getFilesDir()}, which holds the wrapped data key
+     * used by {@link #KeystoreEncryption(Context)}.
+     */
+    public static final String DEFAULT_KEY_FILE_NAME = "appauth_state.key";
+
+    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final int KEY_SIZE_BITS = 256;
+    private static final int TAG_SIZE_BITS = 128;
+    private static final int IV_SIZE_BYTES = 12;
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+
+    /**
+     * The unwrapped data keys, by wrapped key file path, shared by all instances in the process.
+     * Guarded by itself.
+     */
+    private static final Map<String, SecretKey> sDataKeys = new HashMap<>();
+
+    @NonNull
+    private final File mKeyFile;
+
+    @NonNull
+    private final String mKeyAlias;
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /**
+     * The cipher used for all operations, created on first use. Guarded by {@code this}.
+     */
+    @Nullable
+    private Cipher mCipher;
+
+    /**
+     * Determines whether Keystore-backed encryption is available on this device.
+     */
+    public static boolean isAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Creates an encryption which uses the {@link #DEFAULT_KEY_ALIAS default Keystore key}, and
+     * the {@link #DEFAULT_KEY_FILE_NAME default data key file} in the application's files
+     * directory.
+     */
+    public KeystoreEncryption(@NonNull Context context) {
+        this(new File(checkNotNull(context, "context cannot be null").getFilesDir(),
+                DEFAULT_KEY_FILE_NAME),
+                DEFAULT_KEY_ALIAS);
+    }
+
+    /**
+     * Creates an encryption which stores its wrapped data key in the specified file, wrapped by
+     * the Keystore key with the specified alias. Both are created on first use if they do not
+     * exist.
+     */
+    public KeystoreEncryption(@NonNull File keyFile, @NonNull String keyAlias) {
+        checkArgument(isAvailable(), "Keystore encryption requires API 23");
+        mKeyFile = checkNotNull(keyFile, "keyFile cannot be null");
+        mKeyAlias = checkNotEmpty(keyAlias, "keyAlias cannot be null or empty");
+    }
+
+    @NonNull
+    @Override
+    public byte[] encrypt(@NonNull byte[] plaintext, @NonNull byte[] associatedData)
+            throws GeneralSecurityException {
+        SecretKey key = getDataKey();
+        byte[] iv = new byte[IV_SIZE_BYTES];
+        synchronized (this) {
+            mRandom.nextBytes(iv);
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE_BITS, iv));
+            cipher.updateAAD(associatedData);
+            byte[] ciphertext = cipher.doFinal(plaintext);
+
+            byte[] result = Arrays.copyOf(iv, IV_SIZE_BYTES + ciphertext.length);
+            System.arraycopy(ciphertext, 0, result, IV_SIZE_BYTES, ciphertext.length);
+            return result;
+        }
+    }
+
+    @NonNull
+    @Override
+    public byte[] decrypt(@NonNull byte[] ciphertext, @NonNull byte[] associatedData)
+            throws GeneralSecurityException {
+        if (ciphertext.length < IV_SIZE_BYTES) {
+            throw new BadPaddingException("Ciphertext is too short");
+        }
+
+        SecretKey key = getDataKey();
+        synchronized (this) {
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_SIZE_BITS, ciphertext, 0, IV_SIZE_BYTES));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(ciphertext, IV_SIZE_BYTES, ciphertext.length - IV_SIZE_BYTES);
+        }
+    }
+
+    private Cipher getCipher() throws GeneralSecurityException {
+        if (mCipher == null) {
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        return mCipher;
+    }
+
+    /**
+     * Returns the data key, unwrapping it with the Keystore key on first use in the process,
+     * or creating both keys if they do not yet exist.
+     */
+    private SecretKey getDataKey() throws GeneralSecurityException {
+        String cacheKey = mKeyFile.getAbsolutePath();
+        synchronized (sDataKeys) {
+            SecretKey dataKey = sDataKeys.get(cacheKey);
+            if (dataKey == null) {
+                dataKey = loadDataKey();
+                sDataKeys.put(cacheKey, dataKey);
+            }
+            return dataKey;
+        }
+    }
+
+    private SecretKey loadDataKey() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
+        try {
+            keyStore.load(null);
+        } catch (IOException ex) {
+            throw new GeneralSecurityException("Unable to load the Android Keystore", ex);
+        }
+
+        SecretKey dataKey = readDataKey(keyStore);
+        if (dataKey != null) {
+            return dataKey;
+        }
+
+        // other processes may be creating the keys concurrently; the lock ensures that only one
+        // does, and that the others use the keys it stores
+        FileLock lock;
+        try {
+            lock = Utils.acquireLock(new File(mKeyFile.getPath() + LOCK_FILE_SUFFIX));
+        } catch (IOException ex) {
+            throw new GeneralSecurityException("Unable to lock the data key", ex);
+        }
+        try {
+            dataKey = readDataKey(keyStore);
+            if (dataKey != null) {
+                return dataKey;
+            }
+            return createDataKey(keyStore);
+        } finally {
+            try {
+                Utils.releaseLock(lock);
+            } catch (IOException ex) {
+                Logger.warn("Unable to release lock for data key %s: %s",
+                        mKeyFile, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads and unwraps the stored data key, or returns {@code null} if there is none, or it can
+     * never be unwrapped. Failures which may be transient, such as the Keystore being
+     * unavailable, are thrown.
+     */
+    @Nullable
+    private SecretKey readDataKey(KeyStore keyStore) throws GeneralSecurityException {
+        if (!mKeyFile.exists()) {
+            return null;
+        }
+
+        Key wrappingKey = keyStore.getKey(mKeyAlias, null);
+        if (wrappingKey == null) {
+            return null;
+        }
+
+        byte[] wrapped;
+        try {
+            wrapped = Utils.readFile(mKeyFile);
+        } catch (IOException ex) {
+            throw new GeneralSecurityException("Unable to read the data key", ex);
+        }
+        try {
+            return unwrap(wrappingKey, wrapped);
+        } catch (BadPaddingException ex) {
+            Logger.warn("Unable to unwrap data key %s: %s", mKeyFile, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates and stores a data key, and the Keystore key to wrap it if that does not yet exist.
+     * The caller must hold the data key lock.
+     */
+    private SecretKey createDataKey(KeyStore keyStore) throws GeneralSecurityException {
+        if (mKeyFile.exists()) {
+            // the data key cannot be unwrapped, e.g. as the files were restored to a new device,
+            // so any states encrypted with it are unreadable, and will be discarded
+            Logger.warn("Replacing data key %s, which cannot be unwrapped with Keystore key %s",
+                    mKeyFile, mKeyAlias);
+        }
+        Key wrappingKey = keyStore.getKey(mKeyAlias, null);
+        if (wrappingKey == null) {
+            wrappingKey = createWrappingKey();
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KEY_ALGORITHM);
+        generator.init(KEY_SIZE_BITS, mRandom);
+        SecretKey dataKey = generator.generateKey();
+        try {
+            Utils.writeAtomically(mKeyFile, wrap(wrappingKey, dataKey));
+        } catch (IOException ex) {
+            throw new GeneralSecurityException("Unable to store the data key", ex);
+        }
+        return dataKey;
+    }
+
+    private SecretKey createWrappingKey() throws GeneralSecurityException {
+        KeyGenerator generator =
+                KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(
+                mKeyAlias,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(KEY_SIZE_BITS)
+                .build());
+        return generator.generateKey();
+    }
+
+    private static byte[] wrap(Key wrappingKey, SecretKey dataKey)
+            throws GeneralSecurityException {
+        // the Keystore generates the IV, as it does not permit caller-provided IVs
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        byte[] iv = cipher.getIV();
+        byte[] wrapped = cipher.doFinal(dataKey.getEncoded());
+        if (iv.length != IV_SIZE_BYTES) {
+            throw new GeneralSecurityException("Unexpected IV size: " + iv.length);
+        }
+
+        byte[] result = Arrays.copyOf(iv, IV_SIZE_BYTES + wrapped.length);
+        System.arraycopy(wrapped, 0, result, IV_SIZE_BYTES, wrapped.length);
+        return result;
+    }
+
+    private static SecretKey unwrap(Key wrappingKey, byte[] wrapped)
+            throws GeneralSecurityException {
+        if (wrapped.length < IV_SIZE_BYTES) {
+            throw new BadPaddingException("Wrapped data key is too short");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey,
+                new GCMParameterSpec(TAG_SIZE_BITS, wrapped, 0, IV_SIZE_BYTES));
+        byte[] encoded = cipher.doFinal(wrapped, IV_SIZE_BYTES, wrapped.length - IV_SIZE_BYTES);
+        return new SecretKeySpec(encoded, KEY_ALGORITHM);
+    }
+}
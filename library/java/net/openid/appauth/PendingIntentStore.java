@@ -14,25 +14,85 @@
 
 package net.openid.appauth;
 
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
 import android.app.PendingIntent;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Stores {@link PendingIntent} associated with each {@link AuthorizationRequest} made via
  * {@link AuthorizationService#performAuthorizationRequest}.
  * The pending intents are read and sent by
  * the {@link RedirectUriReceiverActivity} when the redirect Uri is received.
+ *
+ * <p>A request and its pending intent are held in a single entry, keyed by the request's state,
+ * which is removed atomically when the redirect is received. Flows which are abandoned never
+ * receive a redirect, so entries expire after a fixed time, and at most a bounded number of
+ * entries are held; when the bound is reached, the least recently added entry is discarded.
+ * The store is thread-safe.
+ *
+ * <p>The store is held in memory, so an authorization flow must be completed in the process
+ * which started it: the {@link RedirectUriReceiverActivity} must run in the same process as
+ * the caller of {@link AuthorizationService#performAuthorizationRequest}. Unlike token
+ * refreshes, which can be coordinated across processes with an {@link AuthStateBroker}, flows
+ * are short-lived and interactive, so they are not shared between processes.
  */
 /* package */ class PendingIntentStore {
-    private Map<String, AuthorizationRequest> mRequests = new HashMap<>();
-    private Map<String, PendingIntent> mPendingIntents = new HashMap<>();
+
+    /**
+     * The time after which an entry expires, if no redirect has been received for it. Generous
+     * enough for interactive flows, such as those which involve account recovery.
+     */
+    @VisibleForTesting
+    static final long DEFAULT_ENTRY_TTL_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * The maximum number of entries held. Concurrent flows are rare, so this is only reached
+     * if flows are repeatedly started and abandoned.
+     */
+    @VisibleForTesting
+    static final int DEFAULT_MAX_ENTRIES = 16;
 
     private static PendingIntentStore sInstance;
 
-    private PendingIntentStore() {}
+    @NonNull
+    private final Clock mClock;
+
+    private final long mEntryTtlMs;
+
+    private final int mMaxEntries;
+
+    /**
+     * The entries by state, in the order in which they were added, which is also the order in
+     * which they expire. Guarded by itself, along with the counters.
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    private long mAddCount;
+    private long mHitCount;
+    private long mMissCount;
+    private long mExpiredCount;
+    private long mEvictionCount;
+
+    private PendingIntentStore() {
+        this(SystemClock.INSTANCE, DEFAULT_ENTRY_TTL_MS, DEFAULT_MAX_ENTRIES);
+    }
+
+    @VisibleForTesting
+    PendingIntentStore(@NonNull Clock clock, long entryTtlMs, int maxEntries) {
+        checkArgument(entryTtlMs > 0, "entryTtlMs must be positive");
+        checkArgument(maxEntries > 0, "maxEntries must be positive");
+        mClock = checkNotNull(clock, "clock cannot be null");
+        mEntryTtlMs = entryTtlMs;
+        mMaxEntries = maxEntries;
+    }
 
     public static synchronized PendingIntentStore getInstance() {
         if (sInstance == null) {
@@ -43,21 +103,154 @@ import java.util.Map;
 
     public void addPendingIntent(AuthorizationRequest request, PendingIntent intent) {
         Logger.verbose("Adding pending intent for state %s", request.state);
-        mRequests.put(request.state, request);
-        mPendingIntents.put(request.state, intent);
+        long now = mClock.getCurrentTimeMillis();
+        synchronized (mEntries) {
+            removeExpired(now);
+
+            // re-added entries move to the end of the order, as their expiry is renewed
+            mEntries.remove(request.state);
+            mEntries.put(request.state, new Entry(request, intent, now + mEntryTtlMs));
+            mAddCount++;
+
+            Iterator<Entry> iter = mEntries.values().iterator();
+            while (mEntries.size() > mMaxEntries) {
+                Entry evicted = iter.next();
+                iter.remove();
+                mEvictionCount++;
+                Logger.warn("Discarding pending intent for state %s, as too many "
+                        + "authorization flows are in progress", evicted.getRequest().state);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the request and pending intent for the specified state, or
+     * {@code null} if there is no such entry, or it has expired.
+     */
+    @Nullable
+    public Entry remove(String state) {
+        Logger.verbose("Retrieving pending intent for state %s", state);
+        long now = mClock.getCurrentTimeMillis();
+        synchronized (mEntries) {
+            Entry entry = mEntries.remove(state);
+            if (entry != null && entry.mExpirationTime <= now) {
+                Logger.warn("Pending intent for state %s has expired", state);
+                mExpiredCount++;
+                entry = null;
+            }
+
+            if (entry != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * The number of entries added.
+     */
+    public long getAddCount() {
+        synchronized (mEntries) {
+            return mAddCount;
+        }
     }
 
-    public AuthorizationRequest getOriginalRequest(String state) {
-        Logger.verbose("Retrieving original request for state %s", state);
-        return mRequests.remove(state);
+    /**
+     * The number of entries removed by {@link #remove(String)}, i.e. completed flows.
+     */
+    public long getHitCount() {
+        synchronized (mEntries) {
+            return mHitCount;
+        }
     }
 
-    public PendingIntent getPendingIntent(String state) {
-        Logger.verbose("Retrieving pending intent for scheme %s", state);
-        return mPendingIntents.remove(state);
+    /**
+     * The number of calls to {@link #remove(String)} for which no entry was returned, including
+     * those for expired entries.
+     */
+    public long getMissCount() {
+        synchronized (mEntries) {
+            return mMissCount;
+        }
+    }
+
+    /**
+     * The number of entries discarded as they expired.
+     */
+    public long getExpiredCount() {
+        synchronized (mEntries) {
+            return mExpiredCount;
+        }
+    }
+
+    /**
+     * The number of entries discarded before they expired, as the maximum number of entries was
+     * reached.
+     */
+    public long getEvictionCount() {
+        synchronized (mEntries) {
+            return mEvictionCount;
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
     }
 
     @VisibleForTesting void clearPendingIntents() {
-        mPendingIntents.clear();
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Entry> iter = mEntries.values().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry.mExpirationTime > now) {
+                // later entries expire no earlier
+                return;
+            }
+            iter.remove();
+            mExpiredCount++;
+        }
+    }
+
+    /**
+     * An authorization request, and the pending intent to send its response to.
+     */
+    static final class Entry {
+
+        @NonNull
+        private final AuthorizationRequest mRequest;
+
+        @NonNull
+        private final PendingIntent mPendingIntent;
+
+        private final long mExpirationTime;
+
+        Entry(
+                @NonNull AuthorizationRequest request,
+                @NonNull PendingIntent pendingIntent,
+                long expirationTime) {
+            mRequest = request;
+            mPendingIntent = pendingIntent;
+            mExpirationTime = expirationTime;
+        }
+
+        @NonNull
+        public AuthorizationRequest getRequest() {
+            return mRequest;
+        }
+
+        @NonNull
+        public PendingIntent getPendingIntent() {
+            return mPendingIntent;
+        }
     }
 }
@@ -53,14 +53,15 @@ public class RedirectUriReceiverActivity extends Activity {
         Intent intent = getIntent();
         Uri data = intent.getData();
         String state = data.getQueryParameter(KEY_STATE);
-        AuthorizationRequest request = PendingIntentStore.getInstance().getOriginalRequest(state);
-        PendingIntent target = PendingIntentStore.getInstance().getPendingIntent(state);
+        PendingIntentStore.Entry entry = PendingIntentStore.getInstance().remove(state);
 
-        if (request == null) {
+        if (entry == null) {
             Logger.error("Response received for unknown request with state %s", state);
             finish();
             return;
         }
+        AuthorizationRequest request = entry.getRequest();
+        PendingIntent target = entry.getPendingIntent();
 
         Intent responseData;
         if (data.getQueryParameterNames().contains(AuthorizationException.PARAM_ERROR)) {
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls the retry of requests which fail due to transient errors. Refresh token grants and
+ * discovery document retrievals which fail due to a network error, or an HTTP 5xx response,
+ * are retried with an exponential backoff: the delay before retry {@code n} (from 1) is
+ * {@code baseDelay * 2^(n-1)}, capped at the maximum delay, of which up to a
+ * {@link Builder#setJitter(double) jitter} fraction is removed at random, to avoid many
+ * clients retrying in lock-step. If the server provides a {@code Retry-After} header, the
+ * delay is extended to honor it; if the requested delay exceeds the maximum delay, the request
+ * is not retried.
+ *
+ * <p>Other failures, such as OAuth error responses, are never retried. Authorization code
+ * exchanges are also never retried, as authorization codes may only be used once.
+ *
+ * <p>Retries are performed on the executor thread of the request, which is occupied for the
+ * duration of any delay.
+ */
+public final class RetryPolicy {
+
+    /**
+     * The default maximum number of attempts for a policy created via {@link Builder}.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * The default delay before the first retry.
+     */
+    public static final long DEFAULT_BASE_DELAY_MS = 200L;
+
+    /**
+     * The default maximum delay before any retry.
+     */
+    public static final long DEFAULT_MAX_DELAY_MS = 10000L;
+
+    /**
+     * The default fraction of each delay which is randomized.
+     */
+    public static final double DEFAULT_JITTER = 0.5;
+
+    /**
+     * A policy under which requests are attempted exactly once. This is the default policy.
+     */
+    public static final RetryPolicy NO_RETRY = new RetryPolicy.Builder()
+            .setMaxAttempts(1)
+            .build();
+
+    @VisibleForTesting
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final int HTTP_SERVER_ERROR_MAX = 599;
+
+    private static final long NO_RETRY_DELAY = -1L;
+
+    private final int mMaxAttempts;
+
+    private final long mBaseDelayMs;
+
+    private final long mMaxDelayMs;
+
+    private final double mJitter;
+
+    private final boolean mHonorRetryAfter;
+
+    @Nullable
+    private final AttemptListener mAttemptListener;
+
+    @NonNull
+    private final Random mRandom = new Random();
+
+    private RetryPolicy(
+            int maxAttempts,
+            long baseDelayMs,
+            long maxDelayMs,
+            double jitter,
+            boolean honorRetryAfter,
+            @Nullable AttemptListener attemptListener) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mJitter = jitter;
+        mHonorRetryAfter = honorRetryAfter;
+        mAttemptListener = attemptListener;
+    }
+
+    /**
+     * The maximum number of attempts made for a request, including the first.
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * The delay before the first retry, prior to the application of jitter.
+     */
+    public long getBaseDelayMs() {
+        return mBaseDelayMs;
+    }
+
+    /**
+     * The maximum delay before any retry.
+     */
+    public long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    /**
+     * The fraction, between 0 and 1, of each delay which is randomized.
+     */
+    public double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Whether {@code Retry-After} headers provided by the server are honored.
+     */
+    public boolean getHonorRetryAfter() {
+        return mHonorRetryAfter;
+    }
+
+    /**
+     * The listener informed of the number of attempts used by each request, if any.
+     */
+    @Nullable
+    public AttemptListener getAttemptListener() {
+        return mAttemptListener;
+    }
+
+    /**
+     * Determines whether a response with the specified HTTP status code may be retried.
+     */
+    static boolean isRetryableResponseCode(int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                && responseCode <= HTTP_SERVER_ERROR_MAX;
+    }
+
+    /**
+     * Waits before the next attempt of a request, if the request should be retried after
+     * the specified (1-based) attempt failed.
+     *
+     * @param retryAfter the value of the {@code Retry-After} header of the failed attempt's
+     *     response, if any.
+     * @return {@code true} if the request should be attempted again, {@code false} if the
+     *     attempts are exhausted, or the calling thread was interrupted.
+     */
+    boolean awaitRetry(int attempt, @Nullable String retryAfter) {
+        long delayMs = getRetryDelayMs(
+                attempt,
+                retryAfter,
+                SystemClock.INSTANCE.getCurrentTimeMillis(),
+                nextRandom());
+        if (delayMs == NO_RETRY_DELAY) {
+            return false;
+        }
+
+        Logger.debug("Retrying request (attempt %d of %d) in %d ms",
+                attempt + 1, mMaxAttempts, delayMs);
+        if (delayMs == 0) {
+            return true;
+        }
+
+        try {
+            Thread.sleep(delayMs);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Computes the delay before retrying a request after the specified (1-based) attempt
+     * failed, or {@code -1} if the request should not be retried.
+     *
+     * @param random a value in the range {@code [0, 1)}, which determines the jitter applied.
+     */
+    @VisibleForTesting
+    long getRetryDelayMs(int attempt, @Nullable String retryAfter, long now, double random) {
+        if (attempt >= mMaxAttempts) {
+            return NO_RETRY_DELAY;
+        }
+
+        // base * 2^(attempt - 1), avoiding overflow for long sequences of attempts
+        long delayMs = mBaseDelayMs;
+        for (int i = 1; i < attempt && delayMs < mMaxDelayMs; i++) {
+            delayMs *= 2;
+        }
+        delayMs = Math.min(delayMs, mMaxDelayMs);
+        delayMs -= (long) (delayMs * mJitter * random);
+
+        if (mHonorRetryAfter) {
+            long retryAfterMs = parseRetryAfterMs(retryAfter, now);
+            if (retryAfterMs > mMaxDelayMs) {
+                Logger.debug("Server requested retry after %d ms, exceeding maximum delay",
+                        retryAfterMs);
+                return NO_RETRY_DELAY;
+            }
+            delayMs = Math.max(delayMs, retryAfterMs);
+        }
+
+        return delayMs;
+    }
+
+    private synchronized double nextRandom() {
+        return mRandom.nextDouble();
+    }
+
+    /**
+     * Parses the value of a {@code Retry-After} header, which is either a number of seconds or an
+     * HTTP date, into a delay in milliseconds. Returns zero if the value is absent or malformed.
+     * @see <a href="https://tools.ietf.org/html/rfc7231#section-7.1.3">"Retry-After", RFC 7231,
+     *     Section 7.1.3</a>
+     */
+    @VisibleForTesting
+    static long parseRetryAfterMs(@Nullable String retryAfter, long now) {
+        if (TextUtils.isEmpty(retryAfter)) {
+            return 0L;
+        }
+
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0L, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException ex) {
+            // not delta-seconds, so expect an HTTP date
+        }
+
+        long date = Utils.parseHttpDate(value);
+        if (date < 0) {
+            Logger.debug("Ignoring malformed Retry-After header: %s", value);
+            return 0L;
+        }
+        return Math.max(0L, date - now);
+    }
+
+    /**
+     * Receives the number of attempts made for each request subject to a retry policy.
+     * Invoked on the main thread, prior to the request's callback.
+     */
+    public interface AttemptListener {
+        /**
+         * Invoked when a request completes, successfully or otherwise.
+         *
+         * @param endpoint the endpoint to which the request was made.
+         * @param attempts the number of attempts made, including the first.
+         * @param ex a description of the failure of the final attempt, if it failed;
+         *     {@code null} otherwise.
+         */
+        void onRequestCompleted(
+                @NonNull Uri endpoint,
+                int attempts,
+                @Nullable AuthorizationException ex);
+    }
+
+    /**
+     * Creates {@link RetryPolicy} instances.
+     */
+    public static final class Builder {
+
+        private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+        private long mBaseDelayMs = DEFAULT_BASE_DELAY_MS;
+
+        private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+
+        private double mJitter = DEFAULT_JITTER;
+
+        private boolean mHonorRetryAfter = true;
+
+        @Nullable
+        private AttemptListener mAttemptListener;
+
+        /**
+         * Specifies the maximum number of attempts made for a request, including the first.
+         * Must be at least 1.
+         */
+        @NonNull
+        public Builder setMaxAttempts(int maxAttempts) {
+            checkArgument(maxAttempts >= 1, "maxAttempts must be at least 1");
+            mMaxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Specifies the delay before the first retry, which is doubled for each subsequent
+         * retry. Must not be negative.
+         */
+        @NonNull
+        public Builder setBaseDelayMs(long baseDelayMs) {
+            checkArgument(baseDelayMs >= 0, "baseDelayMs must not be negative");
+            mBaseDelayMs = baseDelayMs;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum delay before any retry. Must not be negative.
+         */
+        @NonNull
+        public Builder setMaxDelayMs(long maxDelayMs) {
+            checkArgument(maxDelayMs >= 0, "maxDelayMs must not be negative");
+            mMaxDelayMs = maxDelayMs;
+            return this;
+        }
+
+        /**
+         * Specifies the fraction, between 0 and 1, of each delay which is randomized.
+         */
+        @NonNull
+        public Builder setJitter(double jitter) {
+            checkArgument(jitter >= 0 && jitter <= 1, "jitter must be between 0 and 1");
+            mJitter = jitter;
+            return this;
+        }
+
+        /**
+         * Specifies whether {@code Retry-After} headers provided by the server are honored.
+         * By default, they are.
+         */
+        @NonNull
+        public Builder setHonorRetryAfter(boolean honorRetryAfter) {
+            mHonorRetryAfter = honorRetryAfter;
+            return this;
+        }
+
+        /**
+         * Specifies a listener to be informed of the number of attempts used by each request.
+         */
+        @NonNull
+        public Builder setAttemptListener(@Nullable AttemptListener attemptListener) {
+            mAttemptListener = attemptListener;
+            return this;
+        }
+
+        /**
+         * Creates the instance from the configured properties.
+         */
+        @NonNull
+        public RetryPolicy build() {
+            return new RetryPolicy(
+                    mMaxAttempts,
+                    mBaseDelayMs,
+                    mMaxDelayMs,
+                    mJitter,
+                    mHonorRetryAfter,
+                    mAttemptListener);
+        }
+    }
+}
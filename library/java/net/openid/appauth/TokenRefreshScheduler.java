@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.Preconditions.checkArgument;
+import static net.openid.appauth.Preconditions.checkNotNull;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import net.openid.appauth.AuthState.AuthStateAction;
+import net.openid.appauth.AuthorizationException.GeneralErrors;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proactively refreshes the access tokens of registered {@link AuthState authorization states}
+ * a configurable lead time before they expire. This is an optional companion to
+ * {@link AuthState#performActionWithFreshTokens(AuthorizationService, AuthStateAction)
+ * performActionWithFreshTokens}: when tokens are refreshed ahead of time, foreground actions
+ * will rarely have to wait for a round trip to the token endpoint.
+ *
+ * <p>Refreshes are coalesced with any refresh triggered by
+ * {@link AuthState#performActionWithFreshTokens(AuthorizationService, AuthStateAction)
+ * performActionWithFreshTokens}, so at most one refresh is in progress for a state at any time.
+ * After each successful refresh, the next refresh is scheduled based on the new expiration time.
+ * Refreshes which fail due to a network or server error are retried after
+ * {@link #FAILURE_RETRY_DELAY_MS}, and refreshes which are cancelled are rescheduled
+ * immediately; a state whose refresh is rejected by the authorization server, or fails for any
+ * other reason, such as a malformed response, is unregistered.
+ *
+ * <p>Registered states are only scheduled while the process is alive, and the scheduler should
+ * be {@link #shutdown() shut down} before the associated {@link AuthorizationService} is
+ * {@link AuthorizationService#dispose() disposed}; otherwise, each state is unregistered when its
+ * refresh is cancelled by the disposal, or next falls due. As the scheduler modifies the registered
+ * states, an {@link AuthStateAction} can be provided on registration to persist the state
+ * after each proactive refresh.
+ */
+public final class TokenRefreshScheduler {
+
+    /**
+     * The default lead time before access token expiry at which a refresh is performed.
+     */
+    public static final long DEFAULT_LEAD_TIME_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * The delay before a refresh which failed due to a network or server error is retried.
+     */
+    public static final long FAILURE_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The minimum delay between consecutive refreshes of a state. This prevents a tight refresh
+     * loop when the authorization server issues tokens with a lifetime shorter than the lead time.
+     */
+    @VisibleForTesting
+    static final long MIN_REFRESH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    @NonNull
+    private final AuthorizationService mService;
+
+    private final long mLeadTimeMs;
+
+    @NonNull
+    private final Clock mClock;
+
+    @NonNull
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /**
+     * The scheduled refreshes of registered states. Guarded by {@link #mLock}.
+     */
+    @NonNull
+    private final Map<AuthState, ScheduledRefresh> mScheduledRefreshes = new HashMap<>();
+
+    private boolean mShutdown;
+
+    /**
+     * Creates a scheduler which refreshes tokens {@link #DEFAULT_LEAD_TIME_MS} before expiry,
+     * using the provided authorization service.
+     */
+    public TokenRefreshScheduler(@NonNull AuthorizationService service) {
+        this(service, DEFAULT_LEAD_TIME_MS);
+    }
+
+    /**
+     * Creates a scheduler which refreshes tokens the specified number of milliseconds before
+     * expiry, using the provided authorization service.
+     */
+    public TokenRefreshScheduler(@NonNull AuthorizationService service, long leadTimeMs) {
+        this(service, leadTimeMs, SystemClock.INSTANCE, new Handler(Looper.getMainLooper()));
+    }
+
+    @VisibleForTesting
+    TokenRefreshScheduler(
+            @NonNull AuthorizationService service,
+            long leadTimeMs,
+            @NonNull Clock clock,
+            @NonNull Handler handler) {
+        checkArgument(leadTimeMs >= 0, "leadTimeMs must not be negative");
+        mService = checkNotNull(service, "service cannot be null");
+        mLeadTimeMs = leadTimeMs;
+        mClock = checkNotNull(clock, "clock cannot be null");
+        mHandler = checkNotNull(handler, "handler cannot be null");
+    }
+
+    /**
+     * Registers the provided authorization state for proactive refresh.
+     * @see #register(AuthState, AuthStateAction)
+     */
+    public boolean register(@NonNull AuthState state) {
+        return register(state, null);
+    }
+
+    /**
+     * Registers the provided authorization state for proactive refresh, based on the
+     * expiration time of its current access token. The provided action, if any, is invoked on the
+     * main thread after each proactive refresh completes. If the state is already registered,
+     * its refresh is rescheduled; this should be done whenever the state is updated by means
+     * other than a token refresh, such as a new authorization.
+     *
+     * <p>States without a refresh token or a known access token expiration time cannot be
+     * refreshed proactively, and are not registered.
+     *
+     * @return {@code true} if a refresh was scheduled.
+     */
+    public boolean register(@NonNull AuthState state, @Nullable AuthStateAction onRefresh) {
+        checkNotNull(state, "state cannot be null");
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("scheduler has been shut down");
+            }
+
+            cancelLocked(state);
+            if (state.getRefreshToken() == null || state.getAccessTokenExpirationTime() == null) {
+                Logger.debug("Auth state has no refresh token or expiration time, not scheduling"
+                        + " proactive refresh");
+                return false;
+            }
+
+            scheduleLocked(new ScheduledRefresh(state, onRefresh), 0L);
+            return true;
+        }
+    }
+
+    /**
+     * Stops proactively refreshing the provided authorization state. A refresh that is already
+     * in progress will complete, but its registered action will not be invoked.
+     */
+    public void unregister(@NonNull AuthState state) {
+        checkNotNull(state, "state cannot be null");
+        synchronized (mLock) {
+            cancelLocked(state);
+        }
+    }
+
+    /**
+     * Determines whether the provided authorization state is registered for proactive refresh.
+     */
+    public boolean isRegistered(@NonNull AuthState state) {
+        synchronized (mLock) {
+            return mScheduledRefreshes.containsKey(state);
+        }
+    }
+
+    /**
+     * Unregisters all authorization states, and prevents any further registrations.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (ScheduledRefresh refresh : mScheduledRefreshes.values()) {
+                mHandler.removeCallbacks(refresh);
+            }
+            mScheduledRefreshes.clear();
+        }
+    }
+
+    private void cancelLocked(AuthState state) {
+        ScheduledRefresh refresh = mScheduledRefreshes.remove(state);
+        if (refresh != null) {
+            mHandler.removeCallbacks(refresh);
+        }
+    }
+
+    private void scheduleLocked(ScheduledRefresh refresh, long minDelayMs) {
+        Long expirationTime = refresh.mState.getAccessTokenExpirationTime();
+        long delayMs;
+        if (expirationTime == null) {
+            delayMs = minDelayMs;
+        } else {
+            delayMs = Math.max(
+                    expirationTime - mLeadTimeMs - mClock.getCurrentTimeMillis(),
+                    minDelayMs);
+        }
+
+        Logger.verbose("Scheduling proactive token refresh in %d ms", delayMs);
+        mScheduledRefreshes.put(refresh.mState, refresh);
+        mHandler.postDelayed(refresh, delayMs);
+    }
+
+    private void onRefreshCompleted(
+            ScheduledRefresh refresh,
+            @Nullable String accessToken,
+            @Nullable String idToken,
+            @Nullable AuthorizationException ex) {
+        synchronized (mLock) {
+            if (mScheduledRefreshes.get(refresh.mState) != refresh) {
+                // unregistered or re-registered while the refresh was in progress
+                return;
+            }
+
+            if (ex == null) {
+                scheduleLocked(refresh, MIN_REFRESH_INTERVAL_MS);
+            } else if (mService.isDisposed()) {
+                // the refresh was cancelled, and no further refreshes can be performed
+                Logger.debug("Authorization service disposed, unregistering auth state");
+                mScheduledRefreshes.remove(refresh.mState);
+            } else if (GeneralErrors.PROGRAM_CANCELED_AUTH_FLOW.equals(ex)) {
+                // a refresh coalesced with this one was cancelled by its own service
+                Logger.debug("Proactive token refresh cancelled, rescheduling");
+                scheduleLocked(refresh, 0L);
+            } else if (GeneralErrors.NETWORK_ERROR.equals(ex)
+                    || GeneralErrors.SERVER_ERROR.equals(ex)) {
+                Logger.debug("Proactive token refresh failed, retrying in %d ms",
+                        FAILURE_RETRY_DELAY_MS);
+                scheduleLocked(refresh, FAILURE_RETRY_DELAY_MS);
+            } else {
+                // rejected by the server, or failed in a way which retrying will not fix, such
+                // as a malformed response
+                Logger.debug("Proactive token refresh failed permanently, unregistering auth "
+                        + "state: %s", ex.getMessage());
+                mScheduledRefreshes.remove(refresh.mState);
+            }
+        }
+
+        if (refresh.mOnRefresh != null) {
+            refresh.mOnRefresh.execute(accessToken, idToken, ex);
+        }
+    }
+
+    private final class ScheduledRefresh implements Runnable, AuthStateAction {
+
+        @NonNull
+        final AuthState mState;
+
+        @Nullable
+        final AuthStateAction mOnRefresh;
+
+        ScheduledRefresh(@NonNull AuthState state, @Nullable AuthStateAction onRefresh) {
+            mState = state;
+            mOnRefresh = onRefresh;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mScheduledRefreshes.get(mState) != this) {
+                    return;
+                }
+            }
+
+            Logger.debug("Performing proactive token refresh");
+            try {
+                mState.performTokenRefresh(
+                        mService,
+                        Collections.<String, String>emptyMap(),
+                        this);
+            } catch (RuntimeException ex) {
+                Logger.errorWithStack(ex, "Unable to perform proactive token refresh");
+                synchronized (mLock) {
+                    if (mScheduledRefreshes.get(mState) == this) {
+                        mScheduledRefreshes.remove(mState);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void execute(
+                @Nullable String accessToken,
+                @Nullable String idToken,
+                @Nullable AuthorizationException ex) {
+            onRefreshCompleted(this, accessToken, idToken, ex);
+        }
+    }
+}
@@ -24,10 +24,14 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -84,6 +88,11 @@ public class TokenRequest {
     @VisibleForTesting
     static final String PARAM_SCOPE = "scope";
 
+    /**
+     * The number of standard parameters which may be included in the request body.
+     */
+    private static final int NUM_STANDARD_PARAMS = 7;
+
     private static final Set<String> BUILT_IN_PARAMS = Collections.unmodifiableSet(
             new HashSet<>(Arrays.asList(
                     PARAM_CLIENT_ID,
@@ -523,6 +532,40 @@ public class TokenRequest {
         return uriBuilder.build();
     }
 
+    /**
+     * Produces the {@code application/x-www-form-urlencoded} body of the request, in UTF-8, that
+     * is sent to the {@link AuthorizationServiceConfiguration#tokenEndpoint token endpoint}.
+     * The body is equivalent to the encoded query of {@link #toUri()}, but is encoded without
+     * building the intermediate URI.
+     */
+    @NonNull
+    public byte[] toFormBody() {
+        String[] namesAndValues = new String[NUM_STANDARD_PARAMS * 2
+                + additionalParameters.size() * 2];
+        int i = 0;
+        namesAndValues[i++] = PARAM_GRANT_TYPE;
+        namesAndValues[i++] = grantType;
+        namesAndValues[i++] = PARAM_CLIENT_ID;
+        namesAndValues[i++] = clientId;
+        namesAndValues[i++] = PARAM_REDIRECT_URI;
+        namesAndValues[i++] = (redirectUri != null) ? redirectUri.toString() : null;
+        namesAndValues[i++] = PARAM_CODE;
+        namesAndValues[i++] = authorizationCode;
+        namesAndValues[i++] = PARAM_REFRESH_TOKEN;
+        namesAndValues[i++] = refreshToken;
+        namesAndValues[i++] = PARAM_CODE_VERIFIER;
+        namesAndValues[i++] = codeVerifier;
+        namesAndValues[i++] = PARAM_SCOPE;
+        namesAndValues[i++] = scope;
+
+        for (Entry<String, String> param : additionalParameters.entrySet()) {
+            namesAndValues[i++] = param.getKey();
+            namesAndValues[i++] = param.getValue();
+        }
+
+        return FormUrlEncoder.encode(namesAndValues);
+    }
+
     /**
      * Converts the token request to JSON for storage or transmission.
      */
@@ -541,12 +584,40 @@ public class TokenRequest {
         return json;
     }
 
+    /**
+     * Writes the token request to the provided JSON writer, in the same form as
+     * {@link #toJson()}.
+     */
+    public void writeJson(@NonNull JsonWriter writer) throws IOException {
+        checkNotNull(writer, "writer cannot be null");
+        writer.beginObject();
+        writer.name(KEY_CONFIGURATION);
+        configuration.writeJson(writer);
+        writer.name(KEY_CLIENT_ID).value(clientId);
+        writer.name(KEY_GRANT_TYPE).value(grantType);
+        if (redirectUri != null) {
+            writer.name(KEY_REDIRECT_URI).value(redirectUri.toString());
+        }
+        JsonUtil.writeIfNotNull(writer, KEY_SCOPE, scope);
+        JsonUtil.writeIfNotNull(writer, KEY_AUTHORIZATION_CODE, authorizationCode);
+        JsonUtil.writeIfNotNull(writer, KEY_REFRESH_TOKEN, refreshToken);
+        writer.name(KEY_ADDITIONAL_PARAMETERS);
+        JsonUtil.writeStringMap(writer, additionalParameters);
+        writer.endObject();
+    }
+
     /**
      * Converts the authorization request to a JSON string for storage or transmission.
      */
     @NonNull
     public String toJsonString() {
-        return toJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(new JsonWriter(out));
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a string", ex);
+        }
+        return out.toString();
     }
 
     /**
@@ -557,7 +628,81 @@ public class TokenRequest {
     @NonNull
     public static TokenRequest fromJson(@NonNull String json) throws JSONException {
         checkNotNull(json, "json string cannot be null");
-        return fromJson(new JSONObject(json));
+        try {
+            return readJson(JsonUtil.newReader(json));
+        } catch (IOException ex) {
+            throw JsonUtil.toJsonException("Malformed token request JSON", ex);
+        }
+    }
+
+    /**
+     * Reads a token request from the provided JSON reader, consuming an object in the form
+     * produced by {@link #writeJson(JsonWriter)} or {@link #toJson()}.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the provided JSON does not match the expected structure.
+     */
+    @NonNull
+    public static TokenRequest readJson(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        checkNotNull(reader, "reader cannot be null");
+
+        AuthorizationServiceConfiguration configuration = null;
+        String clientId = null;
+        String grantType = null;
+        String redirectUri = null;
+        String scope = null;
+        String authorizationCode = null;
+        String refreshToken = null;
+        Map<String, String> additionalParameters = null;
+
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_CONFIGURATION:
+                    configuration = AuthorizationServiceConfiguration.readJson(reader);
+                    break;
+                case KEY_CLIENT_ID:
+                    clientId = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_GRANT_TYPE:
+                    grantType = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_REDIRECT_URI:
+                    redirectUri = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_SCOPE:
+                    scope = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_AUTHORIZATION_CODE:
+                    authorizationCode = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_REFRESH_TOKEN:
+                    refreshToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_ADDITIONAL_PARAMETERS:
+                    additionalParameters = JsonUtil.readStringMap(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        TokenRequest.Builder builder = new TokenRequest.Builder(
+                JsonUtil.checkFieldPresent(configuration, KEY_CONFIGURATION),
+                JsonUtil.checkFieldPresent(clientId, KEY_CLIENT_ID))
+                .setRedirectUri(redirectUri != null ? Uri.parse(redirectUri) : null)
+                .setGrantType(JsonUtil.checkFieldPresent(grantType, KEY_GRANT_TYPE))
+                .setRefreshToken(refreshToken)
+                .setAuthorizationCode(authorizationCode)
+                .setAdditionalParameters(additionalParameters);
+
+        if (scope != null) {
+            builder.setScopes(ScopeUtil.scopeStringToSet(scope));
+        }
+
+        return builder.build();
     }
 
     /**
@@ -24,10 +24,14 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -440,11 +444,37 @@ public class TokenResponse {
         return json;
     }
 
+    /**
+     * Writes the token response to the provided JSON writer, in the same form as
+     * {@link #toJson()}.
+     */
+    public void writeJson(@NonNull JsonWriter writer) throws IOException {
+        checkNotNull(writer, "writer cannot be null");
+        writer.beginObject();
+        writer.name(KEY_REQUEST);
+        request.writeJson(writer);
+        JsonUtil.writeIfNotNull(writer, KEY_TOKEN_TYPE, tokenType);
+        JsonUtil.writeIfNotNull(writer, KEY_ACCESS_TOKEN, accessToken);
+        JsonUtil.writeIfNotNull(writer, KEY_EXPIRES_AT, accessTokenExpirationTime);
+        JsonUtil.writeIfNotNull(writer, KEY_ID_TOKEN, idToken);
+        JsonUtil.writeIfNotNull(writer, KEY_REFRESH_TOKEN, refreshToken);
+        JsonUtil.writeIfNotNull(writer, KEY_SCOPE, scope);
+        writer.name(KEY_ADDITIONAL_PARAMETERS);
+        JsonUtil.writeStringMap(writer, additionalParameters);
+        writer.endObject();
+    }
+
     /**
      * Converts the token response to a JSON string, for storage or transmission.
      */
     public String toJsonString() {
-        return toJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(new JsonWriter(out));
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException thrown writing to a string", ex);
+        }
+        return out.toString();
     }
 
     /**
@@ -477,7 +507,11 @@ public class TokenResponse {
             @NonNull String jsonStr)
             throws JSONException {
         checkNotEmpty(jsonStr, "jsonStr cannot be null or empty");
-        return fromJson(request, new JSONObject(jsonStr));
+        try {
+            return readJson(request, JsonUtil.newReader(jsonStr));
+        } catch (IOException ex) {
+            throw JsonUtil.toJsonException("Malformed token response JSON", ex);
+        }
     }
 
     /**
@@ -503,8 +537,109 @@ public class TokenResponse {
             extractedRequest = TokenRequest.fromJson(json.getJSONObject(KEY_REQUEST));
         }
 
-        return new TokenResponse.Builder(extractedRequest)
+        TokenResponse.Builder builder = new TokenResponse.Builder(extractedRequest)
                 .fromResponseJson(json)
-                .build();
+                .setScope(JsonUtil.getStringIfDefined(json, KEY_SCOPE));
+        if (json.has(KEY_ADDITIONAL_PARAMETERS)) {
+            builder.setAdditionalParameters(
+                    JsonUtil.getStringMap(json, KEY_ADDITIONAL_PARAMETERS));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads a token response from the provided JSON reader, consuming an object in the form
+     * produced by {@link #writeJson(JsonWriter)} or {@link #toJson()}.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the JSON is missing required fields.
+     */
+    @NonNull
+    public static TokenResponse readJson(@NonNull JsonReader reader)
+            throws IOException, JSONException {
+        return readJson(null, reader);
+    }
+
+    /**
+     * Reads a token response from the provided JSON reader, and associates it with the provided
+     * request. If a request is not provided, its serialized form is expected to be found in the
+     * JSON (as if produced by a prior call to {@link #writeJson(JsonWriter)}).
+     * @throws IOException if the JSON is malformed or cannot be read.
+     * @throws JSONException if the JSON is missing required fields.
+     */
+    @NonNull
+    public static TokenResponse readJson(
+            @Nullable TokenRequest request,
+            @NonNull JsonReader reader)
+            throws IOException, JSONException {
+        checkNotNull(reader, "reader cannot be null");
+
+        TokenRequest extractedRequest = request;
+        String tokenType = null;
+        String accessToken = null;
+        Long expiresAt = null;
+        Long expiresIn = null;
+        String idToken = null;
+        String refreshToken = null;
+        String scope = null;
+        Map<String, String> additionalParameters = null;
+
+        JsonUtil.beginObject(reader);
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_REQUEST:
+                    if (request == null) {
+                        extractedRequest = TokenRequest.readJson(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case KEY_TOKEN_TYPE:
+                    tokenType = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_ACCESS_TOKEN:
+                    accessToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_EXPIRES_AT:
+                    expiresAt = JsonUtil.nextLong(reader);
+                    break;
+                case KEY_EXPIRES_IN:
+                    expiresIn = JsonUtil.nextLong(reader);
+                    break;
+                case KEY_ID_TOKEN:
+                    idToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_REFRESH_TOKEN:
+                    refreshToken = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_SCOPE:
+                    scope = JsonUtil.nextRequiredString(reader, name);
+                    break;
+                case KEY_ADDITIONAL_PARAMETERS:
+                    additionalParameters = JsonUtil.readStringMap(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (extractedRequest == null) {
+            throw new IllegalArgumentException(
+                    "token request not provided and not found in JSON");
+        }
+
+        TokenResponse.Builder builder = new TokenResponse.Builder(extractedRequest)
+                .setTokenType(tokenType)
+                .setAccessToken(accessToken)
+                .setAccessTokenExpirationTime(expiresAt)
+                .setIdToken(idToken)
+                .setRefreshToken(refreshToken)
+                .setScope(scope)
+                .setAdditionalParameters(additionalParameters);
+        if (expiresIn != null) {
+            builder.setAccessTokenExpiresIn(expiresIn);
+        }
+        return builder.build();
     }
 }
@@ -14,10 +14,27 @@
 
 package net.openid.appauth;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * Utility class for common operations.
@@ -25,6 +42,10 @@ import java.io.InputStreamReader;
 class Utils {
     private static final int INITIAL_READ_BUFFER_SIZE = 1024;
 
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
     private Utils() {}
 
     /**
@@ -41,6 +62,25 @@ class Utils {
         return sb.toString();
     }
 
+    /**
+     * Reads the entire contents of a file.
+     */
+    @NonNull
+    public static byte[] readFile(@NonNull File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[INITIAL_READ_BUFFER_SIZE];
+            int readCount;
+            while ((readCount = in.read(buffer)) != -1) {
+                out.write(buffer, 0, readCount);
+            }
+            return out.toByteArray();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
     /**
      * Close an input stream quietly, i.e. without throwing an exception.
      */
@@ -53,4 +93,103 @@ class Utils {
             // deliberately do nothing
         }
     }
+
+    /**
+     * Returns the hex-encoded SHA-256 hash of the UTF-8 bytes of the value. The result has a
+     * fixed length, so it is suitable as a file name for values of any length.
+     */
+    @NonNull
+    public static String sha256Hex(@NonNull String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            throw new IllegalStateException("SHA-256 and UTF-8 must be supported", ex);
+        }
+    }
+
+    /**
+     * Parses an HTTP date header value, such as that of an {@code Expires} header, into
+     * milliseconds since the UNIX epoch. Returns {@code -1} if the value is absent or malformed.
+     * @see <a href="https://tools.ietf.org/html/rfc7231#section-7.1.1.1">"Date/Time Formats",
+     *     RFC 7231, Section 7.1.1.1</a>
+     */
+    public static long parseHttpDate(@Nullable String value) {
+        if (TextUtils.isEmpty(value)) {
+            return -1L;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Replaces the contents of a file atomically. The data is written to a temporary file in
+     * the same directory and synced to disk before being renamed over the target, so a reader,
+     * or the file system after a crash, sees either the previous or the new contents, never a
+     * partial write. Callers must not write the same file concurrently.
+     */
+    public static void writeAtomically(@NonNull File file, @NonNull byte[] data)
+            throws IOException {
+        File temp = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        boolean written = false;
+        try {
+            out.write(data);
+            out.getFD().sync();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Takes an exclusive lock on a file, creating it and its directory if necessary, blocking
+     * until the lock is available. The lock excludes other processes, but not other threads of
+     * the same process, which must be coordinated separately.
+     */
+    @NonNull
+    public static FileLock acquireLock(@NonNull File lockFile) throws IOException {
+        File directory = lockFile.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+        try {
+            return file.getChannel().lock();
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Releases a lock taken by {@link #acquireLock(File)}, and closes its file.
+     */
+    public static void releaseLock(@NonNull FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock.channel().close();
+        }
+    }
 }
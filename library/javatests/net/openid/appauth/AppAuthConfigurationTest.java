@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Executor;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AppAuthConfigurationTest {
+
+    @Test
+    public void testBuilder_defaults() {
+        AppAuthConfiguration config = new AppAuthConfiguration.Builder().build();
+        assertThat(config.getConnectionBuilder()).isSameAs(DefaultConnectionBuilder.INSTANCE);
+        assertThat(config.getExecutor()).isSameAs(AppAuthConfiguration.getDefaultExecutor());
+        assertThat(config.getRetryPolicy()).isSameAs(RetryPolicy.NO_RETRY);
+        assertThat(config.getConnectTimeoutMs())
+                .isEqualTo(AppAuthConfiguration.DEFAULT_CONNECT_TIMEOUT_MS);
+        assertThat(config.getReadTimeoutMs())
+                .isEqualTo(AppAuthConfiguration.DEFAULT_READ_TIMEOUT_MS);
+        assertThat(config.getDiscoveryCache()).isNull();
+        assertThat(config.getRetainedDiscoveryFields()).isNull();
+    }
+
+    @Test
+    public void testBuilder_setExecutor() {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        AppAuthConfiguration config = new AppAuthConfiguration.Builder()
+                .setExecutor(executor)
+                .build();
+        assertThat(config.getExecutor()).isSameAs(executor);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testBuilder_setExecutor_null() {
+        new AppAuthConfiguration.Builder().setExecutor(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testBuilder_setConnectionBuilder_null() {
+        new AppAuthConfiguration.Builder().setConnectionBuilder(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilder_setConnectTimeoutMs_negative() {
+        new AppAuthConfiguration.Builder().setConnectTimeoutMs(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilder_setReadTimeoutMs_negative() {
+        new AppAuthConfiguration.Builder().setReadTimeoutMs(-1);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.TestValues.TEST_AUTH_CODE;
+import static net.openid.appauth.TestValues.TEST_REFRESH_TOKEN;
+import static net.openid.appauth.TestValues.TEST_STATE;
+import static net.openid.appauth.TestValues.getTestAuthCodeExchangeRequest;
+import static net.openid.appauth.TestValues.getTestAuthRequest;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import net.openid.appauth.AuthState.AuthStateAction;
+import net.openid.appauth.AuthorizationException.GeneralErrors;
+import net.openid.appauth.AuthorizationException.TokenRequestErrors;
+import net.openid.appauth.AuthorizationService.CancellableTokenResponseCallback;
+import net.openid.appauth.AuthorizationService.TokenResponseCallback;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AuthStateBrokerTest {
+
+    private static final String TEST_KEY = "user@example.com";
+    private static final String TEST_FRESH_ACCESS_TOKEN = "fresh_access_token";
+    private static final String TEST_EXPIRED_ACCESS_TOKEN = "expired_access_token";
+    private static final String TEST_ROTATED_REFRESH_TOKEN = "rotated_refresh_token";
+    private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Mock AuthorizationService mService;
+    @Mock AuthStateAction mAction;
+
+    private File mDirectory;
+    private AuthStateStore mStore;
+    private AuthStateBroker mBroker;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mDirectory = mTempFolder.getRoot();
+        mStore = createStore();
+        Handler handler = new Handler(Looper.getMainLooper());
+        mBroker = new AuthStateBroker(mStore, handler, handler);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_freshTokenUsedWithoutLock() {
+        writeState(mStore, createState(TEST_FRESH_ACCESS_TOKEN, ONE_HOUR));
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+
+        verify(mAction).execute(TEST_FRESH_ACCESS_TOKEN, null, null);
+        verifyZeroInteractions(mService);
+        assertThat(mStore.getLockFile(TEST_KEY)).doesNotExist();
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_refreshedByOtherProcess() {
+        writeState(mStore, createState(TEST_EXPIRED_ACCESS_TOKEN, -ONE_HOUR));
+        AuthState state = mStore.read(TEST_KEY);
+        writeState(createStore(), createState(TEST_FRESH_ACCESS_TOKEN, ONE_HOUR));
+
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+        Robolectric.runUiThreadTasks();
+        verify(mAction).execute(TEST_FRESH_ACCESS_TOKEN, null, null);
+        verifyZeroInteractions(mService);
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isFalse();
+
+        // the instance in memory is updated in place
+        assertThat(state.getAccessToken()).isEqualTo(TEST_FRESH_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_refreshWrittenBeforeLockReleased()
+            throws Exception {
+        writeState(mStore, createState(TEST_EXPIRED_ACCESS_TOKEN, -ONE_HOUR));
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+        Robolectric.runUiThreadTasks();
+
+        TokenResponseCallback callback = captureTokenRequestCallback();
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isTrue();
+        verifyZeroInteractions(mAction);
+
+        AuthState state = mStore.read(TEST_KEY);
+        callback.onTokenRequestCompleted(
+                new TokenResponse.Builder(state.createTokenRefreshRequest())
+                        .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                        .setAccessToken(TEST_FRESH_ACCESS_TOKEN)
+                        .setAccessTokenExpirationTime(System.currentTimeMillis() + ONE_HOUR)
+                        .build(),
+                null);
+        Robolectric.runUiThreadTasks();
+        verify(mAction).execute(TEST_FRESH_ACCESS_TOKEN, null, null);
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isFalse();
+        assertThat(createStore().read(TEST_KEY).getAccessToken())
+                .isEqualTo(TEST_FRESH_ACCESS_TOKEN);
+
+        RandomAccessFile lockFile = new RandomAccessFile(mStore.getLockFile(TEST_KEY), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().tryLock();
+            assertThat(lock).isNotNull();
+            lock.release();
+        } finally {
+            lockFile.close();
+        }
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_removedByOtherProcess() {
+        writeState(mStore, createState(TEST_EXPIRED_ACCESS_TOKEN, -ONE_HOUR));
+        mStore.read(TEST_KEY);
+        AuthStateStore otherStore = createStore();
+        otherStore.remove(TEST_KEY);
+        otherStore.flush();
+
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+        Robolectric.runUiThreadTasks();
+        verify(mAction).execute(null, null, TokenRequestErrors.INVALID_GRANT);
+        verifyZeroInteractions(mService);
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isFalse();
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_joinedRefreshWrittenBeforeLockReleased() {
+        writeState(mStore, createState(TEST_EXPIRED_ACCESS_TOKEN, -ONE_HOUR));
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+        Robolectric.runUiThreadTasks();
+        TokenResponseCallback callback = captureTokenRequestCallback();
+
+        // a second action joins the refresh, but only runs once the refresh has completed
+        AuthStateAction otherAction = mock(AuthStateAction.class);
+        Robolectric.getUiThreadScheduler().pause();
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, otherAction);
+        AuthState state = mStore.read(TEST_KEY);
+        callback.onTokenRequestCompleted(
+                new TokenResponse.Builder(state.createTokenRefreshRequest())
+                        .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                        .setAccessToken(TEST_FRESH_ACCESS_TOKEN)
+                        .setAccessTokenExpirationTime(System.currentTimeMillis() + ONE_HOUR)
+                        .setRefreshToken(TEST_ROTATED_REFRESH_TOKEN)
+                        .build(),
+                null);
+        Robolectric.getUiThreadScheduler().unPause();
+        Robolectric.runUiThreadTasks();
+
+        verify(mAction).execute(TEST_FRESH_ACCESS_TOKEN, null, null);
+        verify(otherAction).execute(TEST_FRESH_ACCESS_TOKEN, null, null);
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isFalse();
+        assertThat(createStore().read(TEST_KEY).getRefreshToken())
+                .isEqualTo(TEST_ROTATED_REFRESH_TOKEN);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_lockReleasedOnCancellation() {
+        writeState(mStore, createState(TEST_EXPIRED_ACCESS_TOKEN, -ONE_HOUR));
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+        Robolectric.runUiThreadTasks();
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isTrue();
+
+        // as when the service is disposed during the refresh
+        ((CancellableTokenResponseCallback) captureTokenRequestCallback())
+                .onTokenRequestCancelled();
+        Robolectric.runUiThreadTasks();
+        verify(mAction).execute(null, null, GeneralErrors.PROGRAM_CANCELED_AUTH_FLOW);
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isFalse();
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_lockReleasedWhenRefreshFails() {
+        writeState(mStore, createState(TEST_EXPIRED_ACCESS_TOKEN, -ONE_HOUR));
+        doThrow(new IllegalStateException("Service has been disposed"))
+                .when(mService)
+                .performTokenRequest(any(TokenRequest.class), any(TokenResponseCallback.class));
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+        try {
+            Robolectric.runUiThreadTasks();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // the failure is propagated, as when not using a broker
+        }
+
+        Robolectric.runUiThreadTasks();
+        assertThat(mBroker.isLockHeld(TEST_KEY)).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPerformActionWithFreshTokens_noState() {
+        mBroker.performActionWithFreshTokens(TEST_KEY, mService, mAction);
+    }
+
+    private AuthStateStore createStore() {
+        return new AuthStateStore(
+                mDirectory,
+                AuthStateStore.DEFAULT_WRITE_DELAY_MS,
+                null,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    private static void writeState(AuthStateStore store, AuthState state) {
+        store.write(TEST_KEY, state);
+        store.flush();
+    }
+
+    private static AuthState createState(String accessToken, long expiresInMs) {
+        AuthorizationResponse authResponse =
+                new AuthorizationResponse.Builder(getTestAuthRequest())
+                        .setState(TEST_STATE)
+                        .setAuthorizationCode(TEST_AUTH_CODE)
+                        .build();
+        TokenResponse tokenResponse =
+                new TokenResponse.Builder(getTestAuthCodeExchangeRequest())
+                        .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                        .setAccessToken(accessToken)
+                        .setAccessTokenExpirationTime(System.currentTimeMillis() + expiresInMs)
+                        .setRefreshToken(TEST_REFRESH_TOKEN)
+                        .build();
+        return new AuthState(authResponse, tokenResponse);
+    }
+
+    private TokenResponseCallback captureTokenRequestCallback() {
+        ArgumentCaptor<TokenResponseCallback> captor =
+                ArgumentCaptor.forClass(TokenResponseCallback.class);
+        verify(mService).performTokenRequest(any(TokenRequest.class), captor.capture());
+        return captor.getValue();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.TestValues.TEST_ACCESS_TOKEN;
+import static net.openid.appauth.TestValues.TEST_CLIENT_ID;
+import static net.openid.appauth.TestValues.getTestAuthCodeExchangeRequest;
+import static net.openid.appauth.TestValues.getTestAuthRequest;
+import static net.openid.appauth.TestValues.getTestAuthState;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
+
+import net.openid.appauth.AuthStateRegistry.Account;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AuthStateRegistryTest {
+
+    private static final String TEST_ISSUER = "https://idp.example.com";
+    private static final String TEST_OTHER_ISSUER = "https://other.example.com";
+    private static final String TEST_SUBJECT = "12345";
+    private static final int TEST_MAX_RESIDENT_STATES = 2;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private AuthStateStore mStore;
+    private AuthStateRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mDirectory = mTempFolder.getRoot();
+        mStore = createStore();
+        mRegistry = new AuthStateRegistry(mStore, TEST_MAX_RESIDENT_STATES);
+    }
+
+    @Test
+    public void testPut_indexedByIdentity() throws Exception {
+        AuthState state = createAuthState(TEST_ISSUER, TEST_SUBJECT);
+        Account account = mRegistry.put(state);
+
+        assertThat(account.getIssuer()).isEqualTo(TEST_ISSUER);
+        assertThat(account.getClientId()).isEqualTo(TEST_CLIENT_ID);
+        assertThat(account.getSubject()).isEqualTo(TEST_SUBJECT);
+        assertThat(mRegistry.get(TEST_ISSUER, TEST_CLIENT_ID, TEST_SUBJECT)).isSameAs(state);
+        assertThat(mRegistry.get(TEST_ISSUER, TEST_CLIENT_ID, "other")).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_withoutIdToken() {
+        mRegistry.put(new AuthState());
+    }
+
+    @Test
+    public void testFromAuthState_malformedIdToken() {
+        // the test ID token is not a valid JWT
+        assertThat(Account.fromAuthState(getTestAuthState(TEST_ACCESS_TOKEN))).isNull();
+    }
+
+    @Test
+    public void testGet_residencyBounded() throws Exception {
+        Account first = mRegistry.put(createAuthState(TEST_ISSUER, "1"));
+        mRegistry.put(createAuthState(TEST_ISSUER, "2"));
+        mRegistry.put(createAuthState(TEST_ISSUER, "3"));
+        assertThat(mRegistry.getResidentCount()).isEqualTo(TEST_MAX_RESIDENT_STATES);
+
+        // the least recently used state is read from the store again
+        assertThat(mRegistry.get(first).getIdToken()).isEqualTo(createIdToken(TEST_ISSUER, "1"));
+        assertThat(mRegistry.getResidentCount()).isEqualTo(TEST_MAX_RESIDENT_STATES);
+    }
+
+    @Test
+    public void testGetAccounts_loadedFromStore() throws Exception {
+        Account first = mRegistry.put(createAuthState(TEST_ISSUER, "1"));
+        Account second = mRegistry.put(createAuthState(TEST_ISSUER, "2"));
+        Account other = mRegistry.put(createAuthState(TEST_OTHER_ISSUER, "1"));
+        mStore.flush();
+
+        AuthStateRegistry registry = new AuthStateRegistry(createStore());
+        assertThat(registry.getAccounts()).containsOnly(first, second, other);
+        assertThat(registry.getAccounts(TEST_ISSUER)).containsOnly(first, second);
+        assertThat(registry.getAccounts("https://unknown.example.com")).isEmpty();
+        assertThat(registry.get(other).getIdToken())
+                .isEqualTo(createIdToken(TEST_OTHER_ISSUER, "1"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        Account account = mRegistry.put(createAuthState(TEST_ISSUER, TEST_SUBJECT));
+        mRegistry.remove(account);
+
+        assertThat(mRegistry.get(account)).isNull();
+        assertThat(mRegistry.getAccounts()).isEmpty();
+        mStore.flush();
+        assertThat(new AuthStateRegistry(createStore()).getAccounts()).isEmpty();
+    }
+
+    @Test
+    public void testGetLock_sameForEqualAccounts() {
+        Account account = new Account(TEST_ISSUER, TEST_CLIENT_ID, TEST_SUBJECT);
+        assertThat(mRegistry.getLock(account)).isSameAs(
+                mRegistry.getLock(new Account(TEST_ISSUER, TEST_CLIENT_ID, TEST_SUBJECT)));
+    }
+
+    @Test
+    public void testStorageKey_roundTrip() {
+        Account account = new Account(TEST_ISSUER, "client,\"id\"", TEST_SUBJECT);
+        assertThat(Account.fromStorageKey(account.getStorageKey())).isEqualTo(account);
+        assertThat(Account.fromStorageKey("user@example.com")).isNull();
+    }
+
+    private AuthStateStore createStore() {
+        return new AuthStateStore(
+                mDirectory,
+                AuthStateStore.DEFAULT_WRITE_DELAY_MS,
+                null,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    private static AuthState createAuthState(String issuer, String subject) throws Exception {
+        TokenResponse tokenResponse = new TokenResponse.Builder(getTestAuthCodeExchangeRequest())
+                .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                .setAccessToken(TEST_ACCESS_TOKEN)
+                .setIdToken(createIdToken(issuer, subject))
+                .build();
+        return new AuthState(
+                new AuthorizationResponse.Builder(getTestAuthRequest()).build(),
+                tokenResponse);
+    }
+
+    private static String createIdToken(String issuer, String subject) throws Exception {
+        JSONObject claims = new JSONObject()
+                .put("iss", issuer)
+                .put("sub", subject);
+        int encoding = Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE;
+        return Base64.encodeToString("{\"alg\":\"none\"}".getBytes("UTF-8"), encoding)
+                + "."
+                + Base64.encodeToString(claims.toString().getBytes("UTF-8"), encoding)
+                + ".";
+    }
+}
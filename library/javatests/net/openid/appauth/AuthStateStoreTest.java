@@ -0,0 +1,424 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.TestValues.TEST_ACCESS_TOKEN;
+import static net.openid.appauth.TestValues.getTestAuthRequest;
+import static net.openid.appauth.TestValues.getTestAuthState;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.BadPaddingException;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AuthStateStoreTest {
+
+    private static final long TEST_WRITE_DELAY_MS = 1000L;
+    private static final String TEST_KEY = "user@example.com";
+    private static final String TEST_OTHER_ACCESS_TOKEN = "other_access_token";
+    private static final int MALFORMED_TAIL_LENGTH = 16;
+    private static final int LONG_KEY_LENGTH = 300;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private AuthStateStore mStore;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mTempFolder.getRoot(), "state");
+        mStore = createStore();
+    }
+
+    @Test
+    public void testRead_absent() {
+        assertThat(mStore.read(TEST_KEY)).isNull();
+    }
+
+    @Test
+    public void testWrite_servedFromMemoryAndWrittenAfterDelay() throws Exception {
+        AuthState state = getTestAuthState(TEST_ACCESS_TOKEN);
+        mStore.write(TEST_KEY, state);
+        assertThat(mStore.read(TEST_KEY)).isSameAs(state);
+        assertThat(getFile()).doesNotExist();
+
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS);
+        assertThat(getFile()).exists();
+        assertThat(createStore().read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testWrite_burstCoalesced() throws Exception {
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS / 2);
+        mStore.write(TEST_KEY, getTestAuthState(TEST_OTHER_ACCESS_TOKEN));
+        mStore.write("other", getTestAuthState(TEST_ACCESS_TOKEN));
+
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS / 2);
+        assertThat(mStore.getWriteCount()).isEqualTo(2);
+        assertThat(createStore().read(TEST_KEY).getAccessToken())
+                .isEqualTo(TEST_OTHER_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testWrite_stateCapturedWhenWritten() throws Exception {
+        AuthState state = getTestAuthState(TEST_ACCESS_TOKEN);
+        mStore.write(TEST_KEY, state);
+        state.update(
+                new AuthorizationResponse.Builder(getTestAuthRequest()).build(),
+                null);
+
+        mStore.flush();
+        assertThat(createStore().read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testFlush_writesImmediately() throws Exception {
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.flush();
+        assertThat(getFile()).exists();
+        assertThat(mStore.getWriteCount()).isEqualTo(1);
+
+        // the scheduled flush has nothing left to write
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS);
+        assertThat(mStore.getWriteCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testWrite_failedWriteRetriedWithBackoff() throws Exception {
+        // the directory cannot be created while a file occupies its path
+        assertThat(mDirectory.createNewFile()).isTrue();
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS);
+        assertThat(mStore.getWriteCount()).isEqualTo(1);
+
+        Robolectric.getUiThreadScheduler().advanceBy(AuthStateStore.MIN_RETRY_DELAY_MS);
+        assertThat(mStore.getWriteCount()).isEqualTo(2);
+
+        // the delay doubles after each consecutive failure
+        assertThat(mDirectory.delete()).isTrue();
+        Robolectric.getUiThreadScheduler().advanceBy(2 * AuthStateStore.MIN_RETRY_DELAY_MS - 1);
+        assertThat(mStore.getWriteCount()).isEqualTo(2);
+        Robolectric.getUiThreadScheduler().advanceBy(1);
+        assertThat(mStore.getWriteCount()).isEqualTo(3);
+        assertThat(createStore().read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+
+        // nothing further is scheduled once the write succeeds
+        Robolectric.getUiThreadScheduler().advanceBy(AuthStateStore.MAX_RETRY_DELAY_MS);
+        assertThat(mStore.getWriteCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testRead_evictedDuringFlushReadsWrittenState() throws Exception {
+        final TestEncryption encryption = new TestEncryption();
+        final AuthStateStore store = createStore(encryption);
+        store.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        store.flush();
+
+        store.write(TEST_KEY, getTestAuthState(TEST_OTHER_ACCESS_TOKEN));
+        final AtomicReference<AuthState> read = new AtomicReference<>();
+        Thread reader = runDuringWrite(encryption, new Runnable() {
+            @Override
+            public void run() {
+                store.evict(TEST_KEY);
+                read.set(store.read(TEST_KEY));
+            }
+        });
+        store.flush();
+        reader.join();
+
+        assertThat(read.get().getAccessToken()).isEqualTo(TEST_OTHER_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testReload_duringFlushDoesNotRollBack() throws Exception {
+        final TestEncryption encryption = new TestEncryption();
+        final AuthStateStore store = createStore(encryption);
+        store.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        store.flush();
+
+        AuthState state = getTestAuthState(TEST_OTHER_ACCESS_TOKEN);
+        store.write(TEST_KEY, state);
+        Thread reloader = runDuringWrite(encryption, new Runnable() {
+            @Override
+            public void run() {
+                store.reload(TEST_KEY);
+            }
+        });
+        store.flush();
+        reloader.join();
+
+        assertThat(state.getAccessToken()).isEqualTo(TEST_OTHER_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.flush();
+
+        mStore.remove(TEST_KEY);
+        assertThat(mStore.read(TEST_KEY)).isNull();
+        mStore.flush();
+        assertThat(getFile()).doesNotExist();
+        assertThat(createStore().read(TEST_KEY)).isNull();
+    }
+
+    @Test
+    public void testReload_observesOtherStoreAndUpdatesInPlace() throws Exception {
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.flush();
+        AuthState state = mStore.read(TEST_KEY);
+
+        AuthStateStore otherStore = createStore();
+        otherStore.write(TEST_KEY, getTestAuthState("other_access_token"));
+        otherStore.flush();
+        assertThat(mStore.read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+
+        assertThat(mStore.reload(TEST_KEY)).isSameAs(state);
+        assertThat(state.getAccessToken()).isEqualTo("other_access_token");
+    }
+
+    @Test
+    public void testRead_unreadableStateDiscarded() throws Exception {
+        assertThat(mDirectory.mkdirs()).isTrue();
+        Utils.writeAtomically(getFile(), new byte[] { 1, 2, 3 });
+        assertThat(mStore.read(TEST_KEY)).isNull();
+        assertThat(getFile()).doesNotExist();
+    }
+
+    @Test
+    public void testWrite_malformedResponsesDiscarded() throws Exception {
+        // the responses are only read when first used, so the malformed tail is not detected
+        // until the state is migrated to encrypted form
+        byte[] data = getTestAuthState(TEST_ACCESS_TOKEN).toByteArray();
+        Arrays.fill(data, data.length - MALFORMED_TAIL_LENGTH, data.length, (byte) 0xFF);
+        writeFile(data);
+
+        AuthStateStore store = createStore(new TestEncryption());
+        assertThat(store.read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS);
+        assertThat(getFile()).doesNotExist();
+        assertThat(store.read(TEST_KEY)).isNull();
+    }
+
+    @Test
+    public void testEncryption_stateEncryptedAtRest() throws Exception {
+        AuthStateStore store = createStore(new TestEncryption());
+        store.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        store.flush();
+
+        byte[] data = Utils.readFile(getFile());
+        assertThat(new String(data, "ISO-8859-1")).doesNotContain(TEST_ACCESS_TOKEN);
+        assertThat(createStore(new TestEncryption()).read(TEST_KEY).getAccessToken())
+                .isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testEncryption_encryptedStateUnreadableWithoutEncryption() throws Exception {
+        AuthStateStore store = createStore(new TestEncryption());
+        store.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        store.flush();
+
+        assertThat(mStore.read(TEST_KEY)).isNull();
+        assertThat(getFile()).exists();
+        assertThat(createStore(new TestEncryption()).read(TEST_KEY).getAccessToken())
+                .isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testEncryption_transientFailureRetried() throws Exception {
+        createStore(new TestEncryption()).write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS);
+
+        TestEncryption encryption = new TestEncryption();
+        encryption.mUnavailable = true;
+        AuthStateStore store = createStore(encryption);
+        assertThat(store.read(TEST_KEY)).isNull();
+        assertThat(getFile()).exists();
+
+        encryption.mUnavailable = false;
+        assertThat(store.read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testEncryption_stateBoundToKey() throws Exception {
+        AuthStateStore store = createStore(new TestEncryption());
+        store.write("other", getTestAuthState(TEST_ACCESS_TOKEN));
+        store.flush();
+
+        // the state of the other key, under the header of this key
+        File otherFile = new File(mDirectory, AuthStateStore.getFileName("other"));
+        byte[] otherData = Utils.readFile(otherFile);
+        writeFile(Arrays.copyOfRange(
+                otherData, AuthStateStore.getKeyHeader("other").length, otherData.length));
+
+        assertThat(createStore(new TestEncryption()).read(TEST_KEY)).isNull();
+        assertThat(getFile()).doesNotExist();
+    }
+
+    @Test
+    public void testEncryption_plaintextStateMigrated() throws Exception {
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.flush();
+        byte[] plaintext = Utils.readFile(getFile());
+
+        AuthStateStore store = createStore(new TestEncryption());
+        assertThat(store.read(TEST_KEY).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_WRITE_DELAY_MS);
+        assertThat(store.getWriteCount()).isEqualTo(1);
+        assertThat(Utils.readFile(getFile())).isNotEqualTo(plaintext);
+        assertThat(createStore(new TestEncryption()).read(TEST_KEY).getAccessToken())
+                .isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testGetFileName() throws Exception {
+        assertThat(AuthStateStore.getFileName("a/b")).isEqualTo(
+                "c14cddc033f64b9dea80ea675cf280a015e672516090a5626781153dc68fea11.state");
+    }
+
+    @Test
+    public void testGetKeys_mergesPendingWrites() throws Exception {
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.write("removed", getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.flush();
+
+        mStore.write("pending", getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.remove("removed");
+        assertThat(mStore.getKeys()).containsOnly(TEST_KEY, "pending");
+    }
+
+    @Test
+    public void testGetKeys_longKey() throws Exception {
+        char[] key = new char[LONG_KEY_LENGTH];
+        Arrays.fill(key, 'k');
+        String longKey = new String(key);
+        mStore.write(longKey, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.write(TEST_KEY, getTestAuthState(TEST_ACCESS_TOKEN));
+        mStore.flush();
+
+        AuthStateStore store = createStore();
+        assertThat(store.getKeys()).containsOnly(longKey, TEST_KEY);
+        assertThat(store.read(longKey).getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    private AuthStateStore createStore() {
+        return createStore(null);
+    }
+
+    private AuthStateStore createStore(AuthStateStore.Encryption encryption) {
+        return new AuthStateStore(
+                mDirectory,
+                TEST_WRITE_DELAY_MS,
+                encryption,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Starts a thread which runs the task during the next write of a file, once the state
+     * being written is no longer awaiting its write. The write continues once the thread has
+     * completed, or is blocked.
+     */
+    private static Thread runDuringWrite(TestEncryption encryption, final Runnable task) {
+        final Thread thread = new Thread(task);
+        encryption.mOnEncrypt = new Runnable() {
+            @Override
+            public void run() {
+                thread.start();
+                while (thread.isAlive() && thread.getState() != Thread.State.BLOCKED) {
+                    Thread.yield();
+                }
+            }
+        };
+        return thread;
+    }
+
+    private void writeFile(byte[] data) throws Exception {
+        byte[] header = AuthStateStore.getKeyHeader(TEST_KEY);
+        byte[] contents = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, contents, header.length, data.length);
+        assertThat(mDirectory.isDirectory() || mDirectory.mkdirs()).isTrue();
+        Utils.writeAtomically(getFile(), contents);
+    }
+
+    private File getFile() {
+        return new File(mDirectory, AuthStateStore.getFileName(TEST_KEY));
+    }
+
+    /**
+     * Inverts every byte, and prefixes the associated data, which is verified on decryption;
+     * the Android Keystore is not available to tests. While unavailable, decryption fails as
+     * the Keystore does when temporarily unavailable.
+     */
+    private static final class TestEncryption implements AuthStateStore.Encryption {
+
+        boolean mUnavailable;
+
+        /**
+         * Run on the next encryption, if set.
+         */
+        Runnable mOnEncrypt;
+
+        @Override
+        public byte[] encrypt(byte[] plaintext, byte[] associatedData) {
+            Runnable onEncrypt = mOnEncrypt;
+            mOnEncrypt = null;
+            if (onEncrypt != null) {
+                onEncrypt.run();
+            }
+            byte[] result = Arrays.copyOf(associatedData, associatedData.length + plaintext.length);
+            for (int i = 0; i < plaintext.length; i++) {
+                result[associatedData.length + i] = (byte) ~plaintext[i];
+            }
+            return result;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] ciphertext, byte[] associatedData)
+                throws GeneralSecurityException {
+            if (mUnavailable) {
+                throw new GeneralSecurityException("Keystore unavailable");
+            }
+            if (ciphertext.length < associatedData.length
+                    || !Arrays.equals(
+                            Arrays.copyOf(ciphertext, associatedData.length), associatedData)) {
+                throw new BadPaddingException("Associated data mismatch");
+            }
+            byte[] result = new byte[ciphertext.length - associatedData.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (byte) ~ciphertext[associatedData.length + i];
+            }
+            return result;
+        }
+    }
+}
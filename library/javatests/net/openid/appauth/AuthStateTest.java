@@ -0,0 +1,372 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.TestValues.TEST_ACCESS_TOKEN;
+import static net.openid.appauth.TestValues.TEST_AUTH_CODE;
+import static net.openid.appauth.TestValues.TEST_REFRESH_TOKEN;
+import static net.openid.appauth.TestValues.TEST_STATE;
+import static net.openid.appauth.TestValues.getTestAuthCodeExchangeRequest;
+import static net.openid.appauth.TestValues.getTestAuthRequestBuilder;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import android.os.CancellationSignal;
+
+import net.openid.appauth.AuthState.AuthStateAction;
+import net.openid.appauth.AuthorizationException.GeneralErrors;
+import net.openid.appauth.AuthorizationException.TokenRequestErrors;
+import net.openid.appauth.AuthorizationService.CancellableTokenResponseCallback;
+import net.openid.appauth.AuthorizationService.TokenResponseCallback;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AuthStateTest {
+
+    private static final long TEST_START_TIME = TimeUnit.DAYS.toMillis(1);
+    private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long TWO_MINUTES = TimeUnit.MINUTES.toMillis(2);
+    private static final String TEST_REFRESHED_ACCESS_TOKEN = "refreshed_access_token";
+    private static final Map<String, String> NO_PARAMS = Collections.emptyMap();
+    private static final int CONCURRENT_UPDATES = 10000;
+    private static final int MALFORMED_TAIL_LENGTH = 16;
+
+    private TestClock mClock;
+
+    @Mock AuthorizationService mService;
+    @Mock AuthStateAction mAction;
+    @Mock AuthStateAction mOtherAction;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mClock = new TestClock(TEST_START_TIME);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_validToken() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+        verify(mAction).execute(TEST_ACCESS_TOKEN, null, null);
+        verifyZeroInteractions(mService);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_concurrentRefreshesAreCoalesced() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME - TWO_MINUTES);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mOtherAction);
+
+        TokenResponseCallback callback = captureTokenRequestCallback(1);
+        verifyZeroInteractions(mAction, mOtherAction);
+
+        callback.onTokenRequestCompleted(createRefreshResponse(state), null);
+        verify(mAction).execute(TEST_REFRESHED_ACCESS_TOKEN, null, null);
+        verify(mOtherAction).execute(TEST_REFRESHED_ACCESS_TOKEN, null, null);
+        assertThat(state.getAccessToken()).isEqualTo(TEST_REFRESHED_ACCESS_TOKEN);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_refreshFailureDeliveredToAllActions() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME - TWO_MINUTES);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mOtherAction);
+
+        captureTokenRequestCallback(1).onTokenRequestCompleted(
+                null, TokenRequestErrors.INVALID_GRANT);
+        verify(mAction).execute(null, null, TokenRequestErrors.INVALID_GRANT);
+        verify(mOtherAction).execute(null, null, TokenRequestErrors.INVALID_GRANT);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_newRefreshAfterCompletion() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME - TWO_MINUTES);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+        captureTokenRequestCallback(1).onTokenRequestCompleted(
+                null, TokenRequestErrors.INVALID_GRANT);
+
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mOtherAction);
+        captureTokenRequestCallback(2);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_dispatchFailureClearsPendingActions() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME - TWO_MINUTES);
+        doThrow(new IllegalStateException())
+                .doReturn(new CancellationSignal())
+                .when(mService)
+                .performTokenRequest(any(TokenRequest.class), any(TokenResponseCallback.class));
+        try {
+            state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mOtherAction);
+        captureTokenRequestCallback(2).onTokenRequestCompleted(createRefreshResponse(state), null);
+        verify(mOtherAction).execute(TEST_REFRESHED_ACCESS_TOKEN, null, null);
+        verifyZeroInteractions(mAction);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_cancelledRefreshFailsActions() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME - TWO_MINUTES);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mOtherAction);
+        ((CancellableTokenResponseCallback) captureTokenRequestCallback(1))
+                .onTokenRequestCancelled();
+        verify(mAction).execute(null, null, GeneralErrors.PROGRAM_CANCELED_AUTH_FLOW);
+        verify(mOtherAction).execute(null, null, GeneralErrors.PROGRAM_CANCELED_AUTH_FLOW);
+        assertThat(state.getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+
+        // a subsequent refresh is not coalesced with the cancelled one
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mOtherAction);
+        captureTokenRequestCallback(2).onTokenRequestCompleted(createRefreshResponse(state), null);
+        verify(mOtherAction).execute(TEST_REFRESHED_ACCESS_TOKEN, null, null);
+        verifyNoMoreInteractions(mAction);
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_forcedRefreshClearedOnCompletion() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        state.setNeedsTokenRefresh(true);
+        state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, mAction);
+
+        captureTokenRequestCallback(1).onTokenRequestCompleted(createRefreshResponse(state), null);
+        verify(mAction).execute(TEST_REFRESHED_ACCESS_TOKEN, null, null);
+        assertThat(state.getNeedsTokenRefresh(mClock)).isFalse();
+    }
+
+    @Test
+    public void testPerformActionWithFreshTokens_consistentTokensDuringUpdates() throws Exception {
+        final AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        Thread updater = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CONCURRENT_UPDATES; i++) {
+                    state.update(new TokenResponse.Builder(getTestAuthCodeExchangeRequest())
+                            .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                            .setAccessToken("access_" + i)
+                            .setIdToken("id_" + i)
+                            .setAccessTokenExpirationTime(TEST_START_TIME + ONE_HOUR)
+                            .build(),
+                            null);
+                }
+            }
+        };
+
+        final AtomicInteger mismatches = new AtomicInteger();
+        AuthStateAction action = new AuthStateAction() {
+            @Override
+            public void execute(String accessToken, String idToken, AuthorizationException ex) {
+                if (idToken != null && !idToken.substring(3).equals(accessToken.substring(7))) {
+                    mismatches.incrementAndGet();
+                }
+            }
+        };
+
+        updater.start();
+        while (updater.isAlive()) {
+            state.performActionWithFreshTokens(mService, NO_PARAMS, mClock, action);
+        }
+        updater.join();
+        assertThat(mismatches.get()).isZero();
+        assertThat(state.getRefreshToken()).isEqualTo(TEST_REFRESH_TOKEN);
+    }
+
+    @Test
+    public void testGetNeedsTokenRefresh_expiryTolerance() {
+        AuthState state = createStateExpiringAt(
+                TEST_START_TIME - AuthState.EXPIRY_TIME_TOLERANCE_MS + 1);
+        assertThat(state.getNeedsTokenRefresh(mClock)).isFalse();
+        mClock.currentTime.addAndGet(1);
+        assertThat(state.getNeedsTokenRefresh(mClock)).isTrue();
+
+        assertThat(createStateExpiringAt(Long.MAX_VALUE).getNeedsTokenRefresh(mClock)).isFalse();
+    }
+
+    @Test
+    public void testJsonString_compatibleWithJsonObject() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        String treeJson = state.toJson().toString();
+        String streamedJson = state.toJsonString();
+        assertThat(new JSONObject(streamedJson).toString())
+                .isEqualTo(new JSONObject(treeJson).toString());
+        assertThat(AuthState.fromJson(treeJson).toJsonString()).isEqualTo(streamedJson);
+        assertThat(AuthState.fromJson(new JSONObject(streamedJson)).toJsonString())
+                .isEqualTo(streamedJson);
+    }
+
+    @Test
+    public void testReadJson_fromStream() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        state.writeJson(out);
+
+        AuthState restored = AuthState.readJson(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(restored.getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        assertThat(restored.getRefreshToken()).isEqualTo(TEST_REFRESH_TOKEN);
+        assertThat(restored.getAccessTokenExpirationTime()).isEqualTo(TEST_START_TIME + ONE_HOUR);
+        assertThat(restored.toJsonString()).isEqualTo(state.toJsonString());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testReadJson_truncatedStream() throws Exception {
+        byte[] json = createStateExpiringAt(TEST_START_TIME).toJsonString().getBytes("UTF-8");
+        AuthState.readJson(new ByteArrayInputStream(json, 0, json.length / 2));
+    }
+
+    @Test
+    public void testByteArray_roundTrip() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        AuthState restored = AuthState.fromByteArray(state.toByteArray());
+        assertThat(restored.getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        assertThat(restored.getRefreshToken()).isEqualTo(TEST_REFRESH_TOKEN);
+        assertThat(restored.getAccessTokenExpirationTime()).isEqualTo(TEST_START_TIME + ONE_HOUR);
+        assertThat(restored.toJsonString()).isEqualTo(state.toJsonString());
+    }
+
+    @Test
+    public void testByteArray_smallerThanJson() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        assertThat(state.toByteArray().length)
+                .isLessThan(state.toJsonString().getBytes("UTF-8").length / 2);
+    }
+
+    @Test
+    public void testFromByteArray_readsResponsesOnFirstUse() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        AuthState restored = AuthState.fromByteArray(state.toByteArray());
+        assertThat(restored.getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        assertThat(restored.getAccessTokenExpirationTime()).isEqualTo(TEST_START_TIME + ONE_HOUR);
+        assertThat(restored.getRefreshToken()).isEqualTo(TEST_REFRESH_TOKEN);
+        assertThat(restored.getNeedsTokenRefresh(mClock)).isFalse();
+        assertThat(restored.hasUnreadResponses()).isTrue();
+
+        assertThat(restored.getLastTokenResponse().accessToken).isEqualTo(TEST_ACCESS_TOKEN);
+        assertThat(restored.hasUnreadResponses()).isFalse();
+        assertThat(restored.getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFromByteArray_malformedResponsesThrowOnFirstUse() throws Exception {
+        byte[] data = createStateExpiringAt(TEST_START_TIME + ONE_HOUR).toByteArray();
+        Arrays.fill(data, data.length - MALFORMED_TAIL_LENGTH, data.length, (byte) 0xFF);
+        AuthState restored = AuthState.fromByteArray(data);
+        assertThat(restored.getAccessToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        restored.getLastTokenResponse();
+    }
+
+    @Test
+    public void testFromByteArray_updateDiscardsUnreadResponses() throws Exception {
+        AuthState restored = AuthState.fromByteArray(
+                createStateExpiringAt(TEST_START_TIME + ONE_HOUR).toByteArray());
+        AuthorizationResponse authResponse =
+                new AuthorizationResponse.Builder(getTestAuthRequestBuilder().build())
+                        .setState(TEST_STATE)
+                        .setAuthorizationCode(TEST_AUTH_CODE)
+                        .build();
+        restored.update(authResponse, null);
+        assertThat(restored.hasUnreadResponses()).isFalse();
+        assertThat(restored.getLastTokenResponse()).isNull();
+        assertThat(restored.getAccessToken()).isNull();
+    }
+
+    @Test
+    public void testFromByteArray_sharesConfiguration() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        AuthState restored = AuthState.fromByteArray(state.toByteArray());
+        assertThat(restored.getLastTokenResponse().request.configuration)
+                .isSameAs(restored.getLastAuthorizationResponse().request.configuration);
+    }
+
+    @Test
+    public void testFromByteArray_migratesJson() throws Exception {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        AuthState restored = AuthState.fromByteArray(state.toJsonString().getBytes("UTF-8"));
+        assertThat(restored.toJsonString()).isEqualTo(state.toJsonString());
+        assertThat(AuthState.fromByteArray(restored.toByteArray()).toJsonString())
+                .isEqualTo(state.toJsonString());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testFromByteArray_unsupportedVersion() throws Exception {
+        byte[] data = createStateExpiringAt(TEST_START_TIME).toByteArray();
+        data[AuthStateCodec.MAGIC.length] = AuthStateCodec.VERSION + 1;
+        AuthState.fromByteArray(data);
+    }
+
+    @Test(expected = JSONException.class)
+    public void testFromByteArray_truncated() throws Exception {
+        byte[] data = createStateExpiringAt(TEST_START_TIME).toByteArray();
+        AuthState.fromByteArray(Arrays.copyOf(data, data.length / 2));
+    }
+
+    private AuthState createStateExpiringAt(long expirationTime) {
+        AuthorizationResponse authResponse =
+                new AuthorizationResponse.Builder(getTestAuthRequestBuilder().build())
+                        .setState(TEST_STATE)
+                        .setAuthorizationCode(TEST_AUTH_CODE)
+                        .build();
+        TokenResponse tokenResponse =
+                new TokenResponse.Builder(getTestAuthCodeExchangeRequest())
+                        .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                        .setAccessToken(TEST_ACCESS_TOKEN)
+                        .setAccessTokenExpirationTime(expirationTime)
+                        .setRefreshToken(TEST_REFRESH_TOKEN)
+                        .build();
+        return new AuthState(authResponse, tokenResponse);
+    }
+
+    private TokenResponse createRefreshResponse(AuthState state) {
+        return new TokenResponse.Builder(state.createTokenRefreshRequest())
+                .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                .setAccessToken(TEST_REFRESHED_ACCESS_TOKEN)
+                .setAccessTokenExpirationTime(mClock.getCurrentTimeMillis() + ONE_HOUR)
+                .build();
+    }
+
+    private TokenResponseCallback captureTokenRequestCallback(int expectedRequests) {
+        ArgumentCaptor<TokenResponseCallback> captor =
+                ArgumentCaptor.forClass(TokenResponseCallback.class);
+        verify(mService, times(expectedRequests))
+                .performTokenRequest(any(TokenRequest.class), captor.capture());
+        return captor.getValue();
+    }
+}
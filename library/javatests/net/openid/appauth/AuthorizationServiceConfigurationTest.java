@@ -15,12 +15,18 @@
 package net.openid.appauth;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import net.openid.appauth.AuthorizationException.GeneralErrors;
@@ -28,7 +34,9 @@ import net.openid.appauth.AuthorizationException.GeneralErrors;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -40,8 +48,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLStreamHandler;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Semaphore;
@@ -51,6 +57,8 @@ import java.util.concurrent.TimeUnit;
 @Config(manifest = Config.NONE)
 public class AuthorizationServiceConfigurationTest {
     private static final int CALLBACK_TIMEOUT_MILLIS = 1000;
+    private static final long TEST_START_TIME = TimeUnit.DAYS.toMillis(1);
+    private static final String TEST_ETAG = "\"v1\"";
     private static final String TEST_NAME = "test_name";
     private static final String TEST_ISSUER = "test_issuer";
     private static final String TEST_AUTH_ENDPOINT = "https://test.openid.com/o/oauth/auth";
@@ -105,23 +113,25 @@ public class AuthorizationServiceConfigurationTest {
             + " \"userinfo_endpoint\": \"" + TEST_USERINFO_ENDPOINT + "\"\n"
             + "}";
 
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
     private AuthorizationServiceConfiguration mConfig;
-    private URL mUrl;
     private RetrievalCallback mCallback;
-    private InjectedUrlBuilder mBuilder;
+    private InjectedConnectionBuilder mBuilder;
+    private SynchronousExecutor mExecutor;
+    private AppAuthConfiguration mClientConfiguration;
     @Mock HttpURLConnection mHttpConnection;
 
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
-        URLStreamHandler urlStreamHandler = new URLStreamHandler() {
-            @Override
-            protected URLConnection openConnection(URL url) throws IOException {
-                return mHttpConnection;
-            }
-        };
-        mUrl = new URL("foo", "bar", -1, "/foobar", urlStreamHandler);
-        mBuilder = new InjectedUrlBuilder();
+        mBuilder = new InjectedConnectionBuilder();
+        mExecutor = new SynchronousExecutor();
+        mClientConfiguration = new AppAuthConfiguration.Builder()
+                .setConnectionBuilder(mBuilder)
+                .setExecutor(mExecutor)
+                .build();
         mCallback = new RetrievalCallback();
         mConfig = new AuthorizationServiceConfiguration(
                 Uri.parse(TEST_AUTH_ENDPOINT),
@@ -158,6 +168,48 @@ public class AuthorizationServiceConfigurationTest {
         assertMembers(config);
     }
 
+    @Test
+    public void testEquals() throws Exception {
+        AuthorizationServiceConfiguration discoveryConfig = new AuthorizationServiceConfiguration(
+                new AuthorizationServiceDiscovery(new JSONObject(TEST_JSON)));
+        AuthorizationServiceConfiguration sameDiscoveryConfig =
+                new AuthorizationServiceConfiguration(
+                        new AuthorizationServiceDiscovery(new JSONObject(TEST_JSON)));
+        AuthorizationServiceConfiguration sameEndpointsConfig =
+                new AuthorizationServiceConfiguration(
+                        Uri.parse(TEST_AUTH_ENDPOINT),
+                        Uri.parse(TEST_TOKEN_ENDPOINT));
+
+        assertEquals(discoveryConfig, sameDiscoveryConfig);
+        assertEquals(discoveryConfig.hashCode(), sameDiscoveryConfig.hashCode());
+        assertEquals(mConfig, sameEndpointsConfig);
+        assertEquals(mConfig.hashCode(), sameEndpointsConfig.hashCode());
+        assertFalse(discoveryConfig.equals(mConfig));
+        assertFalse(mConfig.equals(discoveryConfig));
+    }
+
+    @Test
+    public void testIntern() throws Exception {
+        AuthorizationServiceConfiguration config = mConfig.intern();
+        AuthorizationServiceConfiguration equalConfig = new AuthorizationServiceConfiguration(
+                Uri.parse(TEST_AUTH_ENDPOINT),
+                Uri.parse(TEST_TOKEN_ENDPOINT));
+        assertSame(config, equalConfig.intern());
+        assertSame(config, AuthorizationServiceConfiguration.fromJson(mConfig.toJson()));
+        assertSame(config, AuthorizationServiceConfiguration.fromJson(mConfig.toJsonString()));
+    }
+
+    @Test
+    public void testIntern_distinctDiscoveryDocuments() throws Exception {
+        AuthorizationServiceConfiguration config =
+                AuthorizationServiceConfiguration.fromJson("{\"discoveryDoc\":" + TEST_JSON + "}");
+        JSONObject otherJson = new JSONObject(TEST_JSON).put("service_documentation", "docs");
+        AuthorizationServiceConfiguration otherConfig = new AuthorizationServiceConfiguration(
+                new AuthorizationServiceDiscovery(otherJson)).intern();
+        assertNotSame(config, otherConfig);
+        assertNotNull(otherConfig.discoveryDoc.getServiceDocumentation());
+    }
+
     private void assertMembers(AuthorizationServiceConfiguration config) {
         assertEquals(TEST_AUTH_ENDPOINT, config.authorizationEndpoint.toString());
         assertEquals(TEST_TOKEN_ENDPOINT, config.tokenEndpoint.toString());
@@ -170,7 +222,7 @@ public class AuthorizationServiceConfigurationTest {
         AuthorizationServiceConfiguration.fetchFromUrl(
                 TEST_DISCOVERY_URI,
                 mCallback,
-                mBuilder);
+                mClientConfiguration);
         mCallback.waitForCallback();
         AuthorizationServiceConfiguration result = mCallback.config;
         assertNotNull(result);
@@ -179,18 +231,33 @@ public class AuthorizationServiceConfigurationTest {
         verify(mHttpConnection).connect();
     }
 
-    @Test(expected = IllegalArgumentException.class)
+    @Test
     public void testFetchFromUrl_failure() throws Exception {
         final IOException ex = new IOException();
         AuthorizationServiceConfiguration.fetchFromUrl(
                 TEST_DISCOVERY_URI,
                 mCallback,
-                new AuthorizationService.UrlBuilder() {
-                    @Override
-                    public URL buildUrlFromString(String uri) throws IOException {
-                        throw ex;
-                    }
-                });
+                new AppAuthConfiguration.Builder()
+                        .setConnectionBuilder(new ConnectionBuilder() {
+                            @NonNull
+                            @Override
+                            public HttpURLConnection openConnection(@NonNull URL url)
+                                    throws IOException {
+                                throw ex;
+                            }
+                        })
+                        .setExecutor(new SynchronousExecutor())
+                        .build());
+        mCallback.waitForCallback();
+        assertEquals(GeneralErrors.NETWORK_ERROR, mCallback.error);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFetchFromUrl_notHttps() throws Exception {
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                Uri.parse("http://test.openid.com/.well-known/openid-configuration"),
+                mCallback,
+                mClientConfiguration);
     }
 
     @Test
@@ -200,7 +267,7 @@ public class AuthorizationServiceConfigurationTest {
         AuthorizationServiceConfiguration.fetchFromUrl(
                 TEST_DISCOVERY_URI,
                 mCallback,
-                mBuilder);
+                mClientConfiguration);
         mCallback.waitForCallback();
         AuthorizationServiceConfiguration result = mCallback.config;
         assertNotNull(result);
@@ -216,7 +283,7 @@ public class AuthorizationServiceConfigurationTest {
         AuthorizationServiceConfiguration.fetchFromUrl(
                 TEST_DISCOVERY_URI,
                 mCallback,
-                mBuilder);
+                mClientConfiguration);
         mCallback.waitForCallback();
         assertNotNull(mCallback.error);
         assertEquals(GeneralErrors.INVALID_DISCOVERY_DOCUMENT, mCallback.error);
@@ -229,7 +296,7 @@ public class AuthorizationServiceConfigurationTest {
         AuthorizationServiceConfiguration.fetchFromUrl(
                 TEST_DISCOVERY_URI,
                 mCallback,
-                mBuilder);
+                mClientConfiguration);
         mCallback.waitForCallback();
         assertNotNull(mCallback.error);
         assertEquals(GeneralErrors.JSON_DESERIALIZATION_ERROR, mCallback.error);
@@ -242,12 +309,175 @@ public class AuthorizationServiceConfigurationTest {
         AuthorizationServiceConfiguration.fetchFromUrl(
                 TEST_DISCOVERY_URI,
                 mCallback,
-                mBuilder);
+                mClientConfiguration);
         mCallback.waitForCallback();
         assertNotNull(mCallback.error);
         assertEquals(GeneralErrors.NETWORK_ERROR, mCallback.error);
     }
 
+    @Test
+    public void testFetchFromUrl_concurrentRetrievalsShareFetch() throws Exception {
+        InputStream is = new ByteArrayInputStream(TEST_JSON.getBytes());
+        when(mHttpConnection.getInputStream()).thenReturn(is);
+        RetrievalCallback otherCallback = new RetrievalCallback();
+
+        mExecutor.pause();
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, mClientConfiguration);
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, otherCallback, mClientConfiguration);
+        mExecutor.unPause();
+
+        mCallback.waitForCallback();
+        otherCallback.waitForCallback();
+        assertNotNull(mCallback.config);
+        assertSame(mCallback.config, otherCallback.config);
+        verify(mHttpConnection, times(1)).connect();
+    }
+
+    @Test
+    public void testFetchFromUrl_freshCachedDocumentUsedWithoutNetwork() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(new TestClock(TEST_START_TIME));
+        AppAuthConfiguration clientConfiguration = createCachingConfiguration(cache);
+        when(mHttpConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(TEST_JSON.getBytes()));
+        when(mHttpConnection.getHeaderField(DiscoveryCache.HEADER_CACHE_CONTROL))
+                .thenReturn("public, max-age=3600");
+
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, clientConfiguration);
+        mCallback.waitForCallback();
+        AuthorizationServiceConfiguration first = mCallback.config;
+
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, clientConfiguration);
+        mCallback.waitForCallback();
+        assertSame(first, mCallback.config);
+        verify(mHttpConnection, times(1)).connect();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testFetchFromUrl_staleCachedDocumentRevalidated() throws Exception {
+        TestClock clock = new TestClock(TEST_START_TIME);
+        DiscoveryCache cache = new DiscoveryCache(clock);
+        AppAuthConfiguration clientConfiguration = createCachingConfiguration(cache);
+        when(mHttpConnection.getResponseCode())
+                .thenReturn(HttpURLConnection.HTTP_OK)
+                .thenReturn(HttpURLConnection.HTTP_NOT_MODIFIED);
+        when(mHttpConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(TEST_JSON.getBytes()));
+        when(mHttpConnection.getHeaderField(DiscoveryCache.HEADER_CACHE_CONTROL))
+                .thenReturn("max-age=60");
+        when(mHttpConnection.getHeaderField(DiscoveryCache.HEADER_ETAG))
+                .thenReturn(TEST_ETAG);
+
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, clientConfiguration);
+        mCallback.waitForCallback();
+        AuthorizationServiceConfiguration first = mCallback.config;
+
+        clock.currentTime.addAndGet(TimeUnit.SECONDS.toMillis(61));
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, clientConfiguration);
+        mCallback.waitForCallback();
+        assertSame(first, mCallback.config);
+        verify(mHttpConnection).setRequestProperty(
+                DiscoveryCache.HEADER_IF_NONE_MATCH, TEST_ETAG);
+        assertEquals(1, cache.getRevalidationCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testFetchFromUrl_staleCachedDocumentServedWhileRevalidating() throws Exception {
+        TestClock clock = new TestClock(TEST_START_TIME);
+        DiscoveryCache cache = new DiscoveryCache(
+                mTempFolder.getRoot(), TimeUnit.HOURS.toMillis(1), clock);
+        AppAuthConfiguration clientConfiguration = createCachingConfiguration(cache);
+        String updatedJson = TEST_JSON.replace(TEST_TOKEN_ENDPOINT, TEST_TOKEN_ENDPOINT + "2");
+        when(mHttpConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(TEST_JSON.getBytes()))
+                .thenReturn(new ByteArrayInputStream(updatedJson.getBytes()));
+        when(mHttpConnection.getHeaderField(DiscoveryCache.HEADER_CACHE_CONTROL))
+                .thenReturn("max-age=60");
+
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, clientConfiguration);
+        mCallback.waitForCallback();
+        AuthorizationServiceConfiguration first = mCallback.config;
+
+        clock.currentTime.addAndGet(TimeUnit.SECONDS.toMillis(61));
+        UpdateCallback updateCallback = new UpdateCallback();
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, updateCallback, clientConfiguration);
+        updateCallback.waitForCallback();
+        assertSame(first, updateCallback.config);
+        updateCallback.waitForUpdate();
+        assertEquals(Uri.parse(TEST_TOKEN_ENDPOINT + "2"), updateCallback.updated.tokenEndpoint);
+        assertEquals(1, cache.getStaleHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // the updated document is persisted, and fresh for other caches in the same directory
+        DiscoveryCache otherCache = new DiscoveryCache(
+                mTempFolder.getRoot(), TimeUnit.HOURS.toMillis(1), clock);
+        assertEquals(Uri.parse(TEST_TOKEN_ENDPOINT + "2"),
+                otherCache.getIfFresh(TEST_DISCOVERY_URI).tokenEndpoint);
+    }
+
+    @Test
+    public void testFetchFromUrl_staleCachedDocumentUnchanged() throws Exception {
+        TestClock clock = new TestClock(TEST_START_TIME);
+        DiscoveryCache cache = new DiscoveryCache(
+                mTempFolder.getRoot(), TimeUnit.HOURS.toMillis(1), clock);
+        AppAuthConfiguration clientConfiguration = createCachingConfiguration(cache);
+        when(mHttpConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(TEST_JSON.getBytes()))
+                .thenReturn(new ByteArrayInputStream(TEST_JSON.getBytes()));
+        when(mHttpConnection.getHeaderField(DiscoveryCache.HEADER_CACHE_CONTROL))
+                .thenReturn("max-age=60");
+
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, mCallback, clientConfiguration);
+        mCallback.waitForCallback();
+
+        clock.currentTime.addAndGet(TimeUnit.SECONDS.toMillis(61));
+        UpdateCallback updateCallback = new UpdateCallback();
+        AuthorizationServiceConfiguration.fetchFromUrl(
+                TEST_DISCOVERY_URI, updateCallback, clientConfiguration);
+        updateCallback.waitForCallback();
+        verify(mHttpConnection, times(2)).connect();
+        assertNull(updateCallback.updated);
+        assertEquals(1, cache.getStaleHitCount());
+    }
+
+    @Test
+    public void testReadBundled() throws Exception {
+        String snapshot = "{\"uri\":\"" + TEST_DISCOVERY_URI + "\",\"retrievedAt\":1,"
+                + "\"discoveryDoc\":" + TEST_JSON + "}";
+        AuthorizationServiceConfiguration config = AuthorizationServiceConfiguration.readBundled(
+                new ByteArrayInputStream(snapshot.getBytes()), TEST_DISCOVERY_URI);
+        assertNotNull(config);
+        assertMembers(config);
+        assertEquals(TEST_ISSUER, config.discoveryDoc.getIssuer());
+    }
+
+    @Test
+    public void testReadBundled_differentUri() throws Exception {
+        String snapshot = "{\"uri\":\"https://other.openid.com\",\"discoveryDoc\":"
+                + TEST_JSON + "}";
+        assertNull(AuthorizationServiceConfiguration.readBundled(
+                new ByteArrayInputStream(snapshot.getBytes()), TEST_DISCOVERY_URI));
+    }
+
+    private AppAuthConfiguration createCachingConfiguration(DiscoveryCache cache) {
+        return new AppAuthConfiguration.Builder()
+                .setConnectionBuilder(mBuilder)
+                .setExecutor(new SynchronousExecutor())
+                .setDiscoveryCache(cache)
+                .build();
+    }
+
     private static class RetrievalCallback implements
             AuthorizationServiceConfiguration.RetrieveConfigurationCallback {
         private Semaphore mSemaphore = new Semaphore(0);
@@ -270,16 +500,36 @@ public class AuthorizationServiceConfigurationTest {
         }
     }
 
+    private static class UpdateCallback extends RetrievalCallback implements
+            AuthorizationServiceConfiguration.ConfigurationUpdateCallback {
+        private Semaphore mUpdateSemaphore = new Semaphore(0);
+        public AuthorizationServiceConfiguration updated;
+
+        public void waitForUpdate() throws Exception {
+            assertTrue(mUpdateSemaphore.tryAcquire(CALLBACK_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void onConfigurationUpdated(
+                @NonNull AuthorizationServiceConfiguration serviceConfiguration) {
+            this.updated = serviceConfiguration;
+            mUpdateSemaphore.release();
+        }
+    }
+
     private static String toJson(List<String> strings) {
         return new JSONArray(strings).toString();
     }
 
-    private class InjectedUrlBuilder implements AuthorizationService.UrlBuilder {
-        public String mUri;
+    private class InjectedConnectionBuilder implements ConnectionBuilder {
+        public URL mUrl;
 
-        public URL buildUrlFromString(String uri) throws IOException {
-            mUri = uri;
-            return mUrl;
+        @NonNull
+        @Override
+        public HttpURLConnection openConnection(@NonNull URL url) throws IOException {
+            mUrl = url;
+            return mHttpConnection;
         }
     }
 }
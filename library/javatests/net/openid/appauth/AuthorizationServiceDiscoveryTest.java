@@ -16,6 +16,8 @@ package net.openid.appauth;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -28,6 +30,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 @RunWith(RobolectricTestRunner.class)
@@ -225,6 +228,50 @@ public class AuthorizationServiceDiscoveryTest {
         assertEquals(TEST_CLAIMS_SUPPORTED, mDiscovery.getClaimsSupported());
     }
 
+    @Test
+    public void testGetScopesSupported_decodedOnce() {
+        assertSame(mDiscovery.getScopesSupported(), mDiscovery.getScopesSupported());
+        assertSame(mDiscovery.getTokenEndpoint(), mDiscovery.getTokenEndpoint());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testGetScopesSupported_unmodifiable() {
+        mDiscovery.getScopesSupported().add("email");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testListValueNotArray() throws Exception {
+        mJson.put(AuthorizationServiceDiscovery.SCOPES_SUPPORTED.key, "openid");
+        new AuthorizationServiceDiscovery(mJson).getScopesSupported();
+    }
+
+    @Test
+    public void testListValueNotArray_otherFieldsReadable() throws Exception {
+        // a malformed list is only decoded, and only fails, when it is read
+        mJson.put(AuthorizationServiceDiscovery.CLAIMS_LOCALES_SUPPORTED.key, "en");
+        AuthorizationServiceDiscovery discovery = new AuthorizationServiceDiscovery(mJson);
+        assertEquals(TEST_SCOPES_SUPPORTED, discovery.getScopesSupported());
+        assertEquals(TEST_TOKEN_ENDPOINT, discovery.getTokenEndpoint().toString());
+    }
+
+    @Test
+    public void testWithRetainedFields() throws Exception {
+        mJson.put("end_session_endpoint", "https://test.openid.com/o/oauth/logout");
+        mJson.put("custom", "value");
+        AuthorizationServiceDiscovery discovery = AuthorizationServiceDiscovery.withRetainedFields(
+                mJson, Collections.singletonList("end_session_endpoint"));
+
+        assertEquals(TEST_SCOPES_SUPPORTED, discovery.getScopesSupported());
+        assertEquals(TEST_TOKEN_ENDPOINT, discovery.getTokenEndpoint().toString());
+        assertNull(discovery.getClaimsSupported());
+        assertFalse(discovery.docJson.has(AuthorizationServiceDiscovery.CLAIMS_SUPPORTED.key));
+        assertFalse(discovery.docJson.has("custom"));
+        assertTrue(discovery.docJson.has("end_session_endpoint"));
+
+        // the retained document can be restored
+        new AuthorizationServiceDiscovery(new JSONObject(discovery.docJson.toString()));
+    }
+
     private static String toJson(List<String> strings) {
         return new JSONArray(strings).toString();
     }
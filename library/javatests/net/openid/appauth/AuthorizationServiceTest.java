@@ -15,19 +15,25 @@
 package net.openid.appauth;
 
 import static net.openid.appauth.TestValues.TEST_ACCESS_TOKEN;
+import static net.openid.appauth.TestValues.TEST_CLIENT_ID;
 import static net.openid.appauth.TestValues.TEST_IDP_TOKEN_ENDPOINT;
 import static net.openid.appauth.TestValues.TEST_ID_TOKEN;
 import static net.openid.appauth.TestValues.TEST_REFRESH_TOKEN;
 import static net.openid.appauth.TestValues.TEST_STATE;
 import static net.openid.appauth.TestValues.getTestAuthCodeExchangeRequest;
 import static net.openid.appauth.TestValues.getTestAuthRequestBuilder;
+import static net.openid.appauth.TestValues.getTestServiceConfig;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -35,12 +41,16 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Color;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.customtabs.CustomTabsClient;
 import android.support.customtabs.CustomTabsIntent;
 import android.support.customtabs.CustomTabsServiceConnection;
 
 import net.openid.appauth.AuthorizationException.GeneralErrors;
+import net.openid.appauth.AuthorizationException.TokenRequestErrors;
 
 import org.junit.After;
 import org.junit.Before;
@@ -57,11 +67,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLStreamHandler;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -71,6 +78,8 @@ public class AuthorizationServiceTest {
     private static final int CALLBACK_TIMEOUT_MILLIS = 1000;
 
     private static final int TEST_EXPIRES_IN = 3600;
+    private static final int TEST_CONNECT_TIMEOUT_MS = 5000;
+    private static final int TEST_READ_TIMEOUT_MS = 7000;
     private static final String TEST_BROWSER_PACKAGE = "com.browser.test";
 
     private static final String AUTH_CODE_EXCHANGE_RESPONSE_JSON = "{\n"
@@ -81,11 +90,15 @@ public class AuthorizationServiceTest {
             + "  \"token_type\": \"" + AuthorizationResponse.TOKEN_TYPE_BEARER + "\"\n"
             + "}";
 
-    private URL mUrl;
+    private static final String INVALID_GRANT_RESPONSE_JSON = "{\n"
+            + "  \"error\": \"invalid_grant\"\n"
+            + "}";
+
     private AuthorizationCallback mAuthCallback;
     private AuthorizationService mService;
-    private InjectedUrlBuilder mBuilder;
-    private OutputStream mOutputStream;
+    private InjectedConnectionBuilder mBuilder;
+    private SynchronousExecutor mExecutor;
+    private ByteArrayOutputStream mOutputStream;
     @Mock HttpURLConnection mHttpConnection;
     @Mock PendingIntent mPendingIntent;
     @Mock Context mContext;
@@ -97,16 +110,16 @@ public class AuthorizationServiceTest {
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         PendingIntentStore.getInstance().clearPendingIntents();
-        URLStreamHandler urlStreamHandler = new URLStreamHandler() {
-            @Override
-            protected URLConnection openConnection(URL url) throws IOException {
-                return mHttpConnection;
-            }
-        };
-        mUrl = new URL("foo", "bar", -1, "/foobar", urlStreamHandler);
         mAuthCallback = new AuthorizationCallback();
-        mBuilder = new InjectedUrlBuilder();
-        mService = new AuthorizationService(mContext, mBuilder, mBrowserHandler);
+        mBuilder = new InjectedConnectionBuilder();
+        mExecutor = new SynchronousExecutor();
+        mService = new AuthorizationService(
+                mContext,
+                new AppAuthConfiguration.Builder()
+                        .setConnectionBuilder(mBuilder)
+                        .setExecutor(mExecutor)
+                        .build(),
+                mBrowserHandler);
         mOutputStream = new ByteArrayOutputStream();
         when(mHttpConnection.getOutputStream()).thenReturn(mOutputStream);
         when(mContext.bindService(serviceIntentEq(), any(CustomTabsServiceConnection.class),
@@ -130,7 +143,8 @@ public class AuthorizationServiceTest {
         Intent intent = captureAuthRequestIntent();
         assertRequestIntent(intent, null);
         assertEquals(request.toUri().toString(), intent.getData().toString());
-        assertEquals(mPendingIntent, PendingIntentStore.getInstance().getPendingIntent(TEST_STATE));
+        assertEquals(mPendingIntent,
+                PendingIntentStore.getInstance().remove(TEST_STATE).getPendingIntent());
     }
 
     @Test
@@ -140,7 +154,7 @@ public class AuthorizationServiceTest {
         Intent intent = captureAuthRequestIntent();
         assertRequestIntent(intent, null);
         assertEquals(mPendingIntent,
-                PendingIntentStore.getInstance().getPendingIntent(request.state));
+                PendingIntentStore.getInstance().remove(request.state).getPendingIntent());
     }
 
     @Test
@@ -172,7 +186,40 @@ public class AuthorizationServiceTest {
         assertTokenResponse(mAuthCallback.response, request);
         String postBody = mOutputStream.toString();
         assertThat(postBody).isEqualTo(request.toUri().getEncodedQuery());
-        assertEquals(TEST_IDP_TOKEN_ENDPOINT.toString(), mBuilder.mUri);
+        assertEquals(TEST_IDP_TOKEN_ENDPOINT.toString(), mBuilder.mUrl.toString());
+    }
+
+    @Test
+    public void testTokenRequest_endpointWithPort() throws Exception {
+        InputStream is = new ByteArrayInputStream(AUTH_CODE_EXCHANGE_RESPONSE_JSON.getBytes());
+        when(mHttpConnection.getInputStream()).thenReturn(is);
+        Uri tokenEndpoint = Uri.parse("https://testidp.example.com:8443/token");
+        TokenRequest request = new TokenRequest.Builder(
+                new AuthorizationServiceConfiguration(
+                        TestValues.TEST_IDP_AUTH_ENDPOINT,
+                        tokenEndpoint),
+                TEST_CLIENT_ID)
+                .setGrantType(TokenRequest.GRANT_TYPE_REFRESH_TOKEN)
+                .setRefreshToken(TEST_REFRESH_TOKEN)
+                .build();
+        mService.performTokenRequest(request, mAuthCallback);
+        mAuthCallback.waitForCallback();
+        assertTokenResponse(mAuthCallback.response, request);
+        assertEquals(tokenEndpoint.toString(), mBuilder.mUrl.toString());
+        byte[] body = request.toFormBody();
+        verify(mHttpConnection).setFixedLengthStreamingMode(body.length);
+        assertArrayEquals(body, mOutputStream.toByteArray());
+    }
+
+    @Test
+    public void testTokenRequest_errorResponse() throws Exception {
+        InputStream is = new ByteArrayInputStream(INVALID_GRANT_RESPONSE_JSON.getBytes());
+        when(mHttpConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_BAD_REQUEST);
+        when(mHttpConnection.getErrorStream()).thenReturn(is);
+        mService.performTokenRequest(getTestAuthCodeExchangeRequest(), mAuthCallback);
+        mAuthCallback.waitForCallback();
+        assertEquals(TokenRequestErrors.INVALID_GRANT, mAuthCallback.error);
+        assertNull(mAuthCallback.error.errorDescription);
     }
 
     @Test
@@ -185,6 +232,89 @@ public class AuthorizationServiceTest {
         assertEquals(GeneralErrors.NETWORK_ERROR, mAuthCallback.error);
     }
 
+    @Test
+    public void testTokenRequest_refreshRetriedAfterServerError() throws Exception {
+        RecordingAttemptListener listener = new RecordingAttemptListener();
+        AuthorizationService service = createServiceWithRetries(listener);
+        when(mHttpConnection.getResponseCode())
+                .thenReturn(HttpURLConnection.HTTP_UNAVAILABLE)
+                .thenReturn(HttpURLConnection.HTTP_OK);
+        when(mHttpConnection.getErrorStream())
+                .thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mHttpConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(AUTH_CODE_EXCHANGE_RESPONSE_JSON.getBytes()));
+        TokenRequest request = getTestRefreshRequest();
+        service.performTokenRequest(request, mAuthCallback);
+        mAuthCallback.waitForCallback();
+        assertTokenResponse(mAuthCallback.response, request);
+        assertEquals(2, listener.attempts);
+        assertNull(listener.error);
+    }
+
+    @Test
+    public void testTokenRequest_refreshRetriedAfterIoException() throws Exception {
+        RecordingAttemptListener listener = new RecordingAttemptListener();
+        AuthorizationService service = createServiceWithRetries(listener);
+        when(mHttpConnection.getInputStream()).thenThrow(new IOException());
+        service.performTokenRequest(getTestRefreshRequest(), mAuthCallback);
+        mAuthCallback.waitForCallback();
+        assertEquals(GeneralErrors.NETWORK_ERROR, mAuthCallback.error);
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, listener.attempts);
+        assertEquals(GeneralErrors.NETWORK_ERROR, listener.error);
+    }
+
+    @Test
+    public void testTokenRequest_codeExchangeNotRetried() throws Exception {
+        RecordingAttemptListener listener = new RecordingAttemptListener();
+        AuthorizationService service = createServiceWithRetries(listener);
+        when(mHttpConnection.getInputStream()).thenThrow(new IOException());
+        service.performTokenRequest(getTestAuthCodeExchangeRequest(), mAuthCallback);
+        mAuthCallback.waitForCallback();
+        assertEquals(GeneralErrors.NETWORK_ERROR, mAuthCallback.error);
+        assertEquals(1, listener.attempts);
+    }
+
+    @Test
+    public void testTokenRequest_setsTimeouts() throws Exception {
+        AuthorizationService service = new AuthorizationService(
+                mContext,
+                new AppAuthConfiguration.Builder()
+                        .setConnectionBuilder(mBuilder)
+                        .setExecutor(mExecutor)
+                        .setConnectTimeoutMs(TEST_CONNECT_TIMEOUT_MS)
+                        .setReadTimeoutMs(TEST_READ_TIMEOUT_MS)
+                        .build(),
+                mBrowserHandler);
+        when(mHttpConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(AUTH_CODE_EXCHANGE_RESPONSE_JSON.getBytes()));
+        service.performTokenRequest(getTestAuthCodeExchangeRequest(), mAuthCallback);
+        mAuthCallback.waitForCallback();
+        verify(mHttpConnection).setConnectTimeout(TEST_CONNECT_TIMEOUT_MS);
+        verify(mHttpConnection).setReadTimeout(TEST_READ_TIMEOUT_MS);
+    }
+
+    @Test
+    public void testTokenRequest_cancelled() throws Exception {
+        mExecutor.pause();
+        CancellationSignal signal =
+                mService.performTokenRequest(getTestAuthCodeExchangeRequest(), mAuthCallback);
+        signal.cancel();
+        mExecutor.unPause();
+        assertFalse(mAuthCallback.waitForCallback(0));
+        verify(mHttpConnection, never()).getOutputStream();
+    }
+
+    @Test
+    public void testDispose_cancelsTokenRequests() throws Exception {
+        mExecutor.pause();
+        mService.performTokenRequest(getTestAuthCodeExchangeRequest(), mAuthCallback);
+        mService.dispose();
+        mExecutor.unPause();
+        assertFalse(mAuthCallback.waitForCallback(0));
+        verify(mHttpConnection, never()).getOutputStream();
+        assertNull(mService.mContext);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testTokenRequest_afterDispose() throws Exception {
         mService.dispose();
@@ -212,12 +342,51 @@ public class AuthorizationServiceTest {
         assertEquals(TEST_ID_TOKEN, response.idToken);
     }
 
-    private class InjectedUrlBuilder implements AuthorizationService.UrlBuilder {
-        public String mUri;
+    private AuthorizationService createServiceWithRetries(RetryPolicy.AttemptListener listener) {
+        return new AuthorizationService(
+                mContext,
+                new AppAuthConfiguration.Builder()
+                        .setConnectionBuilder(mBuilder)
+                        .setExecutor(mExecutor)
+                        .setRetryPolicy(new RetryPolicy.Builder()
+                                .setBaseDelayMs(0)
+                                .setMaxDelayMs(0)
+                                .setHonorRetryAfter(false)
+                                .setAttemptListener(listener)
+                                .build())
+                        .build(),
+                mBrowserHandler);
+    }
+
+    private TokenRequest getTestRefreshRequest() {
+        return new TokenRequest.Builder(getTestServiceConfig(), TEST_CLIENT_ID)
+                .setGrantType(TokenRequest.GRANT_TYPE_REFRESH_TOKEN)
+                .setRefreshToken(TEST_REFRESH_TOKEN)
+                .build();
+    }
+
+    private static class RecordingAttemptListener implements RetryPolicy.AttemptListener {
+        public int attempts;
+        public AuthorizationException error;
 
-        public URL buildUrlFromString(String uri) throws IOException {
-            mUri = uri;
-            return mUrl;
+        @Override
+        public void onRequestCompleted(
+                @NonNull Uri endpoint,
+                int attempts,
+                @Nullable AuthorizationException ex) {
+            this.attempts = attempts;
+            this.error = ex;
+        }
+    }
+
+    private class InjectedConnectionBuilder implements ConnectionBuilder {
+        public URL mUrl;
+
+        @NonNull
+        @Override
+        public HttpURLConnection openConnection(@NonNull URL url) throws IOException {
+            mUrl = url;
+            return mHttpConnection;
         }
     }
 
@@ -238,8 +407,11 @@ public class AuthorizationServiceTest {
         }
 
         public void waitForCallback() throws Exception {
-            assertTrue(mSemaphore.tryAcquire(CALLBACK_TIMEOUT_MILLIS,
-                    TimeUnit.MILLISECONDS));
+            assertTrue(waitForCallback(CALLBACK_TIMEOUT_MILLIS));
+        }
+
+        public boolean waitForCallback(long timeoutMillis) throws Exception {
+            return mSemaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
         }
     }
 
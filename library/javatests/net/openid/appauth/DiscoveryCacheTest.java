@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.TestValues.getTestServiceConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DiscoveryCacheTest {
+
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long TEST_NOW = 784111777000L;
+    private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final Uri TEST_DISCOVERY_URI =
+            Uri.parse("https://test.openid.com/.well-known/openid-configuration");
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private TestClock mClock;
+    private DiscoveryCache mCache;
+
+    @Before
+    public void setUp() {
+        mClock = new TestClock(TEST_NOW);
+        mCache = new DiscoveryCache(mClock);
+    }
+
+    @Test
+    public void testComputeExpiresAt_maxAge() {
+        assertThat(DiscoveryCache.computeExpiresAt("public, max-age=60", null, null, TEST_NOW))
+                .isEqualTo(TEST_NOW + ONE_MINUTE);
+    }
+
+    @Test
+    public void testComputeExpiresAt_maxAgeTakesPrecedenceOverExpires() {
+        assertThat(DiscoveryCache.computeExpiresAt(
+                "max-age=60", "Sun, 06 Nov 1994 10:00:00 GMT", null, TEST_NOW))
+                .isEqualTo(TEST_NOW + ONE_MINUTE);
+    }
+
+    @Test
+    public void testComputeExpiresAt_noStore() {
+        assertThat(DiscoveryCache.computeExpiresAt("max-age=60, no-store", null, null, TEST_NOW))
+                .isEqualTo(DiscoveryCache.NOT_CACHEABLE);
+    }
+
+    @Test
+    public void testComputeExpiresAt_noCache() {
+        assertThat(DiscoveryCache.computeExpiresAt("max-age=60, no-cache", null, null, TEST_NOW))
+                .isEqualTo(TEST_NOW);
+    }
+
+    @Test
+    public void testComputeExpiresAt_expiresRelativeToDate() {
+        // the server clock is an hour behind the local clock
+        assertThat(DiscoveryCache.computeExpiresAt(
+                null,
+                "Sun, 06 Nov 1994 07:50:37 GMT",
+                "Sun, 06 Nov 1994 07:49:37 GMT",
+                TEST_NOW))
+                .isEqualTo(TEST_NOW + ONE_MINUTE);
+    }
+
+    @Test
+    public void testComputeExpiresAt_expiresWithoutDate() {
+        assertThat(DiscoveryCache.computeExpiresAt(
+                null, "Sun, 06 Nov 1994 08:50:37 GMT", null, TEST_NOW))
+                .isEqualTo(TEST_NOW + ONE_MINUTE);
+    }
+
+    @Test
+    public void testComputeExpiresAt_invalidExpires() {
+        assertThat(DiscoveryCache.computeExpiresAt(null, "0", null, TEST_NOW)).isEqualTo(TEST_NOW);
+    }
+
+    @Test
+    public void testComputeExpiresAt_noFreshnessInformation() {
+        assertThat(DiscoveryCache.computeExpiresAt(null, null, null, TEST_NOW)).isEqualTo(TEST_NOW);
+    }
+
+    @Test
+    public void testGetIfFresh_expires() {
+        AuthorizationServiceConfiguration config = getTestServiceConfig();
+        mCache.put(TEST_DISCOVERY_URI, config, createResponse("max-age=60", "\"v1\""));
+        assertThat(mCache.getIfFresh(TEST_DISCOVERY_URI)).isSameAs(config);
+
+        mClock.currentTime.addAndGet(ONE_MINUTE);
+        assertThat(mCache.getIfFresh(TEST_DISCOVERY_URI)).isNull();
+        assertThat(mCache.getETag(TEST_DISCOVERY_URI)).isEqualTo("\"v1\"");
+        assertThat(mCache.getHitRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void testRevalidated_extendsLifetime() {
+        AuthorizationServiceConfiguration config = getTestServiceConfig();
+        mCache.put(TEST_DISCOVERY_URI, config, createResponse("max-age=60", "\"v1\""));
+        mClock.currentTime.addAndGet(ONE_MINUTE);
+
+        assertThat(mCache.revalidated(TEST_DISCOVERY_URI, createResponse("max-age=60", null)))
+                .isSameAs(config);
+        assertThat(mCache.getIfFresh(TEST_DISCOVERY_URI)).isSameAs(config);
+        assertThat(mCache.getETag(TEST_DISCOVERY_URI)).isEqualTo("\"v1\"");
+        assertThat(mCache.getRevalidationCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPut_noStore() {
+        mCache.put(TEST_DISCOVERY_URI, getTestServiceConfig(),
+                createResponse("no-store", "\"v1\""));
+        assertThat(mCache.getETag(TEST_DISCOVERY_URI)).isNull();
+        assertThat(mCache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testInvalidate() {
+        mCache.put(TEST_DISCOVERY_URI, getTestServiceConfig(), createResponse("max-age=60", null));
+        mCache.invalidate(TEST_DISCOVERY_URI);
+        assertThat(mCache.getIfFresh(TEST_DISCOVERY_URI)).isNull();
+    }
+
+    @Test
+    public void testGetIfUsableWhileRevalidating_inMemory() {
+        mCache.put(TEST_DISCOVERY_URI, getTestServiceConfig(), createResponse("max-age=60", null));
+        mClock.currentTime.addAndGet(ONE_MINUTE);
+        assertThat(mCache.getIfUsableWhileRevalidating(TEST_DISCOVERY_URI)).isNull();
+    }
+
+    @Test
+    public void testGetIfUsableWhileRevalidating_maxStaleness() {
+        DiscoveryCache cache = new DiscoveryCache(mTempFolder.getRoot(), ONE_MINUTE, mClock);
+        AuthorizationServiceConfiguration config = getTestServiceConfig();
+        cache.put(TEST_DISCOVERY_URI, config, createResponse("max-age=60", null));
+        assertThat(cache.getIfUsableWhileRevalidating(TEST_DISCOVERY_URI)).isSameAs(config);
+
+        mClock.currentTime.addAndGet(ONE_MINUTE);
+        assertThat(cache.getIfFresh(TEST_DISCOVERY_URI)).isNull();
+        assertThat(cache.getIfUsableWhileRevalidating(TEST_DISCOVERY_URI)).isSameAs(config);
+        assertThat(cache.getStaleHitCount()).isEqualTo(2);
+
+        mClock.currentTime.addAndGet(ONE_MINUTE);
+        assertThat(cache.getIfUsableWhileRevalidating(TEST_DISCOVERY_URI)).isNull();
+    }
+
+    @Test
+    public void testPersistence_survivesNewInstance() {
+        File dir = new File(mTempFolder.getRoot(), "discovery");
+        DiscoveryCache cache = new DiscoveryCache(dir, ONE_MINUTE, mClock);
+        cache.put(TEST_DISCOVERY_URI, getTestServiceConfig(),
+                createResponse("max-age=60", "\"v1\""));
+
+        DiscoveryCache restored = new DiscoveryCache(dir, ONE_MINUTE, mClock);
+        AuthorizationServiceConfiguration config = restored.getIfFresh(TEST_DISCOVERY_URI);
+        assertThat(config).isNotNull();
+        assertThat(config.toJsonString()).isEqualTo(getTestServiceConfig().toJsonString());
+        assertThat(restored.getETag(TEST_DISCOVERY_URI)).isEqualTo("\"v1\"");
+    }
+
+    @Test
+    public void testPersistence_invalidateDeletesDocument() {
+        DiscoveryCache cache = new DiscoveryCache(mTempFolder.getRoot(), ONE_MINUTE, mClock);
+        cache.put(TEST_DISCOVERY_URI, getTestServiceConfig(), createResponse("max-age=60", null));
+        cache.invalidate(TEST_DISCOVERY_URI);
+
+        DiscoveryCache restored = new DiscoveryCache(mTempFolder.getRoot(), ONE_MINUTE, mClock);
+        assertThat(restored.getIfFresh(TEST_DISCOVERY_URI)).isNull();
+    }
+
+    @Test
+    public void testPersistence_corruptDocumentDiscarded() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(mTempFolder.getRoot(), ONE_MINUTE, mClock);
+        cache.put(TEST_DISCOVERY_URI, getTestServiceConfig(), createResponse("max-age=60", null));
+        File[] files = mTempFolder.getRoot().listFiles();
+        assertThat(files).hasSize(1);
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write("{\"uri\":".getBytes());
+        out.close();
+
+        DiscoveryCache restored = new DiscoveryCache(mTempFolder.getRoot(), ONE_MINUTE, mClock);
+        assertThat(restored.getIfFresh(TEST_DISCOVERY_URI)).isNull();
+        assertThat(files[0].exists()).isFalse();
+    }
+
+    @Test
+    public void testGetFileName() {
+        assertThat(DiscoveryCache.getFileName(TEST_DISCOVERY_URI)).isEqualTo(
+                "51ecf984be93b4fd2ab580c0f0dd0ad815462464e1e98ef2c7a2b439ecbb38ef.json");
+    }
+
+    @Test
+    public void testEndpointsChanged() {
+        AuthorizationServiceConfiguration config = getTestServiceConfig();
+        assertThat(DiscoveryCache.endpointsChanged(config, getTestServiceConfig())).isFalse();
+        assertThat(DiscoveryCache.endpointsChanged(config, new AuthorizationServiceConfiguration(
+                config.authorizationEndpoint,
+                Uri.parse("https://test.openid.com/o/oauth2/token2")))).isTrue();
+    }
+
+    private static HttpURLConnection createResponse(String cacheControl, String etag) {
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getHeaderField(DiscoveryCache.HEADER_CACHE_CONTROL)).thenReturn(cacheControl);
+        when(conn.getHeaderField(DiscoveryCache.HEADER_ETAG)).thenReturn(etag);
+        return conn;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import net.openid.appauth.AuthorizationException.GeneralErrors;
+import net.openid.appauth.DiscoveryPrefetcher.PrefetchCallback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DiscoveryPrefetcherTest {
+
+    private static final long TEST_TIMEOUT_MS = 5000L;
+    private static final Uri TEST_ISSUER_A = Uri.parse("https://a.openid.com");
+    private static final Uri TEST_ISSUER_B = Uri.parse("https://b.openid.com");
+    private static final Uri TEST_ISSUER_FAILING = Uri.parse("https://failing.openid.com");
+
+    private int mConnectionCount;
+    private SynchronousExecutor mExecutor;
+
+    @Mock PrefetchCallback mCallback;
+    @Captor ArgumentCaptor<Map<Uri, AuthorizationServiceConfiguration>> mConfigurationsCaptor;
+    @Captor ArgumentCaptor<Map<Uri, AuthorizationException>> mErrorsCaptor;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mExecutor = new SynchronousExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        // completes any retrievals left queued, so they are not shared with later tests
+        mExecutor.unPause();
+    }
+
+    @Test
+    public void testPrefetchIssuers_collectsConfigurationsAndErrors() {
+        createPrefetcher(DiscoveryPrefetcher.DEFAULT_MAX_CONCURRENT_RETRIEVALS).prefetchIssuers(
+                Arrays.asList(TEST_ISSUER_A, TEST_ISSUER_B, TEST_ISSUER_FAILING),
+                mCallback);
+        // tasks posted to the main looper by other tasks are queued until it is drained
+        Robolectric.runUiThreadTasks();
+
+        Map<Uri, AuthorizationServiceConfiguration> configurations = captureConfigurations();
+        assertThat(configurations).hasSize(2);
+        assertThat(configurations).containsKey(TEST_ISSUER_A);
+        assertThat(configurations).containsKey(TEST_ISSUER_B);
+        Map<Uri, AuthorizationException> errors = captureErrors();
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(TEST_ISSUER_FAILING)).isEqualTo(GeneralErrors.NETWORK_ERROR);
+    }
+
+    @Test
+    public void testPrefetchIssuers_boundedParallelism() {
+        mExecutor.pause();
+        createPrefetcher(1).prefetchIssuers(
+                Arrays.asList(TEST_ISSUER_A, TEST_ISSUER_B),
+                mCallback);
+        Robolectric.runUiThreadTasks();
+        assertThat(mExecutor.getQueuedTaskCount()).isEqualTo(1);
+
+        mExecutor.runOneTask();
+        Robolectric.runUiThreadTasks();
+        assertThat(mConnectionCount).isEqualTo(1);
+        assertThat(mExecutor.getQueuedTaskCount()).isEqualTo(1);
+
+        mExecutor.runOneTask();
+        Robolectric.runUiThreadTasks();
+        assertThat(captureConfigurations()).hasSize(2);
+    }
+
+    @Test
+    public void testPrefetchIssuers_deadline() {
+        mExecutor.pause();
+        createPrefetcher(1).prefetchIssuers(
+                Arrays.asList(TEST_ISSUER_A, TEST_ISSUER_B),
+                mCallback);
+
+        Robolectric.getUiThreadScheduler().advanceBy(TEST_TIMEOUT_MS - 1);
+        verify(mCallback, never()).onPrefetchCompleted(
+                anyMapOf(Uri.class, AuthorizationServiceConfiguration.class),
+                anyMapOf(Uri.class, AuthorizationException.class));
+
+        Robolectric.getUiThreadScheduler().advanceBy(1);
+        assertThat(captureConfigurations()).isEmpty();
+        Map<Uri, AuthorizationException> errors = captureErrors();
+        assertThat(errors).hasSize(2);
+        assertThat(errors.get(TEST_ISSUER_A).getCause())
+                .isInstanceOf(SocketTimeoutException.class);
+
+        // the late result is ignored
+        mExecutor.unPause();
+        Robolectric.runUiThreadTasks();
+        assertThat(mConnectionCount).isEqualTo(1);
+    }
+
+    @Test
+    public void testPrefetch_empty() {
+        createPrefetcher(1).prefetch(Collections.<Uri>emptyList(), mCallback);
+        assertThat(captureConfigurations()).isEmpty();
+        assertThat(captureErrors()).isEmpty();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrefetch_notHttps() {
+        createPrefetcher(1).prefetch(
+                Collections.singletonList(Uri.parse("http://a.openid.com/discovery")),
+                mCallback);
+    }
+
+    private DiscoveryPrefetcher createPrefetcher(int maxConcurrentRetrievals) {
+        AppAuthConfiguration clientConfiguration = new AppAuthConfiguration.Builder()
+                .setConnectionBuilder(new TestConnectionBuilder())
+                .setExecutor(mExecutor)
+                .build();
+        return new DiscoveryPrefetcher(
+                clientConfiguration,
+                maxConcurrentRetrievals,
+                TEST_TIMEOUT_MS,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    private Map<Uri, AuthorizationServiceConfiguration> captureConfigurations() {
+        verify(mCallback).onPrefetchCompleted(
+                mConfigurationsCaptor.capture(),
+                anyMapOf(Uri.class, AuthorizationException.class));
+        return mConfigurationsCaptor.getValue();
+    }
+
+    private Map<Uri, AuthorizationException> captureErrors() {
+        verify(mCallback).onPrefetchCompleted(
+                anyMapOf(Uri.class, AuthorizationServiceConfiguration.class),
+                mErrorsCaptor.capture());
+        return mErrorsCaptor.getValue();
+    }
+
+    private class TestConnectionBuilder implements ConnectionBuilder {
+        @NonNull
+        @Override
+        public HttpURLConnection openConnection(@NonNull URL url) throws IOException {
+            mConnectionCount++;
+            if (url.getHost().equals(TEST_ISSUER_FAILING.getHost())) {
+                throw new IOException("connection refused");
+            }
+
+            String json = AuthorizationServiceConfigurationTest.TEST_JSON;
+            HttpURLConnection conn = mock(HttpURLConnection.class);
+            when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+            when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(json.getBytes()));
+            return conn;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.net.Uri;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -39,6 +40,10 @@ import org.mockito.MockitoAnnotations;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
 
 @RunWith(RobolectricTestRunner.class)
@@ -248,4 +253,41 @@ public class JsonUtilTest {
     public void testGetStringMap_nullKey() throws Exception {
         JsonUtil.getStringMap(mRealJson, null);
     }
+
+    @Test
+    public void testParseJsonObject_preservesValueTypes() throws Exception {
+        String json = "{\"s\":\"a/b\",\"i\":1,\"l\":12345678901,\"d\":1.5,\"b\":true,"
+                + "\"n\":null,\"a\":[\"x\",{\"y\":2}]}";
+        JSONObject parsed = JsonUtil.parseJsonObject(
+                new ByteArrayInputStream(json.getBytes("UTF-8")));
+        assertEquals(new JSONObject(json).toString(), parsed.toString());
+    }
+
+    @Test
+    public void testParseJsonObject_retainedKeys() throws Exception {
+        String json = "{\"a\":1,\"b\":{\"c\":[1,2]},\"c\":\"x\"}";
+        JSONObject parsed = JsonUtil.parseJsonObject(
+                new ByteArrayInputStream(json.getBytes("UTF-8")),
+                new HashSet<>(Arrays.asList("a", "c")));
+        assertEquals("{\"a\":1,\"c\":\"x\"}", parsed.toString());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testParseJsonObject_empty() throws Exception {
+        JsonUtil.parseJsonObject(new ByteArrayInputStream(new byte[0]));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testParseJsonObject_notAnObject() throws Exception {
+        JsonUtil.parseJsonObject("[1, 2]");
+    }
+
+    @Test
+    public void testWriteJsonValue_roundTrip() throws Exception {
+        JSONObject json = new JSONObject(
+                "{\"s\":\"value\",\"l\":12345678901,\"a\":[true,null,{\"d\":1.5}]}");
+        StringWriter out = new StringWriter();
+        JsonUtil.writeJsonValue(new JsonWriter(out), json);
+        assertEquals(json.toString(), new JSONObject(out.toString()).toString());
+    }
 }
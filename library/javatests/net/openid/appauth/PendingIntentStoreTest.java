@@ -15,8 +15,11 @@
 package net.openid.appauth;
 
 import static net.openid.appauth.TestValues.getTestAuthRequest;
+import static net.openid.appauth.TestValues.getTestAuthRequestBuilder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import android.app.PendingIntent;
 
@@ -32,6 +35,9 @@ import org.robolectric.annotation.Config;
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
 public class PendingIntentStoreTest {
+    private static final long TEST_ENTRY_TTL_MS = 1000L;
+    private static final int TEST_MAX_ENTRIES = 2;
+
     @Mock private PendingIntent mPendingIntent;
 
     @Before
@@ -50,12 +56,12 @@ public class PendingIntentStoreTest {
         AuthorizationRequest authRequest = getTestAuthRequest();
         PendingIntentStore.getInstance().addPendingIntent(authRequest, mPendingIntent);
         assertEquals(mPendingIntent,
-                PendingIntentStore.getInstance().getPendingIntent(authRequest.state));
+                PendingIntentStore.getInstance().remove(authRequest.state).getPendingIntent());
     }
 
     @Test
     public void testGetNonExistingPendingIntent() {
-        assertNull(PendingIntentStore.getInstance().getPendingIntent("unknown"));
+        assertNull(PendingIntentStore.getInstance().remove("unknown"));
     }
 
     @Test
@@ -63,7 +69,73 @@ public class PendingIntentStoreTest {
         AuthorizationRequest authRequest = getTestAuthRequest();
         PendingIntentStore.getInstance().addPendingIntent(authRequest, mPendingIntent);
         assertEquals(mPendingIntent,
-                PendingIntentStore.getInstance().getPendingIntent(authRequest.state));
-        assertNull(PendingIntentStore.getInstance().getPendingIntent(authRequest.state));
+                PendingIntentStore.getInstance().remove(authRequest.state).getPendingIntent());
+        assertNull(PendingIntentStore.getInstance().remove(authRequest.state));
+    }
+
+    @Test
+    public void testRemove_requestAndPendingIntentTogether() {
+        AuthorizationRequest authRequest = getTestAuthRequest();
+        PendingIntentStore.getInstance().addPendingIntent(authRequest, mPendingIntent);
+        PendingIntentStore.Entry entry =
+                PendingIntentStore.getInstance().remove(authRequest.state);
+        assertNotNull(entry);
+        assertSame(authRequest, entry.getRequest());
+        assertSame(mPendingIntent, entry.getPendingIntent());
+    }
+
+    @Test
+    public void testRemove_expired() {
+        TestClock clock = new TestClock(0L);
+        PendingIntentStore store =
+                new PendingIntentStore(clock, TEST_ENTRY_TTL_MS, TEST_MAX_ENTRIES);
+        AuthorizationRequest authRequest = getTestAuthRequest();
+        store.addPendingIntent(authRequest, mPendingIntent);
+
+        clock.currentTime.set(TEST_ENTRY_TTL_MS);
+        assertNull(store.remove(authRequest.state));
+        assertEquals(1, store.getExpiredCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(0, store.getHitCount());
+    }
+
+    @Test
+    public void testAddPendingIntent_expiredEntriesDiscarded() {
+        TestClock clock = new TestClock(0L);
+        PendingIntentStore store =
+                new PendingIntentStore(clock, TEST_ENTRY_TTL_MS, TEST_MAX_ENTRIES);
+        store.addPendingIntent(createRequest("abandoned"), mPendingIntent);
+
+        clock.currentTime.set(TEST_ENTRY_TTL_MS);
+        AuthorizationRequest authRequest = createRequest("current");
+        store.addPendingIntent(authRequest, mPendingIntent);
+        assertEquals(1, store.size());
+        assertEquals(1, store.getExpiredCount());
+        assertSame(authRequest, store.remove(authRequest.state).getRequest());
+    }
+
+    @Test
+    public void testAddPendingIntent_leastRecentlyAddedEvicted() {
+        TestClock clock = new TestClock(0L);
+        PendingIntentStore store =
+                new PendingIntentStore(clock, TEST_ENTRY_TTL_MS, TEST_MAX_ENTRIES);
+        store.addPendingIntent(createRequest("first"), mPendingIntent);
+        store.addPendingIntent(createRequest("second"), mPendingIntent);
+        // adding the first again renews it, so the second is the least recently added
+        store.addPendingIntent(createRequest("first"), mPendingIntent);
+        store.addPendingIntent(createRequest("third"), mPendingIntent);
+
+        assertEquals(TEST_MAX_ENTRIES, store.size());
+        assertEquals(1, store.getEvictionCount());
+        assertEquals(4, store.getAddCount());
+        assertNull(store.remove("second"));
+        assertNotNull(store.remove("first"));
+        assertNotNull(store.remove("third"));
+        assertEquals(2, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+
+    private static AuthorizationRequest createRequest(String state) {
+        return getTestAuthRequestBuilder().setState(state).build();
     }
 }
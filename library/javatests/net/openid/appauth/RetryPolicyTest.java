@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RetryPolicyTest {
+
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long TEST_NOW = 784111777000L;
+
+    private static final RetryPolicy POLICY = new RetryPolicy.Builder()
+            .setMaxAttempts(5)
+            .setBaseDelayMs(100)
+            .setMaxDelayMs(1000)
+            .setJitter(0.5)
+            .build();
+
+    @Test
+    public void testGetRetryDelayMs_exponentialBackoff() {
+        assertThat(POLICY.getRetryDelayMs(1, null, TEST_NOW, 0)).isEqualTo(100);
+        assertThat(POLICY.getRetryDelayMs(2, null, TEST_NOW, 0)).isEqualTo(200);
+        assertThat(POLICY.getRetryDelayMs(3, null, TEST_NOW, 0)).isEqualTo(400);
+        assertThat(POLICY.getRetryDelayMs(4, null, TEST_NOW, 0)).isEqualTo(800);
+    }
+
+    @Test
+    public void testGetRetryDelayMs_cappedAtMaxDelay() {
+        RetryPolicy policy = new RetryPolicy.Builder()
+                .setMaxAttempts(Integer.MAX_VALUE)
+                .setBaseDelayMs(100)
+                .setMaxDelayMs(1000)
+                .build();
+        assertThat(policy.getRetryDelayMs(5, null, TEST_NOW, 0)).isEqualTo(1000);
+        assertThat(policy.getRetryDelayMs(100, null, TEST_NOW, 0)).isEqualTo(1000);
+    }
+
+    @Test
+    public void testGetRetryDelayMs_jitter() {
+        assertThat(POLICY.getRetryDelayMs(2, null, TEST_NOW, 0.5)).isEqualTo(150);
+        assertThat(POLICY.getRetryDelayMs(2, null, TEST_NOW, 0.999)).isEqualTo(101);
+    }
+
+    @Test
+    public void testGetRetryDelayMs_attemptsExhausted() {
+        assertThat(POLICY.getRetryDelayMs(5, null, TEST_NOW, 0)).isEqualTo(-1);
+        assertThat(RetryPolicy.NO_RETRY.getRetryDelayMs(1, null, TEST_NOW, 0)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testGetRetryDelayMs_honorsRetryAfter() {
+        assertThat(POLICY.getRetryDelayMs(1, "1", TEST_NOW, 0)).isEqualTo(1000);
+        assertThat(POLICY.getRetryDelayMs(3, "0", TEST_NOW, 0)).isEqualTo(400);
+    }
+
+    @Test
+    public void testGetRetryDelayMs_retryAfterExceedsMaxDelay() {
+        assertThat(POLICY.getRetryDelayMs(1, "2", TEST_NOW, 0)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testGetRetryDelayMs_retryAfterIgnored() {
+        RetryPolicy policy = new RetryPolicy.Builder()
+                .setBaseDelayMs(100)
+                .setHonorRetryAfter(false)
+                .build();
+        assertThat(policy.getRetryDelayMs(1, "120", TEST_NOW, 0)).isEqualTo(100);
+    }
+
+    @Test
+    public void testParseRetryAfterMs() {
+        assertThat(RetryPolicy.parseRetryAfterMs(null, TEST_NOW)).isEqualTo(0);
+        assertThat(RetryPolicy.parseRetryAfterMs("", TEST_NOW)).isEqualTo(0);
+        assertThat(RetryPolicy.parseRetryAfterMs(" 30 ", TEST_NOW)).isEqualTo(30000);
+        assertThat(RetryPolicy.parseRetryAfterMs("-5", TEST_NOW)).isEqualTo(0);
+        assertThat(RetryPolicy.parseRetryAfterMs("Sun, 06 Nov 1994 08:50:07 GMT", TEST_NOW))
+                .isEqualTo(30000);
+        assertThat(RetryPolicy.parseRetryAfterMs("Sun, 06 Nov 1994 08:00:00 GMT", TEST_NOW))
+                .isEqualTo(0);
+        assertThat(RetryPolicy.parseRetryAfterMs("soon", TEST_NOW)).isEqualTo(0);
+    }
+
+    @Test
+    public void testIsRetryableResponseCode() {
+        assertThat(RetryPolicy.isRetryableResponseCode(500)).isTrue();
+        assertThat(RetryPolicy.isRetryableResponseCode(503)).isTrue();
+        assertThat(RetryPolicy.isRetryableResponseCode(200)).isFalse();
+        assertThat(RetryPolicy.isRetryableResponseCode(400)).isFalse();
+        assertThat(RetryPolicy.isRetryableResponseCode(429)).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilder_setMaxAttempts_zero() {
+        new RetryPolicy.Builder().setMaxAttempts(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilder_setJitter_outOfRange() {
+        new RetryPolicy.Builder().setJitter(1.5);
+    }
+}
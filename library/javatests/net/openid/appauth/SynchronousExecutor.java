@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the calling thread. Under Robolectric, the results of tasks run on other threads
+ * are posted to a scheduler which the test thread does not drain, so requests must be executed
+ * on the test thread for their callbacks to be invoked. While paused, tasks are queued, so that
+ * tests can act on a request before it runs.
+ */
+class SynchronousExecutor implements Executor {
+
+    private final Queue<Runnable> mQueued = new ArrayDeque<>();
+    private boolean mPaused;
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (mPaused) {
+            mQueued.add(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    public void pause() {
+        mPaused = true;
+    }
+
+    public int getQueuedTaskCount() {
+        return mQueued.size();
+    }
+
+    /**
+     * Runs the first queued task, if any, leaving the executor paused.
+     */
+    public void runOneTask() {
+        Runnable runnable = mQueued.poll();
+        if (runnable != null) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Runs the queued tasks in order, and any subsequent tasks as they are submitted.
+     */
+    public void unPause() {
+        mPaused = false;
+        Runnable runnable;
+        while ((runnable = mQueued.poll()) != null) {
+            runnable.run();
+        }
+    }
+}
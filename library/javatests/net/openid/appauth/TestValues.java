@@ -68,4 +68,18 @@ class TestValues {
     public static TokenRequest getTestAuthCodeExchangeRequest() {
         return getTestAuthCodeExchangeRequestBuilder().build();
     }
+
+    public static AuthState getTestAuthState(String accessToken) {
+        AuthorizationResponse authResponse = new AuthorizationResponse.Builder(getTestAuthRequest())
+                .setState(TEST_STATE)
+                .setAuthorizationCode(TEST_AUTH_CODE)
+                .build();
+        TokenResponse tokenResponse = new TokenResponse.Builder(getTestAuthCodeExchangeRequest())
+                .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                .setAccessToken(accessToken)
+                .setIdToken(TEST_ID_TOKEN)
+                .setRefreshToken(TEST_REFRESH_TOKEN)
+                .build();
+        return new AuthState(authResponse, tokenResponse);
+    }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openid.appauth;
+
+import static net.openid.appauth.TestValues.TEST_ACCESS_TOKEN;
+import static net.openid.appauth.TestValues.TEST_AUTH_CODE;
+import static net.openid.appauth.TestValues.TEST_REFRESH_TOKEN;
+import static net.openid.appauth.TestValues.TEST_STATE;
+import static net.openid.appauth.TestValues.getTestAuthCodeExchangeRequest;
+import static net.openid.appauth.TestValues.getTestAuthRequestBuilder;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import net.openid.appauth.AuthState.AuthStateAction;
+import net.openid.appauth.AuthorizationException.GeneralErrors;
+import net.openid.appauth.AuthorizationException.TokenRequestErrors;
+import net.openid.appauth.AuthorizationService.CancellableTokenResponseCallback;
+import net.openid.appauth.AuthorizationService.TokenResponseCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TokenRefreshSchedulerTest {
+
+    private static final long TEST_START_TIME = TimeUnit.DAYS.toMillis(1);
+    private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long LEAD_TIME = TimeUnit.MINUTES.toMillis(5);
+    private static final String TEST_REFRESHED_ACCESS_TOKEN = "refreshed_access_token";
+
+    private TestClock mClock;
+    private Scheduler mUiScheduler;
+    private TokenRefreshScheduler mScheduler;
+
+    @Mock AuthorizationService mService;
+    @Mock AuthStateAction mOnRefresh;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mClock = new TestClock(TEST_START_TIME);
+        mUiScheduler = Robolectric.getUiThreadScheduler();
+        mScheduler = new TokenRefreshScheduler(
+                mService,
+                LEAD_TIME,
+                mClock,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    @Test
+    public void testRegister_refreshesLeadTimeBeforeExpiry() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        assertThat(mScheduler.register(state, mOnRefresh)).isTrue();
+
+        advanceBy(ONE_HOUR - LEAD_TIME - 1);
+        verifyZeroInteractions(mService);
+
+        advanceBy(1);
+        captureTokenRequestCallback(1).onTokenRequestCompleted(createRefreshResponse(state), null);
+        verify(mOnRefresh).execute(TEST_REFRESHED_ACCESS_TOKEN, null, null);
+        assertThat(state.getAccessToken()).isEqualTo(TEST_REFRESHED_ACCESS_TOKEN);
+        assertThat(mScheduler.isRegistered(state)).isTrue();
+    }
+
+    @Test
+    public void testRegister_reschedulesAfterRefresh() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state);
+
+        advanceBy(ONE_HOUR - LEAD_TIME);
+        captureTokenRequestCallback(1).onTokenRequestCompleted(createRefreshResponse(state), null);
+
+        advanceBy(ONE_HOUR - LEAD_TIME - 1);
+        captureTokenRequestCallback(1);
+        advanceBy(1);
+        captureTokenRequestCallback(2);
+    }
+
+    @Test
+    public void testRegister_retriesAfterNetworkError() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state);
+
+        advanceBy(ONE_HOUR - LEAD_TIME);
+        captureTokenRequestCallback(1).onTokenRequestCompleted(null, GeneralErrors.NETWORK_ERROR);
+        assertThat(mScheduler.isRegistered(state)).isTrue();
+
+        advanceBy(TokenRefreshScheduler.FAILURE_RETRY_DELAY_MS);
+        captureTokenRequestCallback(2);
+    }
+
+    @Test
+    public void testRegister_unregistersAfterRejection() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state, mOnRefresh);
+
+        advanceBy(ONE_HOUR - LEAD_TIME);
+        captureTokenRequestCallback(1).onTokenRequestCompleted(
+                null, TokenRequestErrors.INVALID_GRANT);
+        verify(mOnRefresh).execute(null, null, TokenRequestErrors.INVALID_GRANT);
+        assertThat(mScheduler.isRegistered(state)).isFalse();
+    }
+
+    @Test
+    public void testRegister_unregistersAfterNonTransientGeneralError() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state, mOnRefresh);
+
+        advanceBy(ONE_HOUR - LEAD_TIME);
+        captureTokenRequestCallback(1).onTokenRequestCompleted(
+                null, GeneralErrors.JSON_DESERIALIZATION_ERROR);
+        verify(mOnRefresh).execute(null, null, GeneralErrors.JSON_DESERIALIZATION_ERROR);
+        assertThat(mScheduler.isRegistered(state)).isFalse();
+
+        // not retried
+        advanceBy(TokenRefreshScheduler.FAILURE_RETRY_DELAY_MS);
+        captureTokenRequestCallback(1);
+    }
+
+    @Test
+    public void testRegister_reschedulesAfterCancellation() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state);
+
+        advanceBy(ONE_HOUR - LEAD_TIME);
+        ((CancellableTokenResponseCallback) captureTokenRequestCallback(1))
+                .onTokenRequestCancelled();
+        assertThat(mScheduler.isRegistered(state)).isTrue();
+
+        advanceBy(0);
+        captureTokenRequestCallback(2);
+    }
+
+    @Test
+    public void testRegister_unregistersWhenServiceDisposed() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state, mOnRefresh);
+
+        advanceBy(ONE_HOUR - LEAD_TIME);
+        when(mService.isDisposed()).thenReturn(true);
+        ((CancellableTokenResponseCallback) captureTokenRequestCallback(1))
+                .onTokenRequestCancelled();
+        verify(mOnRefresh).execute(null, null, GeneralErrors.PROGRAM_CANCELED_AUTH_FLOW);
+        assertThat(mScheduler.isRegistered(state)).isFalse();
+    }
+
+    @Test
+    public void testRegister_withoutRefreshToken() {
+        AuthorizationResponse authResponse =
+                new AuthorizationResponse.Builder(getTestAuthRequestBuilder().build())
+                        .setState(TEST_STATE)
+                        .setAuthorizationCode(TEST_AUTH_CODE)
+                        .build();
+        AuthState state = new AuthState(authResponse, (Exception) null);
+        assertThat(mScheduler.register(state)).isFalse();
+        assertThat(mScheduler.isRegistered(state)).isFalse();
+    }
+
+    @Test
+    public void testUnregister_cancelsRefresh() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state);
+        mScheduler.unregister(state);
+
+        advanceBy(ONE_HOUR);
+        verifyZeroInteractions(mService);
+        assertThat(mScheduler.isRegistered(state)).isFalse();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShutdown_rejectsRegistration() {
+        AuthState state = createStateExpiringAt(TEST_START_TIME + ONE_HOUR);
+        mScheduler.register(state);
+        mScheduler.shutdown();
+
+        advanceBy(ONE_HOUR);
+        verifyZeroInteractions(mService);
+        mScheduler.register(state);
+    }
+
+    private void advanceBy(long timeMs) {
+        mClock.currentTime.addAndGet(timeMs);
+        mUiScheduler.advanceBy(timeMs);
+    }
+
+    private AuthState createStateExpiringAt(long expirationTime) {
+        AuthorizationResponse authResponse =
+                new AuthorizationResponse.Builder(getTestAuthRequestBuilder().build())
+                        .setState(TEST_STATE)
+                        .setAuthorizationCode(TEST_AUTH_CODE)
+                        .build();
+        TokenResponse tokenResponse =
+                new TokenResponse.Builder(getTestAuthCodeExchangeRequest())
+                        .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                        .setAccessToken(TEST_ACCESS_TOKEN)
+                        .setAccessTokenExpirationTime(expirationTime)
+                        .setRefreshToken(TEST_REFRESH_TOKEN)
+                        .build();
+        return new AuthState(authResponse, tokenResponse);
+    }
+
+    private TokenResponse createRefreshResponse(AuthState state) {
+        return new TokenResponse.Builder(state.createTokenRefreshRequest())
+                .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                .setAccessToken(TEST_REFRESHED_ACCESS_TOKEN)
+                .setAccessTokenExpirationTime(mClock.getCurrentTimeMillis() + ONE_HOUR)
+                .build();
+    }
+
+    private TokenResponseCallback captureTokenRequestCallback(int expectedRequests) {
+        ArgumentCaptor<TokenResponseCallback> captor =
+                ArgumentCaptor.forClass(TokenResponseCallback.class);
+        verify(mService, times(expectedRequests))
+                .performTokenRequest(any(TokenRequest.class), captor.capture());
+        return captor.getValue();
+    }
+}
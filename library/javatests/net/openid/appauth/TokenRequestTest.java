@@ -29,6 +29,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -185,4 +186,31 @@ public class TokenRequestTest {
         assertThat(requestUri.getQueryParameter("p1")).isEqualTo("v1");
         assertThat(requestUri.getQueryParameter("p2")).isEqualTo("v2");
     }
+
+    @Test
+    public void testToFormBody_matchesEncodedQuery() {
+        Map<String, String> additionalParams = new HashMap<>();
+        additionalParams.put("p1", "a value with spaces & symbols=+/?#");
+        additionalParams.put("p2", "caf\u00e9 \u20ac \ud83d\ude00 _-!.~'()*");
+        TokenRequest request = mAuthorizationCodeRequestBuilder
+                .setCodeVerifier(TEST_CODE_VERIFIER)
+                .setScope("email profile")
+                .setAdditionalParameters(additionalParams)
+                .build();
+
+        String body = new String(request.toFormBody(), Charset.forName("UTF-8"));
+        assertThat(body).isEqualTo(request.toUri().getEncodedQuery());
+    }
+
+    @Test
+    public void testToFormBody_omitsMissingParameters() {
+        TokenRequest request = mMinimalBuilder
+                .setGrantType(TokenRequest.GRANT_TYPE_REFRESH_TOKEN)
+                .setRefreshToken(TEST_REFRESH_TOKEN)
+                .build();
+
+        String body = new String(request.toFormBody(), Charset.forName("UTF-8"));
+        assertThat(body).isEqualTo("grant_type=refresh_token&client_id=" + TEST_CLIENT_ID
+                + "&refresh_token=" + TEST_REFRESH_TOKEN);
+    }
 }
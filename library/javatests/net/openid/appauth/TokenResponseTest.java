@@ -18,7 +18,10 @@ import static net.openid.appauth.TestValues.TEST_APP_REDIRECT_URI;
 import static net.openid.appauth.TestValues.TEST_AUTH_CODE;
 import static net.openid.appauth.TestValues.TEST_CLIENT_ID;
 import static net.openid.appauth.TestValues.getTestServiceConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -47,4 +50,22 @@ public class TokenResponseTest {
         mMinimalBuilder.setAdditionalParameters(
                 Collections.singletonMap(TokenRequest.PARAM_SCOPE, "scope"));
     }
+
+    @Test
+    public void testFromJson_preservesScopeAndAdditionalParameters() throws Exception {
+        TokenResponse response = mMinimalBuilder
+                .setTokenType(TokenResponse.TOKEN_TYPE_BEARER)
+                .setAccessToken("access_token")
+                .setScope("openid email")
+                .setAdditionalParameters(Collections.singletonMap("extra", "value"))
+                .build();
+
+        TokenResponse streamed = TokenResponse.fromJson(response.toJsonString());
+        assertThat(streamed.scope).isEqualTo("openid email");
+        assertThat(streamed.additionalParameters).containsOnly(entry("extra", "value"));
+
+        TokenResponse tree = TokenResponse.fromJson(new JSONObject(response.toJsonString()));
+        assertThat(tree.scope).isEqualTo("openid email");
+        assertThat(tree.additionalParameters).containsOnly(entry("extra", "value"));
+    }
 }
@@ -15,16 +15,21 @@
 package net.openid.appauth;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -35,6 +40,9 @@ public class UtilsTest {
     private static final String TEST_STRING = "test_string\nwith a new line";
     private static boolean sIsClosed = false;
 
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
     @Test
     public void testCloseQuietly_close() {
         InputStream in = new ByteArrayInputStream(TEST_STRING.getBytes()) {
@@ -67,4 +75,13 @@ public class UtilsTest {
         InputStream in = new ByteArrayInputStream(TEST_STRING.getBytes());
         assertEquals(TEST_STRING, Utils.readInputStream(in));
     }
+
+    @Test
+    public void testWriteAtomically_replacesFile() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "test");
+        Utils.writeAtomically(file, "old".getBytes());
+        Utils.writeAtomically(file, TEST_STRING.getBytes());
+        assertEquals(TEST_STRING, Utils.readInputStream(new FileInputStream(file)));
+        assertFalse(new File(mTempFolder.getRoot(), "test.tmp").exists());
+    }
 }